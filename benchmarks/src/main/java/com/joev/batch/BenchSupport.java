@@ -0,0 +1,83 @@
+package com.joev.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Things the benchmarks share: where the sample decks are, synthetic decks, and a way to silence STDOUT (everything
+ * the simulator logs goes there, and would otherwise swamp JMH's own output)
+ */
+public class BenchSupport {
+
+	/**
+	 * @return the simulator's project directory (system property batchsim.home; by default, the benchmarks' parent directory)
+	 */
+	public static File getHome() {
+		return new File(System.getProperty("batchsim.home", "..")).getAbsoluteFile();
+	}
+
+	/**
+	 * @return the sample decks in src/test/resources/<sSet> (e.g. "samples"), sorted by name
+	 */
+	public static List<File> listSamples(String sSet) throws IOException {
+		File fDir = new File(getHome(), "src/test/resources/"+sSet);
+		File[] lf = fDir.listFiles();
+		if (lf == null)
+			throw new IOException("No sample decks in '"+fDir.getAbsolutePath()+"' (set -Dbatchsim.home to the project directory)");
+		Arrays.sort(lf);
+		return new ArrayList<File>(Arrays.asList(lf));
+	}
+
+	/**
+	 * Write a synthetic input file of stacked decks, each with a program of iProgramLines lines and iDataLines lines
+	 * of input data
+	 */
+	public static File writeSyntheticDecks(File fDir, int iDecks, int iProgramLines, int iDataLines) throws IOException {
+		File f = new File(fDir, "Synthetic_"+iDecks+"x"+iProgramLines+"x"+iDataLines+".txt");
+		try (PrintWriter pw = new PrintWriter(f, "UTF-8")) {
+			for (int iDeck = 1; iDeck <= iDecks; iDeck++) {
+				pw.println("$JOB Synthetic deck "+iDeck+" RUNTIME=10");
+				pw.println("$JAVA Synthetic"+iDeck);
+				pw.println("public class Synthetic"+iDeck+" {");
+				for (int i = 0; i < iProgramLines; i++)
+					pw.println("    static int f"+i+"(int x) { return x*"+i+" + "+iDeck+"; } // filler line "+i);
+				pw.println("    public static void main(String[] args) { System.out.println(f0(1)); }");
+				pw.println("}");
+				pw.println("$RUN");
+				for (int i = 0; i < iDataLines; i++)
+					pw.println("input data line "+i+" for deck "+iDeck+", with some more text to make it a typical length");
+				pw.println("$END");
+				pw.println();
+			}
+		}
+		return f;
+	}
+
+	/**
+	 * @return a new, empty temporary directory
+	 */
+	public static File createTempDir(String sPrefix) throws IOException {
+		return Files.createTempDirectory(sPrefix).toFile();
+	}
+
+	/**
+	 * Discard everything written to STDOUT
+	 * @return the original STDOUT, to restore afterwards
+	 */
+	public static PrintStream silenceStdout() {
+		PrintStream psOriginal = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) { }
+			public void write(byte[] ab, int iOff, int iLen) { }
+		}));
+		return psOriginal;
+	}
+
+}
@@ -0,0 +1,136 @@
+package com.joev.batch;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.joev.util.FileUtil;
+
+/**
+ * End-to-end throughput (jobs per second) of each RunMode: a fresh spool holding a fixed mix of sample jobs (C, Java
+ * and Python; some good, some with errors) is run to completion by the simulator, in a process of its own, as it
+ * would be in production. Pacing is turned off (PacingPolicy None), so that the time between jobs is the simulator's
+ * own overhead, not a deliberate delay.
+ * In the WaitForStop modes, the simulator is told to stop once the last input file is gone (i.e. all of its jobs are
+ * done); since it then waits up to WaitForWorkSeconds (1 here) to notice, each invocation includes up to a second of
+ * idle time, the same for every mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(EndToEndBenchmark.iJobs)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class EndToEndBenchmark {
+
+	// The mix of jobs (one per file), repeated iCopies times...
+	private static final String[] lsSampleDecks = { "CHelloWorld.txt", "CErrSyntax.txt", "JHelloWorld.txt",
+		"JReadInput.txt", "JErrIncomplete.txt", "PyHello1to10.txt" };
+	private static final int iCopies = 4;
+	static final int iJobs = 6*iCopies;
+
+	@Param({ "SingleThreadAllFiles", "SingleThreadWaitForStop", "MultiThreadWaitForStop", "Pipelined" })
+	public String sRunMode;
+
+	@Param({ "4" })
+	public int iThreadCount;
+
+	private File fSpoolDir;
+
+	/**
+	 * Create a fresh spool, with the jobs in its input directory
+	 */
+	@Setup(Level.Invocation)
+	public void setUpSpool() throws Exception {
+		fSpoolDir = BenchSupport.createTempDir("EndToEndBenchmark");
+		File fInput = new File(fSpoolDir, "Input");
+		File fSamples = new File(BenchSupport.getHome(), "src/test/resources/samples");
+		fInput.mkdirs();
+		new File(fSpoolDir, "Output").mkdirs();
+		for (int iCopy = 1; iCopy <= iCopies; iCopy++) {
+			for (String sDeck : lsSampleDecks)
+				Files.copy(new File(fSamples, sDeck).toPath(), new File(fInput, String.format("%02d_%s", iCopy, sDeck)).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDownSpool() {
+		FileUtil.deleteTree(fSpoolDir);
+	}
+
+	/**
+	 * Run the simulator over the spool until all of its jobs are done
+	 * @return the simulator's exit code
+	 */
+	@Benchmark
+	public int runAllJobs() throws Exception {
+		ArrayList<String> alsCommand = new ArrayList<String>();
+		alsCommand.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+		alsCommand.add("-cp");
+		alsCommand.add(System.getProperty("java.class.path"));
+		alsCommand.add("-DBatchSimulator.SpoolParentDir="+fSpoolDir.getAbsolutePath());
+		alsCommand.add("-DBatchSimulator.RunMode="+sRunMode);
+		alsCommand.add("-DBatchSimulator.ThreadCount="+iThreadCount);
+		alsCommand.add("-DBatchSimulator.PacingPolicy=None");
+		alsCommand.add("-DBatchSimulator.WaitForWorkSeconds=1");
+		alsCommand.add("-DBatchSimulator.IntakeSettleMillis=0");
+		alsCommand.add("-DBatchSimulator.SpoolSharing=false");
+		alsCommand.add("-DBatchSimulator.Journal=false");
+		alsCommand.add("-DBatchSimulator.CompileCache=false");
+		alsCommand.add("-DBatchSimulator.MetricsPort=0");
+		// Leave out the extras the shipped properties turn on, which would otherwise be measured along with the jobs...
+		alsCommand.add("-DBatchSimulator.SubmitPort=");
+		alsCommand.add("-DBatchSimulator.Archive=false");
+		alsCommand.add("-DBatchSimulator.WorkspacePool=false");
+		alsCommand.add(BatchSimulator.class.getName());
+		ProcessBuilder pb = new ProcessBuilder(alsCommand);
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(ProcessBuilder.Redirect.to(new File(fSpoolDir, "BatchSimulator.log")));
+		Process p = pb.start();
+		if (!sRunMode.equals("SingleThreadAllFiles")) {
+			// Wait for the last input file to be done with, then tell the simulator to stop...
+			File fInput = new File(fSpoolDir, "Input");
+			while (p.isAlive() && hasJobFiles(fInput))
+				Thread.sleep(10);
+			new File(fInput, "_BatchSimulator_STOP_").createNewFile();
+		}
+		int iRC = p.waitFor();
+		if (iRC != 0)
+			throw new IllegalStateException("BatchSimulator ended with exit code "+iRC+"; see "+new File(fSpoolDir, "BatchSimulator.log"));
+		return iRC;
+	}
+
+	/**
+	 * @return true if the input directory still holds any input files
+	 */
+	private static boolean hasJobFiles(File fInput) {
+		File[] lf = fInput.listFiles();
+		if (lf == null)
+			return false;
+		for (File f : lf) {
+			if (f.isFile() && !f.getName().startsWith("_") && !f.getName().startsWith("."))
+				return true;
+		}
+		return false;
+	}
+
+}
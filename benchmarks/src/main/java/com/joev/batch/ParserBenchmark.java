@@ -0,0 +1,74 @@
+package com.joev.batch;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.joev.util.FileUtil;
+
+/**
+ * Time to parse a set of input files into their jobs (spooling each job's program and input data to its working
+ * directory, as the simulator does), per file set:
+ *   samples, samples.cs245F2023: the sample decks in src/test/resources
+ *   synthetic-large: one file of 50 stacked decks, each with a 500-line program and 2000 lines of input data
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+
+	@Param({ "samples", "samples.cs245F2023", "synthetic-large" })
+	public String sFileSet;
+
+	private List<File> alfInput;
+	private File fTmpDir = null;
+	private PrintStream psStdout;
+
+	@Setup
+	public void setUp() throws Exception {
+		psStdout = BenchSupport.silenceStdout();
+		if (sFileSet.equals("synthetic-large")) {
+			fTmpDir = BenchSupport.createTempDir("ParserBenchmark");
+			alfInput = Collections.singletonList(BenchSupport.writeSyntheticDecks(fTmpDir, 50, 500, 2000));
+		} else {
+			alfInput = BenchSupport.listSamples(sFileSet);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (fTmpDir != null)
+			FileUtil.deleteTree(fTmpDir);
+		System.setOut(psStdout);
+	}
+
+	/**
+	 * @return number of jobs parsed (so that JMH doesn't optimize the parsing away)
+	 */
+	@Benchmark
+	public int parseFileSet() throws Exception {
+		int iJobs = 0;
+		for (File f : alfInput)
+			iJobs += BatchSimulator.parseFile(f);
+		return iJobs;
+	}
+
+}
@@ -0,0 +1,67 @@
+package com.joev.util;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.joev.batch.BenchSupport;
+import com.joev.util.CommandRunner.CommandRunnerResult;
+
+/**
+ * Overhead of running a command with CommandRunner.runCommand(): starting the process (via setsid and the shell),
+ * draining its output, and (with ResourceAccounting) measuring its CPU time and memory. The command itself does
+ * (almost) nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandRunnerBenchmark {
+
+	@Param({ "true", "echo hello" })
+	public String sCommand;
+
+	@Param({ "false", "true" })
+	public boolean bResourceAccounting;
+
+	private final CommandRunner cmdRunner = new CommandRunner();
+	private File fDir;
+	private PrintStream psStdout;
+
+	@Setup
+	public void setUp() throws Exception {
+		psStdout = BenchSupport.silenceStdout();
+		CommandRunner.setResourceAccounting(bResourceAccounting);
+		fDir = Files.createTempDirectory("CommandRunnerBenchmark").toFile();
+	}
+
+	@TearDown
+	public void tearDown() {
+		FileUtil.deleteTree(fDir);
+		System.setOut(psStdout);
+	}
+
+	@Benchmark
+	public int runCommand() throws Exception {
+		CommandRunnerResult crr = cmdRunner.runCommand(sCommand, fDir, 10000);
+		crr.release();
+		return crr.iRC;
+	}
+
+}
@@ -0,0 +1,69 @@
+package com.joev.util;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.joev.batch.BenchSupport;
+import com.joev.util.SimpleLogger.LogFormat;
+import com.joev.util.SimpleLogger.LogMode;
+
+/**
+ * Time to log a typical (3-line) message to a listing file, in each LogFormat and LogMode. STDOUT is discarded, so
+ * this measures the logger, not the terminal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggerBenchmark {
+
+	@Param({ "WithTag", "Raw", "Banner", "WithLineNumbers" })
+	public LogFormat logFormat;
+
+	@Param({ "Direct", "Buffered" })
+	public LogMode logMode;
+
+	private static final String sMessage = "Compilation command result:\n  Command: javac Foo.java\n  RC: 0";
+
+	private SimpleLogger log;
+	private File fLog;
+	private PrintStream psStdout;
+
+	@Setup
+	public void setUp() throws Exception {
+		psStdout = BenchSupport.silenceStdout();
+		SimpleLogger.setMode(logMode, 10000);
+		fLog = File.createTempFile("LoggerBenchmark", ".txt");
+		log = new SimpleLogger("LoggerBenchmark");
+		log.setLogFile(fLog);
+	}
+
+	@TearDown
+	public void tearDown() {
+		log.setLogFile(null);
+		fLog.delete();
+		System.setOut(psStdout);
+	}
+
+	@Benchmark
+	public void log() {
+		log.log(sMessage, logFormat);
+	}
+
+}
@@ -1,11 +1,21 @@
 package com.joev.batch;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetAddress;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -13,39 +23,129 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.joev.util.CommandRunner;
 import com.joev.util.CommandRunner.CommandRunnerResult;
+import com.joev.util.FileUtil;
+import com.joev.util.InProcessJavaCompiler;
+import com.joev.util.JavaWorkerPool;
+import com.joev.util.JobSandbox;
+import com.joev.util.MetricsRegistry;
+import com.joev.util.MetricsServer;
+import com.joev.util.PythonWorkerPool;
 import com.joev.util.SimpleLogger;
 import com.joev.util.SimpleLogger.LogFormat;
+import com.joev.util.WorkspacePool;
 
 public class BatchSimulator {
 	
 	private static final SimpleLogger log = new SimpleLogger(BatchSimulator.class.getSimpleName());
 	private static final String sNL = System.getProperty("line.separator");
 	private static final String sPropFileName = "BatchSimulator.properties";
+	// Prefix of the system properties which override the properties file...
+	private static final String sPropOverridePrefix = "BatchSimulator.";
 	private static Properties props = null;
-	private static int iJobNumber = 0;
+	private static final AtomicInteger aiJobNumber = new AtomicInteger(0);
 	
 	// Generate verbose debug output during parse; can be set from ParseDebug in the properties file
 	private static boolean bParseDebug = false;
+	// Bytes of each command's STDOUT/STDERR to keep in memory before spilling to a temp file; can be set from OutputSpillThresholdBytes
+	private static long lOutputSpillThreshold = CommandRunner.lDefaultSpillThreshold;
+	// Most bytes of each command's STDOUT (and of its STDERR) to keep; one which writes more is killed. Can be set from OutputLimitBytes (0 for no limit)
+	private static long lOutputLimit = 0;
+	// Cache of compiled programs; null if CompileCache is not enabled in the properties file
+	private static CompileCache compileCache = null;
+	// Cache of the results of jobs; null if ResultCache is not enabled in the properties file
+	private static ResultCache resultCache = null;
+	// Archive of finished listings; null if Archive is not enabled in the properties file
+	private static OutputArchive outputArchive = null;
+	// Compiler for JAVA jobs, if they are to be compiled within this JVM (JavaCompileBackend: InProcess); otherwise null
+	private static InProcessJavaCompiler inProcessJavaCompiler = null;
+	// Compiles JAVA jobs in batches (JavaCompileBatchSize > 1, with the InProcess backend, in a multi-threaded RunMode); otherwise null
+	private static JavaCompileBatcher javaCompileBatcher = null;
+	// Warm JVMs to run JAVA jobs in (JavaExecEngine: WarmJVM); otherwise null
+	private static JavaWorkerPool javaWorkerPool = null;
+	// Prestarted interpreters to run PY jobs in (PyExecEngine: Prestarted); otherwise null
+	private static PythonWorkerPool pythonWorkerPool = null;
+	// Order in which ready input files are taken from the queue (QueuePolicy: FIFO, PRIORITY, SJF)
+	private static QueuePolicy queuePolicy = null;
+	// How long past jobs took, for QueuePolicy SJF; null if JobHistory is not enabled in the properties file
+	private static JobHistory jobHistory = null;
+	// Claims input files (and assigns job numbers) when the spool is shared with other instances (SpoolSharing); otherwise null
+	private static SpoolClaimer spoolClaimer = null;
+	// Record of each job's progress, for resuming after a restart; null if Journal is not enabled in the properties file
+	private static Journal journal = null;
+	// Reusable working directories for jobs (WorkspacePool: true); otherwise null
+	private static WorkspacePool workspacePool = null;
+	// Working directories of jobs to be resumed (from the journal), until each is taken back by its job; these are
+	// never handed to another job, nor deleted
+	private static final Set<String> hsResumableWorkDirs = Collections.synchronizedSet(new HashSet<String>());
+	// Each job's phase times and resource usage (Metrics: true); otherwise null
+	private static MetricsRegistry metrics = null;
+	// Serves the metrics over HTTP (MetricsPort); otherwise null
+	private static MetricsServer metricsServer = null;
+
+	enum JavaCompileBackend { Process, InProcess }
+	enum JavaExecEngine { Process, WarmJVM }
+	enum PyExecEngine { Process, Prestarted }
 
 	private static final HashMap<String,File> alfSpoolDir = new HashMap<String,File>();
-	private static final SimpleDateFormat sdfLastMod = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-	private static final SimpleDateFormat sdfRunDTOutputFilename = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+	// SimpleDateFormat is not thread-safe, so each thread gets its own instance...
+	private static final ThreadLocal<SimpleDateFormat> sdfLastMod = new ThreadLocal<SimpleDateFormat>() {
+		protected SimpleDateFormat initialValue() { return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"); }
+	};
+	private static final ThreadLocal<SimpleDateFormat> sdfRunDTOutputFilename = new ThreadLocal<SimpleDateFormat>() {
+		protected SimpleDateFormat initialValue() { return new SimpleDateFormat("yyyyMMddHHmmssSSS"); }
+	};
+	
+	// Slows the execution of jobs down, to simulate a slow computer (PacingPolicy in the properties file)...
+	private static JobPacer jobPacer = null;
+	// Time (seconds) to wait for new work to come in when input queue is empty; can be set from WaitForWorkSeconds...
+	private static int iWaitForWork = 10;
+	// Name of the file which, when created in the input queue, tells us to stop...
+	private static final String sStopCommandFilename = "_BatchSimulator_STOP_";
+	// Name of the file which, when created in the input queue, tells us to log the queue...
+	private static final String sStatusCommandFilename = "_BatchSimulator_STATUS_";
+	// Watches the input queue for new files, in the "WaitForStop" RunModes...
+	private static SpoolWatcher swInput = null;
+	// ...and keeps the index of it up to date...
+	private static SpoolIndex spoolIndex = null;
+	// Accepts jobs over a socket, as well as through the input queue (SubmitPort in the properties file)...
+	private static SubmitServer submitServer = null;
+	// Jobs submitted through the SubmitServer, waiting to run (ahead of the input queue's)...
+	private static final LinkedBlockingQueue<BatchJob> lbqSubmitted = new LinkedBlockingQueue<BatchJob>();
+	// False once the SubmitServer has been stopped (guarded by lbqSubmitted)...
+	private static boolean bSubmitOpen = true;
+
+	enum IntakeMode { Poll, Watch }
 	
-	// Time (seconds) to wait after each job completes
-	private static final int iWaitAfterEachJob = 10;
-	// Time (seconds) to wait for new work to come in when input queue is empty...
-	private static final int iWaitForWork = 10; 
+	// Optional KEYWORD=value parameters on the $JOB card (e.g. RUNTIME=5)...
+	private static final Pattern patJobParm = Pattern.compile("\\b([A-Z]+)=(\\S+)");
 
-	enum RunMode { SingleThreadAllFiles, SingleThreadWaitForStop }
+	enum RunMode { SingleThreadAllFiles, SingleThreadWaitForStop, MultiThreadWaitForStop, Pipelined }
 	
 	private enum PARSETOKEN {
-		JOB("^.*\\$JOB (.*)"), // NOTE: May be prefixed with UTF-8 BOM 0xefbbbf (Windows/Notepad)
+		JOB("^\\$JOB (.*)"), // NOTE: A UTF-8 BOM 0xefbbbf (Windows/Notepad) at the start of the file is skipped by DeckReader
 		COMPILE("^\\$(PY|JAVA|C) (\\w+).*"), 
 		CODEORRUN("^\\$RUN.*"), 
 		INPUTDATAOREND("^\\$END.*"), 
@@ -62,141 +162,438 @@ public class BatchSimulator {
 	}
 	
 	/**
-	 * Parse an input spool file into a set of batch jobs
-	 * @param fInput a File which is expected to contain one or more batch jobs
-	 * @return ArrayList of BatchJob objects representing the individual jobs from the file
+	 * @return the next job number (unique across all instances, if the spool is shared)
+	 */
+	private static int nextJobNumber() throws IOException {
+		return (spoolClaimer != null) ? spoolClaimer.nextJobNumber() : aiJobNumber.incrementAndGet();
+	}
+	
+	/**
+	 * Delete the jobs' temporary working directories left behind in java.io.tmpdir (e.g. by a crash), other than those
+	 * of jobs which are to be resumed
+	 * @param hsKeep absolute paths of the directories to keep
+	 * @param lMinAgeMillis only delete directories which haven't changed for this long (in case another instance
+	 * on the same host is using them)
+	 */
+	private static void collectOrphanedWorkDirs(Set<String> hsKeep, long lMinAgeMillis) {
+		File[] lf = new File(System.getProperty("java.io.tmpdir")).listFiles();
+		if (lf == null)
+			return;
+		long lNow = System.currentTimeMillis();
+		int iDeleted = 0;
+		for (File f : lf) {
+			if (f.isDirectory() && f.getName().matches("BatchSimulator\\d+_\\d+\\.tmp")
+				&& !hsKeep.contains(f.getAbsolutePath()) && lNow - f.lastModified() >= lMinAgeMillis) {
+				FileUtil.deleteTree(f);
+				iDeleted++;
+			}
+		}
+		log.log("Deleted "+iDeleted+" orphaned job working director"+(iDeleted == 1 ? "y" : "ies")+" from '"+System.getProperty("java.io.tmpdir")+"'.");
+	}
+	
+	/**
+	 * Done with a job's temporary working directory: return it to the workspace pool (to be wiped), or delete it
+	 */
+	private static void releaseWorkDir(File fTmpDir) {
+		if (hsResumableWorkDirs.contains(fTmpDir.getAbsolutePath())) {
+			log.log("WARNING: Not releasing working directory '"+fTmpDir.getAbsolutePath()+"', as a job to be resumed is still to take it back.");
+			return;
+		}
+		if (workspacePool != null && workspacePool.owns(fTmpDir))
+			workspacePool.release(fTmpDir);
+		else
+			FileUtil.deleteTree(fTmpDir);
+	}
+	
+	/**
+	 * Create a job's temporary working directory (or take one from the workspace pool), into which its program and input data are spooled while it is parsed
+	 * @return the directory, or null if it could not be created
+	 */
+	private static File createWorkDir(int iJobNumber) throws IOException, InterruptedException {
+		if (workspacePool != null)
+			return workspacePool.acquire();
+		String sSysTmpDir = System.getProperty("java.io.tmpdir");
+		// Include the job number, so that jobs parsed in the same millisecond get different directories...
+		String sTmpDirName = "BatchSimulator"+System.currentTimeMillis()+"_"+String.format("%04d", iJobNumber)+".tmp";
+		File fTmpDir = new File(sSysTmpDir, sTmpDirName);
+		return fTmpDir.mkdirs() ? fTmpDir : null;
+	}
+	
+	/**
+	 * Parse an input file into its jobs without running them (their working directories are deleted straight away),
+	 * e.g. to measure the parser's speed
+	 * @return number of jobs in the file
+	 */
+	static int parseFile(File fInput) throws Exception {
+		int iJobs = 0;
+		try (BatchJobReader bjr = new BatchJobReader(fInput)) {
+			BatchJob bj;
+			while ((bj = bjr.next()) != null) {
+				iJobs++;
+				if (bj.fTmpDir != null)
+					releaseWorkDir(bj.fTmpDir);
+			}
+		}
+		return iJobs;
+	}
+	
+	/**
+	 * Reads the batch jobs in an input spool file, one at a time. A file may hold any number of stacked decks, each:
+	 * $JOB <comments>
+	 * $PY|JAVA|C <MainClass>
+	 *   ...code of a Python, Java, or C program...
+	 * $RUN
+	 *   ...input data for the program...
+	 * $END
+	 * with blank lines between decks ignored. Each deck is returned as soon as its $END has been read, so it can be run
+	 * while the rest of the file is still to be parsed. Text which is not part of a deck is returned as a job with a
+	 * parse error, which runs up to the next $JOB card.
+	 * The file is read once, as a stream; the program code and input data are written straight to files in each job's
+	 * temporary working directory as they are read, rather than being held in memory. (Decks submitted through the
+	 * SubmitServer are read the same way, from memory.)
 	 */
-	private static BatchJob parseBatchJob(File fInput) throws Exception {
+	private static class BatchJobReader implements Closeable {
+		// Name of the input file (or the name the decks were submitted under)...
+		private final String sName;
+		private final String sFileKey;
+		private final DeckReader dr;
+		// True if the DeckReader's current line has been read but not yet parsed (e.g. the $JOB card which ended the previous deck)...
+		private boolean bPending = false;
+		private boolean bEOF = false;
+		// True if reading (or spooling) the input failed, so the rest of it was skipped...
+		private boolean bReadFailed = false;
+		private int iDecks = 0;
+		// Time (milliseconds) the file waited in the input queue, before we started reading it...
+		private final long lQueueMillis;
 
-		iJobNumber++;
-		
-		// Read and parse the input stream, which is expected to consist of one batch job:
-		// $JOB <comments>
-		// $PY|JAVA|C <MainClass>
-		//   ...code of a Python, Java, or C program...
-		// $RUN
-		//   ...input data for the program...
-		// $END
-		BufferedReader brInputJobs = null;
-		if (bParseDebug) log.log("Reading input from file '"+fInput.getAbsolutePath()+"'...");
-		// FIXME: This method of reading only supports files in the default encoding, which appears to vary by platform
-		brInputJobs = new BufferedReader(new FileReader(fInput));
-		PARSETOKEN ptExpect = PARSETOKEN.JOB;
-		StringBuffer sbJob = new StringBuffer();
-		String sJobComments = null;
-		String sParseError = null;
-		StringBuffer sbPgmCode = new StringBuffer();
-		StringBuffer sbInputData = new StringBuffer();
-		String sCompilerLang = null;
-		String sPgmName = null;
+		BatchJobReader(File fInput) throws IOException {
+			this(fInput.getName(), Journal.fileKey(fInput), fInput.getAbsolutePath(), new FileInputStream(fInput),
+				Math.max(0, System.currentTimeMillis() - fInput.lastModified()));
+		}
 
-		String sLine = null;
-		int iLine = 0;
-		// Read the whole file until EOF
-		while ((sLine = brInputJobs.readLine()) != null) {
-			iLine++;
-			// Accumulate a buffer containing the full text of this BatchJob...
-			if (sbJob.length() > 0)
-				sbJob.append(sNL);
-			sbJob.append(sLine);
-			if (bParseDebug) log.log("PARSER: Read input line #"+iLine+": "+sLine);
-			// Parse this input line, using the current parse context...
-			Matcher m = ptExpect.matcher(sLine);
-			switch (ptExpect) {
-			case JOB:
-				if (m.matches()) {
-					sJobComments = m.group(1);
-					if (bParseDebug) log.log("PARSER: Recognized '$JOB'. Comments='"+sJobComments+"'");
-					ptExpect = PARSETOKEN.COMPILE;
-				} else {
-					sParseError = "ERROR: Input line #"+iLine+" '"+sLine+"' does not match expected pattern '"+ptExpect.pat.pattern()+"'";
-					log.log(sParseError);
-					ptExpect = PARSETOKEN.ERROREXIT;
+		/**
+		 * @param sName name of the input file (or the name the decks were submitted under)
+		 * @param sFileKey identifies the input in the journal
+		 * @param sSource where the input came from, for the log
+		 * @param lQueueMillis time (milliseconds) the input waited in the queue before being read
+		 */
+		BatchJobReader(String sName, String sFileKey, String sSource, InputStream is, long lQueueMillis) {
+			this.sName = sName;
+			this.sFileKey = sFileKey;
+			this.lQueueMillis = lQueueMillis;
+			if (bParseDebug) log.log("Reading input from '"+sSource+"'...");
+			this.dr = new DeckReader(is);
+			if (journal != null)
+				journal.record(Journal.Event.RECEIVED, sFileKey, 0, 0, sSource);
+		}
+
+		/**
+		 * Advance to the next line of the file (or back to the pending one)
+		 * @return false at EOF
+		 */
+		private boolean nextLine() throws IOException {
+			if (bPending) {
+				bPending = false;
+				return true;
+			}
+			if (bEOF)
+				return false;
+			if (!dr.readLine()) {
+				bEOF = true;
+				if (bParseDebug) log.log("At end of input loop; number of lines read: "+dr.getLineNumber());
+				return false;
+			}
+			if (bParseDebug) log.log("PARSER: Read input line #"+dr.getLineNumber()+": "+dr.getLine());
+			return true;
+		}
+
+		/**
+		 * @return true once the whole input has been read without error (so the input file can be deleted, once its
+		 * jobs are done)
+		 */
+		boolean isComplete() {
+			return bEOF && !bReadFailed;
+		}
+
+		/**
+		 * Parse the next deck in the file which still needs to be run (skipping any which, according to the journal,
+		 * were published before a restart)
+		 * @return the next BatchJob, or null if there are no more
+		 */
+		BatchJob next() throws Exception {
+			while (true) {
+				BatchJob bj = parseDeck();
+				if (bj == null || bj.jrResumed == null || !bj.jrResumed.eState.equals(Journal.Event.PUBLISHED))
+					return bj;
+				log.log("Job "+bj.iJobNumber+" (deck "+bj.iDeckNumber+" of '"+sName+"') was completed before the restart; skipping it.");
+			}
+		}
+
+		/**
+		 * Parse the next deck in the file
+		 * @return the next BatchJob, or null if there are no more
+		 */
+		private BatchJob parseDeck() throws Exception {
+			long lStartNanos = System.nanoTime();
+			// Skip blank lines between decks...
+			while (true) {
+				if (!nextLine()) {
+					// A file with no decks at all is reported as a job with a parse error...
+					if (iDecks > 0)
+						return null;
+					break;
 				}
-				break;
-			case COMPILE:
-				if (m.matches()) {
-					sCompilerLang = m.group(1);
-					sPgmName = m.group(2);
-					if (bParseDebug) log.log("PARSER: Recognized '$"+sCompilerLang+"'. PgmName='"+sPgmName+"'");
-					ptExpect = PARSETOKEN.CODEORRUN;
-				} else {
-					sParseError = "ERROR: Input line #"+iLine+" '"+sLine+"' does not match expected pattern '"+ptExpect.pat.pattern()+"'";
-					log.log(sParseError);
-					ptExpect = PARSETOKEN.ERROREXIT;
+				if (!dr.isBlank()) {
+					bPending = true;
+					break;
 				}
-				break;
-			case CODEORRUN:
-				if (m.matches()) {
-					if (bParseDebug) log.log("PARSER: Recognized '$RUN'.");
-					ptExpect = PARSETOKEN.INPUTDATAOREND;
-				} else {
-					// It must be a (another?) line of program code...
-					if (sbPgmCode.length() > 0)
-						sbPgmCode.append(sNL);
-					sbPgmCode.append(sLine);
+			}
+			iDecks++;
+			// A deck which was in progress before a restart keeps its job number and working directory...
+			Journal.JobRecord jrResumed = (journal == null) ? null : journal.lookup(sFileKey, iDecks);
+			int iJobNumber = (jrResumed != null) ? jrResumed.iJobNumber : nextJobNumber();
+			// A deck which was published before the restart is only read past, so it needs no working directory (its
+			// old one has been released, and may belong to another job by now)...
+			boolean bPublished = jrResumed != null && jrResumed.eState.equals(Journal.Event.PUBLISHED);
+			PARSETOKEN ptExpect = PARSETOKEN.JOB;
+			// The deck, for the listing: control cards (String) and the files holding the lines in between (File)...
+			ArrayList<Object> alDeck = new ArrayList<Object>();
+			String sJobComments = null;
+			String sParseError = null;
+			String sCompilerLang = null;
+			String sPgmName = null;
+			String sPgmHash = null;
+			File fProgram = null;
+			File fInputData = null;
+			File fUnparsed = null;
+			File fWorkDir = null;
+			// (Only if no other deck has taken it back already)
+			if (!bPublished && jrResumed != null && hsResumableWorkDirs.remove(jrResumed.sWorkDir)) {
+				fWorkDir = new File(jrResumed.sWorkDir);
+				if (!fWorkDir.isDirectory() && !fWorkDir.mkdirs())
+					fWorkDir = null;
+			}
+			if (fWorkDir == null && !bPublished)
+				fWorkDir = createWorkDir(iJobNumber);
+			if (fWorkDir == null && !bPublished) {
+				sParseError = "ERROR: Unable to create temp directory for job "+iJobNumber+" in '"+System.getProperty("java.io.tmpdir")+"'! Unable to run program!";
+				log.log(sParseError);
+			}
+			// Where the lines of the current section (program code, input data, or unparsed text) are being written...
+			OutputStream osSection = null;
+			MessageDigest mdPgm = MessageDigest.getInstance("SHA-256");
+			MessageDigest mdInput = MessageDigest.getInstance("SHA-256");
+			boolean bDeckDone = false;
+
+			try {
+				while (!bDeckDone && nextLine()) {
+					int iLine = dr.getLineNumber();
+					// Parse this input line, using the current parse context; only control cards are decoded and matched...
+					switch (ptExpect) {
+					case JOB:
+						if (dr.startsWith("$JOB ")) {
+							String sLine = dr.getLine();
+							alDeck.add(sLine);
+							sJobComments = sLine.substring(5);
+							if (bParseDebug) log.log("PARSER: Recognized '$JOB'. Comments='"+sJobComments+"'");
+							ptExpect = PARSETOKEN.COMPILE;
+						} else {
+							alDeck.add(dr.getLine());
+							sParseError = "ERROR: Input line #"+iLine+" '"+dr.getLine()+"' does not match expected pattern '"+ptExpect.pat.pattern()+"'";
+							log.log(sParseError);
+							ptExpect = PARSETOKEN.ERROREXIT;
+						}
+						break;
+					case COMPILE: {
+						String sLine = dr.getLine();
+						Matcher m = PARSETOKEN.COMPILE.matcher(sLine);
+						if (m.matches()) {
+							alDeck.add(sLine);
+							sCompilerLang = m.group(1);
+							sPgmName = m.group(2);
+							if (bParseDebug) log.log("PARSER: Recognized '$"+sCompilerLang+"'. PgmName='"+sPgmName+"'");
+							if (fWorkDir != null) {
+								fProgram = new File(fWorkDir, sPgmName+"."+sCompilerLang.toLowerCase());
+								osSection = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(fProgram), 64*1024), mdPgm);
+								alDeck.add(fProgram);
+							}
+							ptExpect = PARSETOKEN.CODEORRUN;
+						} else {
+							alDeck.add(sLine);
+							sParseError = "ERROR: Input line #"+iLine+" '"+sLine+"' does not match expected pattern '"+ptExpect.pat.pattern()+"'";
+							log.log(sParseError);
+							ptExpect = PARSETOKEN.ERROREXIT;
+						}
+						break;
+					}
+					case CODEORRUN:
+						if (dr.startsWith("$RUN")) {
+							if (bParseDebug) log.log("PARSER: Recognized '$RUN'.");
+							osSection = closeSection(osSection);
+							alDeck.add(dr.getLine());
+							if (fWorkDir != null) {
+								fInputData = new File(fWorkDir, "INPUTDATA.txt");
+								osSection = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(fInputData), 64*1024), mdInput);
+								alDeck.add(fInputData);
+							}
+							ptExpect = PARSETOKEN.INPUTDATAOREND;
+						} else if (dr.startsWith("$JOB ")) {
+							// The next deck has started, so this one is over (as it would be at the end of the file)...
+							log.log("WARNING: Input line #"+iLine+" is a $JOB card, but job "+iJobNumber+" has no $RUN or $END card. Ending the job there.");
+							bPending = true;
+							bDeckDone = true;
+						} else if (osSection != null) {
+							// It must be a (another?) line of program code...
+							dr.writeLine(osSection);
+						}
+						break;
+					case INPUTDATAOREND:
+						if (dr.startsWith("$END")) {
+							if (bParseDebug) log.log("PARSER: Recognized '$END'.");
+							osSection = closeSection(osSection);
+							alDeck.add(dr.getLine());
+							bDeckDone = true;
+						} else if (dr.startsWith("$JOB ")) {
+							log.log("WARNING: Input line #"+iLine+" is a $JOB card, but job "+iJobNumber+" has no $END card. Ending the job there.");
+							bPending = true;
+							bDeckDone = true;
+						} else if (osSection != null) {
+							// It must be a (another?) line of input data...
+							dr.writeLine(osSection);
+						}
+						break;
+					case ERROREXIT:
+						if (dr.startsWith("$JOB ")) {
+							// Start of the next deck; this (erroneous) one ends here...
+							bPending = true;
+							bDeckDone = true;
+							break;
+						}
+						// Keep the rest of the erroneous deck for the listing...
+						if (fUnparsed == null && fWorkDir != null) {
+							osSection = closeSection(osSection);
+							fUnparsed = new File(fWorkDir, "UNPARSED.txt");
+							osSection = new BufferedOutputStream(new FileOutputStream(fUnparsed), 64*1024);
+							alDeck.add(fUnparsed);
+						}
+						if (osSection != null)
+							dr.writeLine(osSection);
+						break;
+					default:
+						sParseError = "ERROR: Unexpected value '"+ptExpect+"' for parse-status flag!";
+						log.log(sParseError);
+						throw new IllegalArgumentException(sParseError);
+					}
 				}
-				break;
-			case INPUTDATAOREND:
-				if (m.matches()) {
-					if (bParseDebug) log.log("PARSER: Recognized '$END'.");
-					ptExpect = PARSETOKEN.ERROREXIT;
-				} else {
-					// It must be a (another?) line of input data...
-					if (sbInputData.length() > 0)
-						sbInputData.append(sNL);
-					sbInputData.append(sLine);
+				// Without a $JOB and a $PY|JAVA|C card, there's nothing to run...
+				if (sParseError == null && (ptExpect == PARSETOKEN.JOB || ptExpect == PARSETOKEN.COMPILE)) {
+					sParseError = "ERROR: Unexpected end of file; expecting pattern '"+ptExpect.pat.pattern()+"'";
+					log.log(sParseError);
 				}
-				break;
-			case ERROREXIT:
-				if (m.matches()) {
-					// Extraneous blank line at the end of the file. Don't flag this as an error.
-				} else {
-					// If we have not yet caught/reported any parse error, report this one
+			} catch (IOException e) {
+				// The job is reported with what was read of it, and the rest of the input is skipped...
+				sParseError = "ERROR: Unable to read job "+iJobNumber+" after input line #"+dr.getLineNumber()+": "+e.toString();
+				log.log(sParseError);
+				bReadFailed = true;
+				bEOF = true;
+				bPending = false;
+			} finally {
+				try {
+					closeSection(osSection);
+				} catch (IOException e) {
 					if (sParseError == null) {
-						sParseError = "ERROR: Unexpected text at end of file: '" + sLine + "'";
+						sParseError = "ERROR: Unable to spool job "+iJobNumber+": "+e.toString();
 						log.log(sParseError);
 					}
 				}
-				break;
-			default:
-				sParseError = "ERROR: Unexpected value '"+ptExpect+"' for parse-status flag!";
-				log.log(sParseError);
-				throw new IllegalArgumentException(sParseError);
 			}
+			if (fProgram != null)
+				sPgmHash = CompileCache.toHex(mdPgm.digest());
+
+			BatchJob bj = new BatchJob(sName, iDecks, sParseError, iJobNumber, alDeck, sJobComments, sCompilerLang, sPgmName, fWorkDir, fProgram, fInputData, sPgmHash);
+			bj.sFileKey = sFileKey;
+			bj.sInputHash = CompileCache.toHex(mdInput.digest());
+			bj.jrResumed = jrResumed;
+			bj.hmPhaseMillis.put("queue", lQueueMillis);
+			bj.timePhase("parse", lStartNanos);
+			if (journal != null && !bPublished)
+				journal.record(Journal.Event.PARSED, sFileKey, iDecks, iJobNumber, (fWorkDir == null) ? "" : fWorkDir.getAbsolutePath());
+			return bj;
 		}
-		brInputJobs.close();
-		
-		if (bParseDebug) log.log("At end of input loop; number of lines read: "+iLine);
 
-		return new BatchJob(fInput.getName(), sParseError, iJobNumber, sbJob.toString(), sJobComments, sCompilerLang, sPgmName, sbPgmCode.toString(), sbInputData.toString());
+		@Override
+		public void close() throws IOException {
+			dr.close();
+		}
+	}
+	
+	private static OutputStream closeSection(OutputStream osSection) throws IOException {
+		if (osSection != null)
+			osSection.close();
+		return null;
 	}
 	
 	private static class BatchJob implements Runnable {
 		private SimpleLogger log = null;
 		private String sFilename;
+		private int iDeckNumber;
 		private String sParseError;
 		private int iJobNumber;
-		private String sJob;
+		private ArrayList<Object> alDeck;
 		private String sJobComments;
 		private String sCompilerLang;
 		private String sPgmName;
-		private String sPgmCode;
-		private String sInputData;
+		private File fTmpDir;
+		private File fProgram;
+		private File fInputData;
+		private String sPgmHash;
+		private String sInputHash = null;
+		private HashMap<String,String> hmJobParms = new HashMap<String,String>();
 		private Date dtRun = null;
+		private File fOutputFile = null;
 		private CommandRunnerResult crrCompile = null;
+		private boolean bCompileCacheHit = false;
+		private String sCompileCommand = null;
+		private String sCacheKey = null;
 		private CommandRunnerResult crrRun = null;
+		private String sResultCacheKey = null;
+		// The results came from the result cache, so there's nothing to compile or run...
+		private boolean bResultCacheHit = false;
+		// Result of the job so far; once it's non-zero, the remaining phases are skipped...
+		private int iRC = 0;
+		// Most bytes the job's commands may leave in its working directory (WorkspaceQuotaMB); 0 for no limit...
+		private final long lDirQuota = (workspacePool == null) ? 0 : workspacePool.getQuotaBytes();
+		private final CommandRunner cmdRunner = new CommandRunner(lOutputSpillThreshold, lOutputLimit, lDirQuota);
+		// Called once the job's listing is complete (RunMode Pipelined, and jobs submitted through the SubmitServer)...
+		private Runnable rWhenFinished = null;
+		// (Jobs submitted through the SubmitServer) where the listing is sent, as it's written...
+		private Writer wListingEcho = null;
+		// Identifies the input file in the journal...
+		private String sFileKey = null;
+		// What the journal said about the job, if it was in progress before a restart; otherwise null...
+		private Journal.JobRecord jrResumed = null;
+		// Time (milliseconds) spent in each phase: queue, parse, stage, compile, pacing, run, cleanup...
+		private final LinkedHashMap<String,Long> hmPhaseMillis = new LinkedHashMap<String,Long>();
+		private long lCompileStartNanos = 0;
 		
-		BatchJob(String sFilename, String sParseError, int iJobNumber, String sJob, String sJobComments, String sCompilerLang, String sPgmName, String sPgmCode, String sInputData) {
+		BatchJob(String sFilename, int iDeckNumber, String sParseError, int iJobNumber, ArrayList<Object> alDeck, String sJobComments, String sCompilerLang, String sPgmName, File fTmpDir, File fProgram, File fInputData, String sPgmHash) {
 			this.sFilename = sFilename;
+			this.iDeckNumber = iDeckNumber;
 			this.sParseError = sParseError;
 			this.iJobNumber = iJobNumber;
-			this.sJob = sJob;
+			this.alDeck = alDeck;
 			this.sJobComments = sJobComments;
 			this.sCompilerLang = sCompilerLang;
 			this.sPgmName = sPgmName;
-			this.sPgmCode = sPgmCode;
-			this.sInputData = sInputData;
+			this.fTmpDir = fTmpDir;
+			this.fProgram = fProgram;
+			this.fInputData = fInputData;
+			this.sPgmHash = sPgmHash;
+			if (sJobComments != null) {
+				Matcher m = patJobParm.matcher(sJobComments);
+				while (m.find())
+					this.hmJobParms.put(m.group(1), m.group(2));
+			}
 			this.log = new SimpleLogger(this.getClass().getSimpleName()+":"+sFilename+":"+String.format("%04d", iJobNumber)+":"+Thread.currentThread().getName());
 		}
 		
@@ -204,136 +601,495 @@ public class BatchSimulator {
 			StringBuffer sb = new StringBuffer();
 			sb.append("[").append(this.getClass().getSimpleName()).append(":");
 			sb.append(" Filename=").append(this.sFilename);
+			sb.append(" DeckNumber=").append(this.iDeckNumber);
 			sb.append(" JobNumber=").append(this.iJobNumber);
 			sb.append(" Thread=").append(Thread.currentThread().getName());
 			sb.append(" ]");
 			return sb.toString();
 		}
 		
+		/**
+		 * Determine this job's time limit for a phase: the job's own COMPILETIME= or RUNTIME= parameter (seconds), if
+		 * any, capped at MaxTimeLimit; otherwise <Phase>TimeLimit.<Lang> or <Phase>TimeLimit from the properties file
+		 * @param sPhase "Compile" or "Run"
+		 * @return time limit in milliseconds; 0 for no limit
+		 */
+		private long getTimeLimitMillis(String sPhase) {
+			long lLimit = Long.parseLong(props.getProperty(sPhase+"TimeLimit."+this.sCompilerLang, props.getProperty(sPhase+"TimeLimit", "0")));
+			String sJobParm = sPhase.toUpperCase()+"TIME";
+			String sJobLimit = this.hmJobParms.get(sJobParm);
+			if (sJobLimit != null) {
+				long lMaxLimit = Long.parseLong(props.getProperty("MaxTimeLimit", "300"));
+				try {
+					lLimit = Math.min(Math.max(1, Long.parseLong(sJobLimit)), lMaxLimit);
+				} catch (NumberFormatException e) {
+					log.log("WARNING: Ignoring invalid $JOB parameter "+sJobParm+"="+sJobLimit+" (expecting a number of seconds)");
+				}
+			}
+			return 1000*lLimit;
+		}
+		
 		public void run() {
+			if (begin()) {
+				compile();
+				execute();
+			}
+			finish();
+		}
+		
+		/**
+		 * Add the time since lStartNanos (from System.nanoTime()) to the time spent in a phase
+		 */
+		private void timePhase(String sPhase, long lStartNanos) {
+			Long lMillis = hmPhaseMillis.get(sPhase);
+			hmPhaseMillis.put(sPhase, (lMillis == null ? 0 : lMillis) + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lStartNanos));
+		}
+		
+		/**
+		 * First phase of running the job: start its listing, with the banner, the job input, and (if it parsed cleanly)
+		 * its program code and input data
+		 * @return false if the job can't be run (e.g. it had a parse error); the remaining phases then do nothing
+		 */
+		boolean begin() {
+			long lStartNanos = System.nanoTime();
+			try {
+				if (!startListing())
+					return false;
+				if (resultCache != null)
+					lookUpResult();
+				return true;
+			} finally {
+				timePhase("stage", lStartNanos);
+			}
+		}
+		
+		private boolean startListing() {
 			log.log("run() starting...");
 			// Set the date/time that we are starting this execution...
 			this.dtRun = new Date();
 			// Build the output filename...
 			String sOutputFilename =
-				sdfRunDTOutputFilename.format(this.dtRun)
+				sdfRunDTOutputFilename.get().format(this.dtRun)
 				+"_"+String.format("%04d", iJobNumber)
 				+"_"+this.sFilename
 			;
-			File fOutputFile = new File(alfSpoolDir.get("Output"), sOutputFilename);
+			this.fOutputFile = new File(alfSpoolDir.get("Output"), sOutputFilename);
+			// Replace the listing left unfinished by a restart, if any...
+			if (this.jrResumed != null && !this.jrResumed.sListing.isEmpty() && new File(this.jrResumed.sListing).delete())
+				log.log("Deleted the unfinished listing '"+this.jrResumed.sListing+"' of this job, from before the restart.");
+			if (journal != null)
+				journal.record(Journal.Event.STAGED, sFileKey, iDeckNumber, iJobNumber, fOutputFile.getAbsolutePath());
 			// Set the log to write to the output file (in addition to STDOUT)...
-			log.setLogFile(fOutputFile);
+			log.setLogFile(fOutputFile, wListingEcho);
 			// Write a block banner at the top, summarizing all characteristics of this job...
 			log.log(
 				"Running BatchJob with:"+sNL
 				+"  JobNumber: "+this.iJobNumber+sNL
 				+"  Filename: "+this.sFilename+sNL
+				+"  DeckNumber: "+this.iDeckNumber+sNL
 				+"  JobComments: "+this.sJobComments+sNL
+				+(this.hmJobParms.isEmpty() ? "" : "  JobParms: "+this.hmJobParms+sNL)
 				, LogFormat.Banner
 			);
 
-			// Log the raw job input...
+			// Log the raw job input (control cards, and the files the rest of the deck was spooled to)...
 			log.log("Job input:");
-			log.log(sNL+this.sJob+sNL+" "+sNL, LogFormat.Raw);
+			log.log("", LogFormat.Raw);
+			for (Object oCard : this.alDeck) {
+				if (oCard instanceof File)
+					log.logFile((File) oCard, LogFormat.Raw);
+				else
+					log.log((String) oCard, LogFormat.Raw);
+			}
+			log.log(" ", LogFormat.Raw);
 			
 			// If there was an error parsing this job, just create the log file containing as much as we know about
 			// the error
 			if (this.sParseError != null) {
 				log.log("Run aborted due to job parsing error: " + this.sParseError);
-				log.log("run() done.");
-				// Set the log back to just writing to STDOUT...
-				log.setLogFile(null);
-				return;
+				this.iRC = 16;
+				return false;
 			}
 			
-			int iRC = 0;
-			CommandRunner cmdRunner = new CommandRunner();
-			
+			// The program and input data were spooled to the temp directory while the job was parsed. A deck which
+			// ended early may not have them; run with what there is...
+			try {
+				if (this.fInputData == null) {
+					this.fInputData = new File(fTmpDir, "INPUTDATA.txt");
+					this.fInputData.createNewFile();
+				}
+			} catch (IOException e) {
+				log.log("ERROR: Unable to create input data file '"+this.fInputData.getAbsolutePath()+"': "+e.toString());
+				this.iRC = 16;
+			}
 			log.log(this.sCompilerLang+" program code");
-			log.log(this.sPgmCode, LogFormat.WithLineNumbers);
+			log.logFile(this.fProgram, LogFormat.WithLineNumbers);
 			log.log("Input data");
-			log.log(this.sInputData, LogFormat.WithLineNumbers);
-			
-			// Create a temporary directory, and put the program and input-data files into it...
-			log.log("Spooling program and data to disk...");
-			String sSysTmpDir = System.getProperty("java.io.tmpdir");
-			String sTmpDirName = "BatchSimulator"+System.currentTimeMillis()+".tmp";
-			File fTmpDir = new File(sSysTmpDir, sTmpDirName);
-			if (!fTmpDir.mkdirs()) {
-				log.log("ERROR: Unable to create temp directory '"+fTmpDir.getAbsolutePath()+"! Unable to run program!");
-				iRC = 16;
+			log.logFile(this.fInputData, LogFormat.WithLineNumbers);
+			if (this.iRC != 0)
+				return false;
+			log.log("Temp directory '"+fTmpDir.getAbsolutePath()+"' holds the spooled program and data.");
+			log.log("Wrote "+sCompilerLang+" program to: '"+fProgram.getAbsolutePath()+"'.");
+			log.log("Wrote input data to: '"+fInputData.getAbsolutePath()+"'.");
+			return true;
+		}
+		
+		/**
+		 * Look for the job's results in the result cache (unless it says CACHE=NO). If they're there, they go in the
+		 * listing (marked as cached), and the compile and execute phases do nothing
+		 */
+		private void lookUpResult() {
+			if ("NO".equalsIgnoreCase(this.hmJobParms.get("CACHE"))) {
+				log.log("CACHE=NO: not using the result cache for this job.");
+				return;
+			}
+			if (this.sPgmHash == null)
+				return;
+			String sToolchain;
+			if (sCompilerLang.equals("JAVA"))
+				sToolchain = (isCompiledInProcess() ? inProcessJavaCompiler.getVersion() : CompileCache.getToolVersion("javac -version"))+CompileCache.getToolVersion("java -version");
+			else if (sCompilerLang.equals("C"))
+				sToolchain = CompileCache.getToolVersion("gcc --version");
+			else
+				sToolchain = CompileCache.getToolVersion("python3 --version");
+			sResultCacheKey = ResultCache.makeKey(sCompilerLang, sPgmName, sPgmHash, sInputHash, sToolchain, getTimeLimitMillis("Compile"), getTimeLimitMillis("Run"));
+			ResultCache.Result result = resultCache.lookup(sResultCacheKey, fTmpDir);
+			if (metrics != null)
+				metrics.increment("batchsim_result_cache_total", 1, "lang", sCompilerLang, "outcome", (result == null) ? "miss" : "hit");
+			if (result == null)
+				return;
+			this.bResultCacheHit = true;
+			log.log(
+				"CACHED RESULT: from a run of this program, with this input data,"+sNL
+				+"  at "+sdfLastMod.get().format(new Date(result.lStoredMillis))+". Nothing was compiled or run this time."+sNL
+				, LogFormat.Banner
+			);
+			if (result.crrCompile != null) {
+				this.crrCompile = result.crrCompile;
+				logCompileResult(" (cached)");
+			}
+			if (result.crrRun != null) {
+				this.crrRun = result.crrRun;
+				logRunResult(" (cached)");
+			}
+		}
+		
+		/**
+		 * @return true if the job's results may go in the result cache: it was compiled (if need be) and run, or failed
+		 * to compile, within its time and output limits
+		 */
+		private boolean isResultCacheable() {
+			if (sCompilerLang.matches("(JAVA|C)")) {
+				if (this.crrCompile == null || this.crrCompile.isCutShort())
+					return false;
+				if (this.crrCompile.iRC != 0)
+					return true;
+			}
+			return this.crrRun != null && !this.crrRun.isCutShort();
+		}
+		
+		/**
+		 * Second phase: compile the program, if its language needs it (unless the same program has been compiled
+		 * before, and is in the compile cache)
+		 */
+		void compile() {
+			if (startCompile())
+				runCompile();
+		}
+		
+		/**
+		 * Get ready to compile the program, checking the compile cache first
+		 * @return true if the program needs compiling (by runCompile(), or by the Java compile batcher, and then endCompile())
+		 */
+		boolean startCompile() {
+			if (this.iRC != 0 || this.bResultCacheHit || !sCompilerLang.matches("(JAVA|C)"))
+				return false;
+			lCompileStartNanos = System.nanoTime();
+			// If it was compiled before a restart, and the compiled program is still there, there's no need to compile it again...
+			if (this.jrResumed != null && this.jrResumed.iCompileRC == 0
+				&& new File(fTmpDir, sPgmName+(sCompilerLang.equals("JAVA") ? ".class" : "")).exists()) {
+				log.log("The program was compiled before the restart, and the compiled program is still there. Skipping compilation.");
+				return false;
 			}
-			
 			try {
-				if (iRC == 0) {
-					log.log("Temp directory '"+fTmpDir.getAbsolutePath()+"' created.");
-					File fProgram = new File(fTmpDir, sPgmName+"."+sCompilerLang.toLowerCase());
-					FileWriter fwProgram;
-					fwProgram = new FileWriter(fProgram);
-					fwProgram.write(sPgmCode);
-					fwProgram.close();
-					log.log("Wrote "+sCompilerLang+" program to: '"+fProgram.getAbsolutePath()+"'.");
-					File fInputData = new File(fTmpDir, "INPUTDATA.txt");
-					FileWriter fwInputData = new FileWriter(fInputData);
-					fwInputData.write(sInputData);
-					fwInputData.close();
-					log.log("Wrote input data to: '"+fInputData.getAbsolutePath()+"'.");
-					
-					// Compile the program...
-					if (sCompilerLang.matches("(JAVA|C)")) {
-						log.log("Compiling "+sCompilerLang+" program...");
-						if (sCompilerLang.equals("JAVA")) {
-							this.crrCompile = cmdRunner.runCommand("javac "+sPgmName+".java", fTmpDir);
-						} else if (sCompilerLang.equals("C")) {
-							this.crrCompile = cmdRunner.runCommand("gcc -o "+sPgmName+" "+sPgmName+".c", fTmpDir);
-						}
-						log.log("Compilation command result:");
-						log.log(this.crrCompile.toString());
-						if (crrCompile.iRC == 0) {
-							log.log("Compilation successful!");
-						} else {
-							log.log("Compilation unsuccessful!");
-						}
-						iRC = this.crrCompile.iRC;
-					}
-					
-					// Execute the program (but only if it compiled cleanly)...
-					if (iRC == 0) {
-						log.log("Executing program...");
-						if (sCompilerLang.equals("PY")) {
-							this.crrRun = cmdRunner.runCommand("python3 "+sPgmName+".py < "+fInputData.getName(), fTmpDir);
-						} else if (sCompilerLang.equals("JAVA")) {
-							this.crrRun = cmdRunner.runCommand("java "+sPgmName+" < "+fInputData.getName(), fTmpDir);
-						} else if (sCompilerLang.equals("C")) {
-							this.crrRun = cmdRunner.runCommand("./"+sPgmName+" < "+fInputData.getName(), fTmpDir);
-						} else {
-							throw new IllegalArgumentException("Unrecognized language: "+sCompilerLang);
-						}
-						log.log("Program execution result:");
-						log.log(this.crrRun.toString());
-						iRC = this.crrRun.iRC;
-						if (crrRun.iRC == 0) {
-							log.log("Program execution successful!");
-						} else {
-							log.log("Program execution unsuccessful!");
-						}
+				String sCompilerVersionCommand = null;
+				if (sCompilerLang.equals("JAVA")) {
+					sCompileCommand = "javac "+sPgmName+".java";
+					sCompilerVersionCommand = "javac -version";
+				} else if (sCompilerLang.equals("C")) {
+					sCompileCommand = "gcc -o "+sPgmName+" "+sPgmName+".c";
+					sCompilerVersionCommand = "gcc --version";
+				}
+				if (compileCache != null) {
+					String sToolchain = isCompiledInProcess() ? inProcessJavaCompiler.getVersion() : CompileCache.getToolVersion(sCompilerVersionCommand);
+					sCacheKey = CompileCache.makeKey(sCompilerLang, sPgmName, sCompileCommand, sToolchain, sPgmHash);
+					CommandRunnerResult crr = compileCache.lookup(sCacheKey, fTmpDir);
+					if (crr != null) {
+						this.bCompileCacheHit = true;
+						log.log("Found "+sCompilerLang+" program in the compile cache. Skipping compilation.");
+						endCompile(crr, null);
+						return false;
 					}
-					
-					// Clean up...
-					log.log("Cleaning up...");
-					new File(fTmpDir, sPgmName+".class").delete();
-					fProgram.delete();
-					fInputData.delete();
-					fTmpDir.delete();
 				}
+				log.log("Compiling "+sCompilerLang+" program...");
+				timePhase("compile", lCompileStartNanos);
+				return true;
+			} catch (Exception e) {
+				endCompile(null, e);
+				return false;
+			}
+		}
+		
+		/**
+		 * @return true if the program is compiled by the in-process Java compiler (so may be batched with others)
+		 */
+		boolean isCompiledInProcess() {
+			return sCompilerLang.equals("JAVA") && inProcessJavaCompiler != null;
+		}
+		
+		/**
+		 * @return the program's source code
+		 */
+		String readProgram() throws IOException {
+			return new String(Files.readAllBytes(fProgram.toPath()), StandardCharsets.UTF_8);
+		}
+		
+		/**
+		 * Compile the program (in this thread), after startCompile()
+		 */
+		void runCompile() {
+			lCompileStartNanos = System.nanoTime();
+			try {
+				CommandRunnerResult crr;
+				if (isCompiledInProcess() && javaCompileBatcher != null)
+					crr = javaCompileBatcher.submit(sPgmName, readProgram(), fTmpDir, getTimeLimitMillis("Compile")).get();
+				else if (isCompiledInProcess())
+					crr = inProcessJavaCompiler.compile(sPgmName, readProgram(), fTmpDir, getTimeLimitMillis("Compile"));
+				else
+					crr = cmdRunner.runCommand(sCompileCommand, fTmpDir, getTimeLimitMillis("Compile"));
+				endCompile(crr, null);
+			} catch (Exception e) {
+				endCompile(null, (e instanceof ExecutionException) ? e.getCause() : e);
+			}
+		}
+		
+		/**
+		 * Compile the program in the Java compile batcher, after startCompile(); endCompile() is called once it's done
+		 * @return completes once the program is compiled (or fails to)
+		 */
+		CompletableFuture<CommandRunnerResult> submitCompile() throws IOException, InterruptedException {
+			lCompileStartNanos = System.nanoTime();
+			return javaCompileBatcher.submit(sPgmName, readProgram(), fTmpDir, getTimeLimitMillis("Compile"));
+		}
+		
+		/**
+		 * Something went wrong outside the job's own program (a bug, or an unexpected I/O failure): log it, and fail the
+		 * job, so that the remaining phases skip it, but it is still finished and published
+		 * @param sWhile what was being done (e.g. "compiling")
+		 * @param t what was thrown
+		 */
+		void fail(String sWhile, Throwable t) {
+			log.log("Caught exception "+sWhile+" job: "+t.toString());
+			t.printStackTrace();
+			this.iRC = 16;
+		}
+		
+		/**
+		 * Finish compiling the program: remember and log the result
+		 * @param crr result of compiling the program (or of finding it in the compile cache); null if t is given
+		 * @param t exception thrown while compiling it; otherwise null
+		 */
+		void endCompile(CommandRunnerResult crr, Throwable t) {
+			timePhase("compile", lCompileStartNanos);
+			if (t != null) {
+				log.log("Caught exception running job: "+t.toString());
+				t.printStackTrace();
+				this.iRC = 16;
+			} else {
+				this.crrCompile = crr;
+				// Remember the result for next time (unless it was cut short, or came from the cache)...
+				if (compileCache != null && !this.bCompileCacheHit && !this.crrCompile.isCutShort())
+					compileCache.store(sCacheKey, fTmpDir, Arrays.asList(fProgram.getName(), fInputData.getName()), this.crrCompile);
+				logCompileResult("");
+			}
+			if (journal != null)
+				journal.record(Journal.Event.COMPILED, sFileKey, iDeckNumber, iJobNumber, ""+this.iRC);
+		}
+		
+		/**
+		 * Log the result of compiling the program, and take its return code as the job's
+		 * @param sNote added to the heading (e.g. " (cached)")
+		 */
+		private void logCompileResult(String sNote) {
+			log.log("Compilation command result"+sNote+":");
+			this.crrCompile.logTo(log);
+			if (crrCompile.iRC == 0) {
+				log.log("Compilation successful!");
+			} else if (crrCompile.bTimedOut) {
+				log.log("Compilation unsuccessful: time limit exceeded!");
+			} else if (crrCompile.lOutputLimitBytes > 0) {
+				log.log("Compilation unsuccessful: output limit exceeded!");
+			} else if (crrCompile.lDirQuotaBytes > 0) {
+				log.log("Compilation unsuccessful: disk quota exceeded!");
+			} else {
+				log.log("Compilation unsuccessful!");
+			}
+			this.iRC = this.crrCompile.iRC;
+		}
+		
+		/**
+		 * Third phase: execute the program (but only if it compiled cleanly)
+		 */
+		void execute() {
+			if (this.iRC != 0 || this.bResultCacheHit)
+				return;
+			JobPacer.Slot slot = null;
+			long lRunStartNanos = System.nanoTime();
+			try {
+				// Wait for our turn (while the jobs behind us are parsed and compiled)...
+				slot = jobPacer.awaitTurn();
+				timePhase("pacing", lRunStartNanos);
+				lRunStartNanos = System.nanoTime();
+				log.log("Executing program...");
+				long lRunTimeLimitMillis = getTimeLimitMillis("Run");
+				if (sCompilerLang.equals("PY")) {
+					if (pythonWorkerPool != null)
+						this.crrRun = pythonWorkerPool.run(fTmpDir, sPgmName+".py", fInputData, lRunTimeLimitMillis, lOutputLimit, lDirQuota);
+					// No prestarted interpreter (or none available), so start one of its own...
+					if (this.crrRun == null)
+						this.crrRun = cmdRunner.runCommand("python3 "+sPgmName+".py < "+fInputData.getName(), fTmpDir, lRunTimeLimitMillis);
+				} else if (sCompilerLang.equals("JAVA")) {
+					if (javaWorkerPool != null)
+						this.crrRun = javaWorkerPool.run(fTmpDir, sPgmName, fInputData, lRunTimeLimitMillis, lOutputLimit, lDirQuota);
+					// No warm JVM (or none available), so start one of its own...
+					if (this.crrRun == null)
+						this.crrRun = cmdRunner.runCommand("java "+sPgmName+" < "+fInputData.getName(), fTmpDir, lRunTimeLimitMillis);
+				} else if (sCompilerLang.equals("C")) {
+					this.crrRun = cmdRunner.runCommand("./"+sPgmName+" < "+fInputData.getName(), fTmpDir, lRunTimeLimitMillis);
+				} else {
+					throw new IllegalArgumentException("Unrecognized language: "+sCompilerLang);
+				}
+				logRunResult("");
 			} catch (Exception e) {
 				log.log("Caught exception running job: "+e.toString());
 				e.printStackTrace();
+				this.iRC = 16;
+			} finally {
+				if (slot != null) {
+					timePhase("run", lRunStartNanos);
+					long lCostMillis = (this.crrCompile == null ? 0 : this.crrCompile.lElapsedMillis) + (this.crrRun == null ? 0 : this.crrRun.lElapsedMillis);
+					jobPacer.jobDone(slot, lCostMillis);
+				}
 			}
+			if (journal != null)
+				journal.record(Journal.Event.RAN, sFileKey, iDeckNumber, iJobNumber, ""+this.iRC);
+		}
+		
+		/**
+		 * Log the result of running the program, and take its return code as the job's
+		 * @param sNote added to the heading (e.g. " (cached)")
+		 */
+		private void logRunResult(String sNote) {
+			log.log("Program execution result"+sNote+":");
+			this.crrRun.logTo(log);
+			this.iRC = this.crrRun.iRC;
+			if (crrRun.iRC == 0) {
+				log.log("Program execution successful!");
+			} else if (crrRun.bTimedOut) {
+				log.log("Program execution unsuccessful: time limit exceeded!");
+			} else if (crrRun.lOutputLimitBytes > 0) {
+				log.log("Program execution unsuccessful: output limit exceeded!");
+			} else if (crrRun.lDirQuotaBytes > 0) {
+				log.log("Program execution unsuccessful: disk quota exceeded!");
+			} else {
+				log.log("Program execution unsuccessful!");
+			}
+		}
+		
+		/**
+		 * Last phase: clean up, and finish the listing
+		 */
+		void finish() {
+			long lStartNanos = System.nanoTime();
+			// Remember how long it took, to estimate how long it will take next time (cached results took no time)...
+			if (jobHistory != null && this.sParseError == null && this.sPgmHash != null) {
+				long lCompileMillis = (this.crrCompile == null || this.bCompileCacheHit || this.bResultCacheHit) ? 0 : this.crrCompile.lElapsedMillis;
+				long lRunMillis = (this.crrRun == null || this.bResultCacheHit) ? 0 : this.crrRun.lElapsedMillis;
+				jobHistory.record(this.sCompilerLang, this.sPgmName, this.sPgmHash, lCompileMillis, lRunMillis);
+			}
+			// Remember the results for next time (unless they came from the cache)...
+			if (this.sResultCacheKey != null && !this.bResultCacheHit && isResultCacheable())
+				resultCache.store(this.sResultCacheKey, this.crrCompile, this.crrRun);
+			log.log("Cleaning up...");
+			if (this.fTmpDir != null)
+				releaseWorkDir(this.fTmpDir);
+			// Discard the captured output (it's in the listing now)...
+			long lOutputBytes = 0;
+			if (this.crrCompile != null) {
+				lOutputBytes += this.crrCompile.getSTDOUTLength() + this.crrCompile.getSTDERRLength();
+				this.crrCompile.release();
+			}
+			if (this.crrRun != null) {
+				lOutputBytes += this.crrRun.getSTDOUTLength() + this.crrRun.getSTDERRLength();
+				this.crrRun.release();
+			}
+			timePhase("cleanup", lStartNanos);
+			reportStatistics(lOutputBytes);
 			
 			log.log("run() done.");
 			// Set the log back to just writing to STDOUT...
 			log.setLogFile(null);
+			if (outputArchive != null && this.fOutputFile != null)
+				outputArchive.add(this.fOutputFile, this.iRC);
+			if (journal != null)
+				journal.record(Journal.Event.PUBLISHED, sFileKey, iDeckNumber, iJobNumber, "");
+		}
+		
+		/**
+		 * Write the job's statistics (time spent in each phase, and the resources its compile and run used) to its
+		 * listing, and record them in the metrics
+		 * @param lOutputBytes bytes of output (STDOUT and STDERR) written by the compile and run
+		 */
+		private void reportStatistics(long lOutputBytes) {
+			long lCpuMillis = -1;
+			long lPeakRssBytes = -1;
+			for (CommandRunnerResult crr : Arrays.asList(this.crrCompile, this.crrRun)) {
+				// (A cached compile, or cached results, used nothing)...
+				if (crr == null || this.bResultCacheHit || (crr == this.crrCompile && this.bCompileCacheHit))
+					continue;
+				if (crr.lCpuMillis >= 0)
+					lCpuMillis = Math.max(lCpuMillis, 0) + crr.lCpuMillis;
+				lPeakRssBytes = Math.max(lPeakRssBytes, crr.lPeakRssBytes);
+			}
+			StringBuilder sb = new StringBuilder("Job statistics:"+sNL);
+			for (Map.Entry<String,Long> me : hmPhaseMillis.entrySet())
+				sb.append(String.format("  %-8s %9.3f seconds", me.getKey()+":", me.getValue()/1000.0)).append(sNL);
+			if (lCpuMillis >= 0)
+				sb.append(String.format("  %-8s %9.3f seconds", "cpu:", lCpuMillis/1000.0)).append(sNL);
+			if (lPeakRssBytes >= 0)
+				sb.append(String.format("  %-8s %9d KB", "memory:", lPeakRssBytes/1024)).append(sNL);
+			sb.append(String.format("  %-8s %9d bytes", "output:", lOutputBytes));
+			log.log(sb.toString());
+			if (metrics == null)
+				return;
+			String sLang = (this.sCompilerLang == null) ? "none" : this.sCompilerLang;
+			for (Map.Entry<String,Long> me : hmPhaseMillis.entrySet())
+				metrics.observe("batchsim_phase_seconds", me.getValue()/1000.0, "phase", me.getKey(), "lang", sLang);
+			if (lCpuMillis >= 0)
+				metrics.observe("batchsim_job_cpu_seconds", lCpuMillis/1000.0, "lang", sLang);
+			if (lPeakRssBytes >= 0)
+				metrics.observe("batchsim_job_peak_memory_bytes", lPeakRssBytes, "lang", sLang);
+			metrics.observe("batchsim_job_output_bytes", lOutputBytes, "lang", sLang);
+			String sResult;
+			if (this.sParseError != null)
+				sResult = "parse_error";
+			else if (this.crrRun != null)
+				sResult = this.crrRun.bTimedOut ? "run_timeout" : (this.crrRun.iRC == 0 ? "ok" : "run_error");
+			else if (this.crrCompile != null && this.crrCompile.iRC != 0)
+				sResult = this.crrCompile.bTimedOut ? "compile_timeout" : "compile_error";
+			else
+				sResult = (this.iRC == 0) ? "ok" : "error";
+			metrics.increment("batchsim_jobs_total", 1, "lang", sLang, "result", sResult);
 		}
 	}
 
@@ -343,6 +1099,13 @@ public class BatchSimulator {
 		InputStream isProperties = BatchSimulator.class.getResourceAsStream("/"+sPropFileName);
 		props.load(isProperties);
 		log.log("Properties loaded from "+urlProperties);
+		// Any property may be overridden by a system property, e.g. -DBatchSimulator.RunMode=Pipelined...
+		for (String sName : System.getProperties().stringPropertyNames()) {
+			if (sName.startsWith(sPropOverridePrefix)) {
+				props.setProperty(sName.substring(sPropOverridePrefix.length()), System.getProperty(sName));
+				log.log("Property "+sName.substring(sPropOverridePrefix.length())+" overridden by system property "+sName+".");
+			}
+		}
 		log.log("Values: "+props.toString());
 	}
 	
@@ -380,7 +1143,7 @@ public class BatchSimulator {
 				// Sort by last-modified, oldest first...
 				Collections.sort(alf, new Comparator<File>() {
 					public int compare(File f1, File f2) {
-						return (int) (f1.lastModified() - f2.lastModified());
+						return Long.compare(f1.lastModified(), f2.lastModified());
 					}
 				});
 				// Display the files...
@@ -389,7 +1152,7 @@ public class BatchSimulator {
 				for (File f : alf) {
 					log.log(String.format(
 						"  %s %6d %s",
-						sdfLastMod.format(f.lastModified()),
+						sdfLastMod.get().format(f.lastModified()),
 						f.length(),
 						f.getName()
 					));
@@ -404,11 +1167,452 @@ public class BatchSimulator {
 		return alf;
 	}
 	
-	public static void waitBetweenJobs() {
-		// Delay for a bit, to simulate an actual slow computer...
-		log.log("Taking a short ("+iWaitAfterEachJob+" second) break...");
-		try { Thread.sleep(1000*iWaitAfterEachJob); } catch (InterruptedException e) { /* Ignore */ }
-		log.log("Now I'm well rested. Going back for more work...");
+	/**
+	 * Run each of the jobs in an input spool file, as it is parsed, then delete the file (if it was all read)
+	 */
+	private static void runSpoolFile(File f) throws Exception {
+		log.log("Processing BatchJob file: "+f.getAbsolutePath());
+		BatchJobReader bjr;
+		try {
+			bjr = new BatchJobReader(f);
+		} catch (IOException e) {
+			log.log("ERROR: Unable to open BatchJob file '"+f.getAbsolutePath()+"': "+e.toString());
+			keepSpoolFile(f);
+			return;
+		}
+		try {
+			BatchJob bj;
+			while ((bj = bjr.next()) != null)
+				runJob(bj);
+		} finally {
+			bjr.close();
+			if (bjr.isComplete())
+				deleteSpoolFile(f);
+			else
+				keepSpoolFile(f);
+		}
+	}
+	
+	/**
+	 * Run a job; if it throws, the job is failed (and its listing closed), rather than the simulator stopping
+	 */
+	private static void runJob(BatchJob bj) {
+		try {
+			bj.run();
+		} catch (RuntimeException e) {
+			bj.fail("running", e);
+			bj.log.setLogFile(null);
+		}
+	}
+	
+	/**
+	 * Drop one reference to an input spool file whose jobs are being run by the worker pool; when the last one is
+	 * dropped, delete the file (or, if it wasn't all read, keep it)
+	 * @param abReadAll set once the file has been read to the end without error
+	 */
+	private static void releaseSpoolFile(File f, AtomicInteger aiFileRefs, AtomicBoolean abReadAll, Set<File> sfInProgress) {
+		if (aiFileRefs.decrementAndGet() == 0) {
+			if (abReadAll.get())
+				deleteSpoolFile(f);
+			else
+				keepSpoolFile(f);
+			sfInProgress.remove(f);
+		}
+	}
+	
+	/**
+	 * Leave an input spool file which couldn't be read to the end where it is, rather than lose the jobs in it which
+	 * haven't been run. The index forgets it was taken, so that it's looked at again (at its next rescan).
+	 */
+	private static void keepSpoolFile(File f) {
+		log.log("ERROR: BatchJob file '"+f.getAbsolutePath()+"' was not read to the end. Not deleting it.");
+		if (spoolIndex != null)
+			spoolIndex.forget(f);
+	}
+	
+	/**
+	 * If the spool is shared, claim an input file for this instance (moving it out of the input queue)
+	 * @return the file to process (where it now is); null if another instance claimed it first, or it's gone
+	 */
+	private static File claimSpoolFile(File f) throws IOException {
+		// (The file may have been deleted since it was queued)...
+		File fClaimed;
+		try {
+			fClaimed = (spoolClaimer == null) ? (f.exists() ? f : null) : spoolClaimer.claim(f);
+		} catch (IOException e) {
+			// It's still in the input queue; let the index look at it again...
+			if (spoolIndex != null)
+				spoolIndex.forget(f);
+			throw e;
+		}
+		// Once it has left the input queue, the index needn't hold it out of the queue any longer...
+		if (spoolIndex != null && fClaimed != f)
+			spoolIndex.forget(f);
+		return fClaimed;
+	}
+	
+	private static void deleteSpoolFile(File f) {
+		log.log("Done with BatchJob file: "+f.getAbsolutePath()+". Deleting it...");
+		String sFileKey = Journal.fileKey(f);
+		log.log("Deleting BatchJob file: "+f.getAbsolutePath()+"...");
+		log.log(f.delete() ? "File deleted successfully." : "Error deleting file. Unable to delete!");
+		if (journal != null)
+			journal.record(Journal.Event.FILEDONE, sFileKey, 0, 0, "");
+		if (spoolIndex != null)
+			spoolIndex.forget(f);
+	}
+	
+	/**
+	 * Start watching the input queue for new files (and for the stop-command file), per IntakeMode, and index it
+	 */
+	private static void startSpoolWatcher() {
+		IntakeMode intakeMode = IntakeMode.valueOf(props.getProperty("IntakeMode", "Watch"));
+		long lSettleMillis = Long.parseLong(props.getProperty("IntakeSettleMillis", "500"));
+		long lRescanMillis = 1000*Long.parseLong(props.getProperty("IntakeRescanSeconds", "60"));
+		log.log("IntakeMode: "+intakeMode+", IntakeSettleMillis: "+lSettleMillis+", IntakeRescanSeconds: "+lRescanMillis/1000);
+		swInput = new SpoolWatcher(alfSpoolDir.get("Input"), sStopCommandFilename, lSettleMillis);
+		swInput.start(intakeMode.equals(IntakeMode.Watch));
+		spoolIndex = new SpoolIndex(alfSpoolDir.get("Input"), swInput, queuePolicy,
+			new HashSet<String>(Arrays.asList(sStopCommandFilename, sStatusCommandFilename)), lRescanMillis);
+		log.log("Create file '"+sStatusCommandFilename+"' to list the input queue.");
+	}
+	
+	/**
+	 * If the status-command file has been created, log the input queue, then delete the file
+	 */
+	private static void checkStatusCommand() {
+		File fStatus = new File(alfSpoolDir.get("Input"), sStatusCommandFilename);
+		if (fStatus.exists()) {
+			log.log("Status-command file '"+sStatusCommandFilename+"' found.");
+			spoolIndex.logStatus();
+			fStatus.delete();
+		}
+	}
+	
+	/**
+	 * Start accepting jobs over a socket, if SubmitPort is set
+	 */
+	private static void startSubmitServer() {
+		String sSubmitPort = props.getProperty("SubmitPort", "").trim();
+		int iSubmitPort = sSubmitPort.isEmpty() ? 0 : Integer.parseInt(sSubmitPort);
+		if (iSubmitPort <= 0)
+			return;
+		try {
+			submitServer = new SubmitServer(new SubmitServer.Handler() {
+					public List<String> submit(String sName, byte[] abDeck, List<SubmitServer.ListingStream> alListings) throws Exception {
+						return submitDecks(sName, abDeck, alListings);
+					}
+				},
+				props.getProperty("SubmitBindAddress", "127.0.0.1"), iSubmitPort,
+				Integer.parseInt(props.getProperty("SubmitThreads", "4")),
+				1024*Integer.parseInt(props.getProperty("SubmitMaxKB", "1024")));
+		} catch (IOException e) {
+			// (e.g. the port is in use) The input spool directory still works...
+			log.log("ERROR: Unable to accept jobs on port "+iSubmitPort+" (SubmitPort): "+e.toString()+"; carrying on without.");
+		}
+	}
+	
+	/**
+	 * Parse decks submitted through the SubmitServer and, if they all parsed cleanly, queue their jobs
+	 * @return the parse errors, if any (in which case nothing is queued)
+	 */
+	private static List<String> submitDecks(String sName, byte[] abDeck, List<SubmitServer.ListingStream> alListings) throws Exception {
+		// (Identifies the submission in the journal, as if it were a file; after a restart, it's forgotten)...
+		final String sFileKey = sName+"|"+abDeck.length+"|"+System.currentTimeMillis();
+		ArrayList<BatchJob> albj = new ArrayList<BatchJob>();
+		ArrayList<String> alsErrors = new ArrayList<String>();
+		try (BatchJobReader bjr = new BatchJobReader(sName, sFileKey, "submitted '"+sName+"'", new ByteArrayInputStream(abDeck), 0)) {
+			BatchJob bj;
+			while ((bj = bjr.next()) != null) {
+				albj.add(bj);
+				if (bj.sParseError != null)
+					alsErrors.add("Deck "+bj.iDeckNumber+": "+bj.sParseError);
+			}
+		}
+		// Once all of its jobs are done, the submission is done with...
+		final AtomicInteger aiJobsLeft = new AtomicInteger(albj.size());
+		Runnable rJobDone = new Runnable() {
+			public void run() {
+				if (aiJobsLeft.decrementAndGet() == 0 && journal != null)
+					journal.record(Journal.Event.FILEDONE, sFileKey, 0, 0, "");
+			}
+		};
+		synchronized (lbqSubmitted) {
+			if (alsErrors.isEmpty() && !bSubmitOpen)
+				alsErrors.add("ERROR: Shutting down; not accepting jobs.");
+			if (!alsErrors.isEmpty()) {
+				for (BatchJob bj : albj) {
+					if (bj.fTmpDir != null)
+						releaseWorkDir(bj.fTmpDir);
+					rJobDone.run();
+				}
+				return alsErrors;
+			}
+			for (BatchJob bj : albj) {
+				SubmitServer.ListingStream ls = new SubmitServer.ListingStream();
+				bj.wListingEcho = ls;
+				bj.rWhenFinished = rJobDone;
+				alListings.add(ls);
+				lbqSubmitted.add(bj);
+			}
+		}
+		log.log("Queued "+albj.size()+" job(s) submitted as '"+sName+"'.");
+		swInput.wake();
+		return alsErrors;
+	}
+	
+	/**
+	 * Stop accepting jobs over a socket; any submitted jobs which haven't started yet aren't run (their submitters are told so)
+	 */
+	private static void stopSubmitServer() {
+		if (submitServer == null)
+			return;
+		submitServer.stop();
+		synchronized (lbqSubmitted) {
+			bSubmitOpen = false;
+			BatchJob bj;
+			while ((bj = lbqSubmitted.poll()) != null) {
+				log.log("Job "+bj.iJobNumber+" (submitted as '"+bj.sFilename+"') was not run; stopping.");
+				try {
+					bj.wListingEcho.write("Job "+bj.iJobNumber+" was not run: the batch simulator stopped before its turn."+sNL);
+					bj.wListingEcho.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+				if (bj.fTmpDir != null)
+					releaseWorkDir(bj.fTmpDir);
+				bj.rWhenFinished.run();
+			}
+		}
+	}
+	
+	/**
+	 * Create a bounded pool of worker threads for running BatchJobs
+	 * @param iThreadCount number of worker threads
+	 * @return ExecutorService whose threads are named 'BatchWorker-n'
+	 */
+	private static ExecutorService createWorkerPool(int iThreadCount) {
+		final AtomicInteger aiThreadNumber = new AtomicInteger(0);
+		ThreadFactory tf = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "BatchWorker-"+aiThreadNumber.incrementAndGet());
+			}
+		};
+		// The queue is unbounded, but the caller limits the number of outstanding jobs (see semJobSlots)...
+		return new ThreadPoolExecutor(iThreadCount, iThreadCount, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), tf);
+	}
+
+	/**
+	 * Run a job submitted through the SubmitServer; even if it fails, its submitter gets the end of its listing, and
+	 * the submission is told the job is done
+	 */
+	private static void runSubmittedJob(BatchJob bj) {
+		try {
+			bj.run();
+		} catch (RuntimeException e) {
+			bj.fail("running", e);
+		} finally {
+			// (If run() didn't get that far, closes the listing, and the submitter's copy of it)...
+			bj.log.setLogFile(null);
+			try {
+				bj.wListingEcho.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+			bj.rWhenFinished.run();
+		}
+	}
+
+	/**
+	 * RunMode Pipelined: finish a job, and release its input file, even if finishing it fails
+	 */
+	private static void publishJob(BatchJob bj) {
+		try {
+			bj.finish();
+		} catch (RuntimeException e) {
+			bj.fail("finishing", e);
+			// (Closes the listing, and the submitter's copy of it, if finish() didn't get that far)
+			bj.log.setLogFile(null);
+		} finally {
+			// Whatever happened, the job is done with its input file...
+			bj.rWhenFinished.run();
+		}
+	}
+
+	/**
+	 * RunMode Pipelined:
+	 * Like MultiThreadWaitForStop, but each job passes through a pipeline of stages, each with its own pool of threads
+	 * (<Stage>Threads: Parse, Stage, Compile, Execute, Publish) and a bounded queue (PipelineQueueDepth) in front of it:
+	 *   - Parse: parse an input file into its BatchJobs (spooling their programs and data to disk)
+	 *   - Stage: start each job's listing, and look it up in the result and compile caches
+	 *   - Compile: compile its program (JAVA, C), if it wasn't found in a cache
+	 *   - Execute: wait for its turn (see JobPacer), then run its program
+	 *   - Publish: finish its listing, clean up, and (after its file's last job) delete its input file
+	 * A full queue holds back the stage before it, so intake can't get far ahead of execution. A job which fails in any
+	 * stage (even with an unexpected exception) goes on to be published, so that its input file is always released.
+	 */
+	private static void runPipeline() throws Exception {
+		int iThreadCount = Integer.parseInt(props.getProperty("ThreadCount", "1"));
+		int iQueueDepth = Integer.parseInt(props.getProperty("PipelineQueueDepth", "2"));
+		// Files which have been handed to the pipeline, but not yet deleted from the input queue...
+		final Set<File> sfInProgress = ConcurrentHashMap.newKeySet();
+		final PipelineStage<BatchJob> psPublish = new PipelineStage<BatchJob>("Publish",
+			Integer.parseInt(props.getProperty("PublishThreads", "1")), iQueueDepth,
+			new PipelineStage.Handler<BatchJob>() {
+				public void handle(BatchJob bj) {
+					publishJob(bj);
+				}
+			});
+		final PipelineStage<BatchJob> psExecute = new PipelineStage<BatchJob>("Execute",
+			Integer.parseInt(props.getProperty("ExecuteThreads", ""+iThreadCount)), iQueueDepth,
+			new PipelineStage.Handler<BatchJob>() {
+				public void handle(BatchJob bj) throws InterruptedException {
+					try {
+						bj.execute();
+					} catch (RuntimeException e) {
+						bj.fail("executing", e);
+					}
+					psPublish.put(bj);
+				}
+			});
+		final PipelineStage<BatchJob> psCompile = new PipelineStage<BatchJob>("Compile",
+			Integer.parseInt(props.getProperty("CompileThreads", "1")), iQueueDepth,
+			new PipelineStage.Handler<BatchJob>() {
+				public void handle(final BatchJob bj) throws InterruptedException {
+					try {
+						if (!bj.isCompiledInProcess() || javaCompileBatcher == null) {
+							bj.runCompile();
+						} else {
+							// Don't wait for the batch to be compiled; the batcher hands the job on to be executed...
+							CompletableFuture<CommandRunnerResult> cfCompile;
+							try {
+								cfCompile = bj.submitCompile();
+							} catch (IOException e) {
+								bj.endCompile(null, e);
+								psExecute.put(bj);
+								return;
+							}
+							cfCompile.whenComplete(new BiConsumer<CommandRunnerResult,Throwable>() {
+								public void accept(CommandRunnerResult crr, Throwable t) {
+									bj.endCompile(crr, t);
+									try {
+										psExecute.put(bj);
+									} catch (InterruptedException e) {
+										// It can't be executed, but mustn't be lost (its input file would never be released)...
+										log.log("Interrupted handing job "+bj.iJobNumber+" on to be executed. Publishing it as it is.");
+										bj.fail("handing on", e);
+										publishJob(bj);
+										Thread.currentThread().interrupt();
+									}
+								}
+							});
+							return;
+						}
+					} catch (RuntimeException e) {
+						bj.fail("compiling", e);
+					}
+					psExecute.put(bj);
+				}
+			});
+		final PipelineStage<BatchJob> psStage = new PipelineStage<BatchJob>("Stage",
+			Integer.parseInt(props.getProperty("StageThreads", "1")), iQueueDepth,
+			new PipelineStage.Handler<BatchJob>() {
+				public void handle(BatchJob bj) throws InterruptedException {
+					// Look the job up in the caches here, so that only programs which really need compiling wait for the
+					// Compile stage...
+					boolean bRunnable = false;
+					boolean bCompile = false;
+					try {
+						bRunnable = bj.begin();
+						bCompile = bRunnable && bj.startCompile();
+					} catch (RuntimeException e) {
+						bj.fail("staging", e);
+						bRunnable = false;
+					}
+					// A job which can't be run goes straight to be published...
+					if (bCompile)
+						psCompile.put(bj);
+					else if (bRunnable)
+						psExecute.put(bj);
+					else
+						psPublish.put(bj);
+				}
+			});
+		final PipelineStage<File> psParse = new PipelineStage<File>("Parse",
+			Integer.parseInt(props.getProperty("ParseThreads", "1")), iQueueDepth,
+			new PipelineStage.Handler<File>() {
+				public void handle(final File f) throws Exception {
+					log.log("Processing BatchJob file: "+f.getAbsolutePath());
+					// The file is deleted once we're done reading it and all of its jobs are done...
+					final AtomicInteger aiFileRefs = new AtomicInteger(1);
+					final AtomicBoolean abReadAll = new AtomicBoolean(false);
+					Runnable rRelease = new Runnable() {
+						public void run() {
+							releaseSpoolFile(f, aiFileRefs, abReadAll, sfInProgress);
+						}
+					};
+					BatchJobReader bjr = null;
+					try {
+						bjr = new BatchJobReader(f);
+						BatchJob bj;
+						while ((bj = bjr.next()) != null) {
+							aiFileRefs.incrementAndGet();
+							bj.rWhenFinished = rRelease;
+							psStage.put(bj);
+						}
+					} finally {
+						if (bjr != null) {
+							bjr.close();
+							abReadAll.set(bjr.isComplete());
+						}
+						rRelease.run();
+					}
+				}
+			});
+		File fStop = new File(alfSpoolDir.get("Input"), sStopCommandFilename);
+		startSpoolWatcher();
+		startSubmitServer();
+		boolean bStopCommandReceived = false;
+		while (!bStopCommandReceived) {
+			if (swInput.isStopRequested() || fStop.exists()) {
+				bStopCommandReceived = true;
+				log.log("Stop-command file '"+sStopCommandFilename+"' found. Exiting.");
+				// Delete the stop-command file, now that we've noticed it...
+				fStop.delete();
+				stopSubmitServer();
+			} else {
+				checkStatusCommand();
+				BatchJob bjSubmitted = lbqSubmitted.poll();
+				if (bjSubmitted != null) {
+					// Jobs submitted through the SubmitServer go first (someone is waiting for them); they're already parsed...
+					psStage.put(bjSubmitted);
+					continue;
+				}
+				File fNext = spoolIndex.poll();
+				if (fNext != null) {
+					// Hand the next file to the pipeline (waiting, if the Parse stage's queue is full)...
+					File f = claimSpoolFile(fNext);
+					if (f != null) {
+						sfInProgress.add(f);
+						psParse.put(f);
+					}
+				} else {
+					log.log("No jobs in queue. Create file '"+sStopCommandFilename+"' to stop. Waiting...");
+					swInput.awaitWork(1000*iWaitForWork);
+					log.log("Done waiting. Checking for more work...");
+				}
+			}
+		}
+		// Let each stage finish whatever it has already been given, in order...
+		log.log("Waiting for "+sfInProgress.size()+" file(s) in progress to complete...");
+		psParse.shutdownAndWait();
+		psStage.shutdownAndWait();
+		psCompile.shutdownAndWait();
+		if (javaCompileBatcher != null)
+			javaCompileBatcher.shutdownAndWait();
+		psExecute.shutdownAndWait();
+		psPublish.shutdownAndWait();
+		swInput.close();
 	}
 
 	public static void main(String[] args) throws Exception {
@@ -416,14 +1620,187 @@ public class BatchSimulator {
 
 		// Get global runtime properties...
 		loadProps();
+		SimpleLogger.LogMode logMode = SimpleLogger.LogMode.valueOf(props.getProperty("LogMode", "Direct"));
+		SimpleLogger.setMode(logMode, Integer.parseInt(props.getProperty("LogConsoleQueueLines", "10000")));
+		log.log("LogMode: "+logMode);
 		bParseDebug = new Boolean(props.getProperty("ParseDebug", "false"));
 		if (bParseDebug) log.log("ParseDebug=" + bParseDebug);
+		lOutputSpillThreshold = Long.parseLong(props.getProperty("OutputSpillThresholdBytes", ""+CommandRunner.lDefaultSpillThreshold));
+		lOutputLimit = Long.parseLong(props.getProperty("OutputLimitBytes", "0"));
+		CommandRunner.setResourceAccounting(Boolean.parseBoolean(props.getProperty("ResourceAccounting", "false")));
+		if (Boolean.parseBoolean(props.getProperty("Sandbox", "false"))) {
+			CommandRunner.setSandbox(new JobSandbox(
+				Integer.parseInt(props.getProperty("SandboxCpuPercent", "100")),
+				1024L*1024*Long.parseLong(props.getProperty("SandboxMemoryMB", "512")),
+				Integer.parseInt(props.getProperty("SandboxPidsMax", "64")),
+				props.getProperty("SandboxCores", ""),
+				Integer.parseInt(props.getProperty("SandboxCoresPerJob", "0")),
+				props.getProperty("SandboxCgroup", "")
+			));
+			// The limits apply only to commands run as processes of their own, so nothing may be compiled or run
+			// within this JVM or a long-lived worker...
+			for (String sEngine : new String[] { "JavaCompileBackend", "JavaExecEngine", "PyExecEngine" }) {
+				if (!props.getProperty(sEngine, "Process").equals("Process")) {
+					log.log("WARNING: Sandbox is on, so using "+sEngine+": Process, not "+props.getProperty(sEngine)+".");
+					props.setProperty(sEngine, "Process");
+				}
+			}
+		}
 		RunMode runMode = RunMode.valueOf(props.getProperty("RunMode"));
 		log.log("RunMode: "+runMode);
+		iWaitForWork = Integer.parseInt(props.getProperty("WaitForWorkSeconds", "10"));
+		
+		// Set up the pacing of jobs, with one slot per job which may be executed at once...
+		int iExecuteSlots = 1;
+		if (runMode.equals(RunMode.MultiThreadWaitForStop))
+			iExecuteSlots = Integer.parseInt(props.getProperty("ThreadCount", "1"));
+		else if (runMode.equals(RunMode.Pipelined))
+			iExecuteSlots = Integer.parseInt(props.getProperty("ExecuteThreads", props.getProperty("ThreadCount", "1")));
+		jobPacer = new JobPacer(JobPacer.Kind.valueOf(props.getProperty("PacingPolicy", "Fixed")), iExecuteSlots,
+			1000*Long.parseLong(props.getProperty("PacingDelaySeconds", "10")),
+			Double.parseDouble(props.getProperty("PacingCpuSpeed", "0.5")),
+			Double.parseDouble(props.getProperty("PacingJobsPerMinute", "6")),
+			Integer.parseInt(props.getProperty("PacingBurst", "1")));
 		
 		// Set up (create, if necessary) the input and output spool directories...
 		setUpSpool();
 		
+		// Share the spool with other instances, if requested...
+		if (Boolean.parseBoolean(props.getProperty("SpoolSharing", "false"))) {
+			String sNode = props.getProperty("NodeName", "");
+			if (sNode.isEmpty())
+				sNode = InetAddress.getLocalHost().getHostName();
+			spoolClaimer = new SpoolClaimer(alfSpoolDir.get("Parent"), sNode, 1000*Long.parseLong(props.getProperty("LeaseSeconds", "60")));
+			spoolClaimer.start();
+		}
+		
+		// Open the journal, to resume whatever was in progress when we last stopped...
+		if (Boolean.parseBoolean(props.getProperty("Journal", "false"))) {
+			String sDefaultJournal = (spoolClaimer == null) ? "Journal.log" : "Journal_"+props.getProperty("NodeName", InetAddress.getLocalHost().getHostName())+".log";
+			File fJournal = new File(props.getProperty("JournalFile", new File(alfSpoolDir.get("Parent"), sDefaultJournal).getPath()));
+			journal = new Journal(fJournal, Integer.parseInt(props.getProperty("JournalCompactEvery", "1000")));
+			// Forget input files which are gone...
+			HashSet<String> hsFileKeys = new HashSet<String>();
+			File[] lfInput = alfSpoolDir.get("Input").listFiles();
+			if (lfInput != null) {
+				for (File f : lfInput)
+					hsFileKeys.add(Journal.fileKey(f));
+			}
+			journal.retainFiles(hsFileKeys);
+			aiJobNumber.set(journal.getMaxJobNumber());
+		}
+		Set<String> hsLiveWorkDirs = (journal == null) ? new HashSet<String>() : journal.getLiveWorkDirs();
+		hsResumableWorkDirs.addAll(hsLiveWorkDirs);
+		// (Another instance on this host may be using some of them, whether or not it shares our spool, so only old ones)
+		collectOrphanedWorkDirs(hsLiveWorkDirs, 60000*Long.parseLong(props.getProperty("WorkDirGCMinAgeMinutes", "60")));
+		
+		// Create the pool of reusable job working directories, if requested...
+		if (Boolean.parseBoolean(props.getProperty("WorkspacePool", "false"))) {
+			String sWorkspaceRoot = props.getProperty("WorkspaceRoot", "");
+			if (sWorkspaceRoot.isEmpty())
+				sWorkspaceRoot = System.getProperty("java.io.tmpdir");
+			// Each instance sharing the spool (and perhaps this host) gets its own pool...
+			String sPoolDirName = "BatchSimulatorWorkspaces"+(spoolClaimer == null ? "" : "_"+props.getProperty("NodeName", InetAddress.getLocalHost().getHostName()));
+			workspacePool = new WorkspacePool(new File(sWorkspaceRoot, sPoolDirName),
+				Integer.parseInt(props.getProperty("WorkspacePoolSize", ""+(2*Integer.parseInt(props.getProperty("ThreadCount", "1"))+2))),
+				1024L*1024*Long.parseLong(props.getProperty("WorkspaceQuotaMB", "0")), hsLiveWorkDirs);
+		}
+		
+		// Archive finished listings, if requested, keeping just the newest in the Output directory...
+		if (Boolean.parseBoolean(props.getProperty("Archive", "false"))) {
+			File fArchiveDir = new File(props.getProperty("ArchiveDir", new File(alfSpoolDir.get("Parent"), "Archive").getPath()));
+			outputArchive = new OutputArchive(fArchiveDir, alfSpoolDir.get("Output"),
+				1024L*1024*Long.parseLong(props.getProperty("ArchiveSegmentMB", "64")),
+				Integer.parseInt(props.getProperty("ArchiveKeepNewest", "1000")));
+		}
+		
+		// Keep metrics on each job, and serve them (to this machine only, by default) if a port is given...
+		if (Boolean.parseBoolean(props.getProperty("Metrics", "true"))) {
+			metrics = new MetricsRegistry(1000*Long.parseLong(props.getProperty("MetricsWindowSeconds", "300")),
+				Integer.parseInt(props.getProperty("MetricsWindowMaxSamples", "1000")));
+			metrics.defineHistogram("batchsim_phase_seconds", "Time each job spent in each phase (queue, parse, stage, compile, pacing, run, cleanup)", MetricsRegistry.adSecondsBuckets);
+			metrics.defineHistogram("batchsim_job_cpu_seconds", "CPU time used by each job's compile and run", MetricsRegistry.adSecondsBuckets);
+			metrics.defineHistogram("batchsim_job_peak_memory_bytes", "Most memory used at once by each job's compile or run", MetricsRegistry.adBytesBuckets);
+			metrics.defineHistogram("batchsim_job_output_bytes", "Output (STDOUT and STDERR) written by each job's compile and run", MetricsRegistry.adBytesBuckets);
+			metrics.defineCounter("batchsim_jobs_total", "Jobs completed, by result");
+			metrics.defineCounter("batchsim_result_cache_total", "Lookups in the result cache, by outcome (hit or miss)");
+			int iMetricsPort = Integer.parseInt(props.getProperty("MetricsPort", "0"));
+			if (iMetricsPort > 0)
+				metricsServer = new MetricsServer(metrics, props.getProperty("MetricsBindAddress", "127.0.0.1"), iMetricsPort);
+		}
+		
+		// Compile JAVA jobs within this JVM, if requested (and possible)...
+		JavaCompileBackend javaCompileBackend = JavaCompileBackend.valueOf(props.getProperty("JavaCompileBackend", "Process"));
+		log.log("JavaCompileBackend: "+javaCompileBackend);
+		if (javaCompileBackend.equals(JavaCompileBackend.InProcess)) {
+			if (InProcessJavaCompiler.isAvailable())
+				inProcessJavaCompiler = new InProcessJavaCompiler();
+			else
+				log.log("WARNING: No Java compiler is available in this JVM; JAVA jobs will be compiled by running 'javac'.");
+		}
+		// ...and, where several jobs may be compiling at once, in batches...
+		int iJavaCompileBatchSize = Integer.parseInt(props.getProperty("JavaCompileBatchSize", "1"));
+		if (runMode.equals(RunMode.MultiThreadWaitForStop)) {
+			// Each worker thread waits for its batch to be compiled, so a batch can't fill beyond the number of workers
+			// (Pipelined hands the jobs on without waiting)...
+			int iThreadCount = Integer.parseInt(props.getProperty("ThreadCount", "1"));
+			if (iJavaCompileBatchSize > iThreadCount) {
+				log.log("JavaCompileBatchSize: "+iThreadCount+" (at most ThreadCount, not "+iJavaCompileBatchSize+")");
+				iJavaCompileBatchSize = iThreadCount;
+			}
+		}
+		if (inProcessJavaCompiler != null && iJavaCompileBatchSize > 1
+			&& (runMode.equals(RunMode.MultiThreadWaitForStop) || runMode.equals(RunMode.Pipelined))) {
+			javaCompileBatcher = new JavaCompileBatcher(inProcessJavaCompiler, iJavaCompileBatchSize,
+				Long.parseLong(props.getProperty("JavaCompileBatchWaitMillis", "200")));
+		}
+		
+		// Start warm JVMs to run JAVA jobs in, if requested...
+		JavaExecEngine javaExecEngine = JavaExecEngine.valueOf(props.getProperty("JavaExecEngine", "Process"));
+		log.log("JavaExecEngine: "+javaExecEngine);
+		if (javaExecEngine.equals(JavaExecEngine.WarmJVM)) {
+			int iPoolSize = Integer.parseInt(props.getProperty("JavaWorkerPoolSize", props.getProperty("ThreadCount", "1")));
+			int iMaxJobs = Integer.parseInt(props.getProperty("JavaWorkerMaxJobs", "100"));
+			javaWorkerPool = new JavaWorkerPool(iPoolSize, iMaxJobs, props.getProperty("JavaWorkerJvmOptions", "-Xshare:auto -XX:TieredStopAtLevel=1"));
+		}
+		
+		// Start Python interpreters to run PY jobs in, if requested...
+		PyExecEngine pyExecEngine = PyExecEngine.valueOf(props.getProperty("PyExecEngine", "Process"));
+		log.log("PyExecEngine: "+pyExecEngine);
+		if (pyExecEngine.equals(PyExecEngine.Prestarted)) {
+			int iPoolSize = Integer.parseInt(props.getProperty("PythonWorkerPoolSize", props.getProperty("ThreadCount", "1")));
+			pythonWorkerPool = new PythonWorkerPool("python3", iPoolSize, props.getProperty("PythonWorkerPreload", ""));
+		}
+		
+		// Set up the compile cache, if enabled...
+		if (Boolean.parseBoolean(props.getProperty("CompileCache", "false"))) {
+			File fCompileCacheDir = new File(props.getProperty("CompileCacheDir", new File(alfSpoolDir.get("Parent"), "CompileCache").getPath()));
+			long lCompileCacheMaxBytes = 1024L*1024*Long.parseLong(props.getProperty("CompileCacheMaxMB", "256"));
+			compileCache = new CompileCache(fCompileCacheDir, lCompileCacheMaxBytes);
+		}
+		
+		// Set up the result cache, if enabled...
+		if (Boolean.parseBoolean(props.getProperty("ResultCache", "false"))) {
+			File fResultCacheDir = new File(props.getProperty("ResultCacheDir", new File(alfSpoolDir.get("Parent"), "ResultCache").getPath()));
+			long lResultCacheMaxBytes = 1024L*1024*Long.parseLong(props.getProperty("ResultCacheMaxMB", "64"));
+			long lResultCacheMaxAgeMillis = 3600L*1000*Long.parseLong(props.getProperty("ResultCacheMaxAgeHours", "168"));
+			resultCache = new ResultCache(fResultCacheDir, lResultCacheMaxBytes, lResultCacheMaxAgeMillis);
+		}
+		
+		// Set up the job history and the queue ordering policy...
+		QueuePolicy.Kind queuePolicyKind = QueuePolicy.Kind.valueOf(props.getProperty("QueuePolicy", "FIFO"));
+		log.log("QueuePolicy: "+queuePolicyKind);
+		if (Boolean.parseBoolean(props.getProperty("JobHistory", ""+queuePolicyKind.equals(QueuePolicy.Kind.SJF)))) {
+			File fJobHistory = new File(props.getProperty("JobHistoryFile", new File(alfSpoolDir.get("Parent"), "JobHistory.properties").getPath()));
+			jobHistory = new JobHistory(fJobHistory, Integer.parseInt(props.getProperty("JobHistoryMaxEntries", "10000")),
+				1000*Long.parseLong(props.getProperty("JobHistorySaveSeconds", "60")));
+		} else if (queuePolicyKind.equals(QueuePolicy.Kind.SJF)) {
+			log.log("WARNING: QueuePolicy SJF without JobHistory: every job gets the default estimate, so files are run oldest first.");
+		}
+		queuePolicy = QueuePolicy.create(queuePolicyKind, jobHistory,
+			Double.parseDouble(props.getProperty("QueueAgingFactor", "0.1")),
+			Long.parseLong(props.getProperty("QueueDefaultEstimateMillis", "5000")));
+		
 		// Run the jobs, using the specified RunMode...
 		if (runMode.equals(RunMode.SingleThreadAllFiles)) {
 			// SingleThreadAllFiles:
@@ -432,14 +1809,11 @@ public class BatchSimulator {
 			//   - For each BatchJob
 			//     - Run it
 			ArrayList<File> alfInput = listSpoolFiles("Input");
+			queuePolicy.order(alfInput);
 			for (File f : alfInput) {
-				log.log("Processing BatchJob file: "+f.getAbsolutePath());
-				BatchJob bj = parseBatchJob(f);
-				bj.run();
-				log.log("Done with BatchJob file: "+f.getAbsolutePath()+". Deleting it...");
-				log.log("Deleting BatchJob file: "+f.getAbsolutePath()+"...");
-				log.log(f.delete() ? "File deleted successfully." : "Error deleting file. Unable to delete!");
-				waitBetweenJobs();
+				f = claimSpoolFile(f);
+				if (f != null)
+					runSpoolFile(f);
 			}
 		} else if (runMode.equals(RunMode.SingleThreadWaitForStop)) {
 			// SingleThreadWaitForStop:
@@ -447,43 +1821,173 @@ public class BatchSimulator {
 			//   - Parse the file into its list of BatchJobs
 			//   - For each BatchJob
 			//     - Run it
-			// When queue is empty, sleep waiting for new work.
+			// When queue is empty, wait for new work (or the "stop" command file) to show up.
 			// When "stop" command file is created, terminate
-			String sStopCommandFilename = "_BatchSimulator_STOP_";
 			File fStop = new File(alfSpoolDir.get("Input"), sStopCommandFilename);
+			startSpoolWatcher();
+			startSubmitServer();
 			boolean bStopCommandReceived = false;
 			while (!bStopCommandReceived) {
-				if (fStop.exists()) {
+				if (swInput.isStopRequested() || fStop.exists()) {
 					bStopCommandReceived = true;
 					log.log("Stop-command file '"+sStopCommandFilename+"' found. Exiting.");
 					// Delete the stop-command file, now that we've noticed it...
 					fStop.delete();
+					stopSubmitServer();
 				} else {
-					ArrayList<File> alfInput = listSpoolFiles("Input");
-					if (alfInput.size() > 0) {
-						// Process the first file on the list (note the first one is the oldest)...
-						File f = alfInput.remove(0);
+					checkStatusCommand();
+					BatchJob bjSubmitted = lbqSubmitted.poll();
+					if (bjSubmitted != null) {
+						// Jobs submitted through the SubmitServer go first (someone is waiting for them)...
+						runSubmittedJob(bjSubmitted);
+						continue;
+					}
+					File fNext = spoolIndex.poll();
+					if (fNext != null) {
+						// Process the next file in the queue (the oldest, unless the QueuePolicy says otherwise)...
+						File f = claimSpoolFile(fNext);
+						if (f != null)
+							runSpoolFile(f);
+					} else {
+						log.log("No jobs in queue. Create file '"+sStopCommandFilename+"' to stop. Waiting...");
+						swInput.awaitWork(1000*iWaitForWork);
+						log.log("Done waiting. Checking for more work...");
+					}
+				}
+			}
+			swInput.close();
+		} else if (runMode.equals(RunMode.MultiThreadWaitForStop)) {
+			// MultiThreadWaitForStop:
+			// Same as SingleThreadWaitForStop, except that each parsed BatchJob is handed to a pool of
+			// ThreadCount worker threads as soon as its $END is read; the input file is deleted once all of its
+			// jobs have run.
+			// At most ThreadCount jobs are running, plus ThreadCount more parsed and waiting, at any time;
+			// beyond that, the main thread waits for a free slot before parsing another job.
+			int iThreadCount = Integer.parseInt(props.getProperty("ThreadCount", "1"));
+			log.log("ThreadCount: "+iThreadCount);
+			ExecutorService esWorkers = createWorkerPool(iThreadCount);
+			final Semaphore semJobSlots = new Semaphore(2*iThreadCount);
+			// Files which have been handed to a worker, but not yet deleted from the input queue...
+			final Set<File> sfInProgress = ConcurrentHashMap.newKeySet();
+			File fStop = new File(alfSpoolDir.get("Input"), sStopCommandFilename);
+			startSpoolWatcher();
+			startSubmitServer();
+			boolean bStopCommandReceived = false;
+			while (!bStopCommandReceived) {
+				if (swInput.isStopRequested() || fStop.exists()) {
+					bStopCommandReceived = true;
+					log.log("Stop-command file '"+sStopCommandFilename+"' found. Exiting.");
+					// Delete the stop-command file, now that we've noticed it...
+					fStop.delete();
+					stopSubmitServer();
+				} else {
+					checkStatusCommand();
+					final BatchJob bjSubmitted = lbqSubmitted.poll();
+					if (bjSubmitted != null) {
+						// Jobs submitted through the SubmitServer go first (someone is waiting for them)...
+						semJobSlots.acquire();
+						esWorkers.execute(new Runnable() {
+							public void run() {
+								try {
+									runSubmittedJob(bjSubmitted);
+								} finally {
+									semJobSlots.release();
+								}
+							}
+						});
+						continue;
+					}
+					File fNext = spoolIndex.poll();
+					if (fNext != null) {
+						// Hand each job in the next file to the worker pool as soon as it's parsed (once there's a
+						// free slot for it)...
+						final File f = claimSpoolFile(fNext);
+						if (f == null)
+							continue;
 						log.log("Processing BatchJob file: "+f.getAbsolutePath());
-						BatchJob bj = parseBatchJob(f);
-						bj.run();
-						log.log("Done with BatchJob file: "+f.getAbsolutePath()+". Deleting it...");
-						log.log("Deleting BatchJob file: "+f.getAbsolutePath()+"...");
-						log.log(f.delete() ? "File deleted successfully." : "Error deleting file. Unable to delete!");
-						waitBetweenJobs();
+						sfInProgress.add(f);
+						// The file is deleted once we're done reading it and all of its jobs are done...
+						final AtomicInteger aiFileRefs = new AtomicInteger(1);
+						final AtomicBoolean abReadAll = new AtomicBoolean(false);
+						BatchJobReader bjr = null;
+						try {
+							bjr = new BatchJobReader(f);
+							while (true) {
+								semJobSlots.acquire();
+								final BatchJob bj;
+								try {
+									bj = bjr.next();
+								} catch (Exception e) {
+									// (Read errors come back as a job with a parse error; this is anything else)...
+									semJobSlots.release();
+									log.log("ERROR: Unable to parse BatchJob file '"+f.getAbsolutePath()+"': "+e.toString()+". Skipping the rest of it.");
+									break;
+								}
+								if (bj == null) {
+									semJobSlots.release();
+									break;
+								}
+								aiFileRefs.incrementAndGet();
+								esWorkers.execute(new Runnable() {
+									public void run() {
+										try {
+											runJob(bj);
+										} finally {
+											semJobSlots.release();
+											releaseSpoolFile(f, aiFileRefs, abReadAll, sfInProgress);
+										}
+									}
+								});
+							}
+						} catch (IOException e) {
+							log.log("ERROR: Unable to open BatchJob file '"+f.getAbsolutePath()+"': "+e.toString());
+						} finally {
+							if (bjr != null) {
+								bjr.close();
+								abReadAll.set(bjr.isComplete());
+							}
+							releaseSpoolFile(f, aiFileRefs, abReadAll, sfInProgress);
+						}
 					} else {
 						log.log("No jobs in queue. Create file '"+sStopCommandFilename+"' to stop. Waiting...");
-						Thread.sleep(1000*iWaitForWork);
+						swInput.awaitWork(1000*iWaitForWork);
 						log.log("Done waiting. Checking for more work...");
 					}
 				}
 			}
+			// Let the workers finish whatever they have already been given...
+			log.log("Waiting for "+sfInProgress.size()+" job(s) in progress to complete...");
+			esWorkers.shutdown();
+			esWorkers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			if (javaCompileBatcher != null)
+				javaCompileBatcher.shutdownAndWait();
+			swInput.close();
+		} else if (runMode.equals(RunMode.Pipelined)) {
+			runPipeline();
 		} else {
 			String sMsg = "ERROR: Unrecognized RunMode argument '"+runMode+"'.";
 			log.log(sMsg);
 			throw new IllegalArgumentException(sMsg);
 		}
 
+		if (javaWorkerPool != null)
+			javaWorkerPool.shutdown();
+		if (pythonWorkerPool != null)
+			pythonWorkerPool.shutdown();
+		if (spoolClaimer != null)
+			spoolClaimer.close();
+		if (outputArchive != null)
+			outputArchive.close();
+		if (journal != null)
+			journal.close();
+		if (jobHistory != null)
+			jobHistory.close();
+		if (workspacePool != null)
+			workspacePool.shutdown();
+		if (metricsServer != null)
+			metricsServer.stop();
 		log.log("Done.");
+		SimpleLogger.flushConsole();
 	}
 
 }
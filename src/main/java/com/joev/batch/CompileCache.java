@@ -0,0 +1,288 @@
+package com.joev.batch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Properties;
+
+import com.joev.util.CommandRunner;
+import com.joev.util.CommandRunner.CommandRunnerResult;
+import com.joev.util.FileUtil;
+import com.joev.util.SimpleLogger;
+import com.joev.util.SpillableOutputBuffer;
+
+/**
+ * On-disk cache of compiled programs, so that a program which has already been compiled (same language, program name,
+ * source code, compile command and compiler version) doesn't have to be compiled again.
+ * Each entry is a directory, named by the hash of its key, containing the files produced by the compile (e.g. .class
+ * files, or a C binary) and the compile command's result. When the cache grows beyond its size limit, the least
+ * recently used entries are evicted.
+ */
+class CompileCache {
+
+	private static final SimpleLogger log = new SimpleLogger(CompileCache.class.getSimpleName());
+
+	private static final String sArtifactsDir = "artifacts";
+	private static final String sResultFile = "result.properties";
+	private static final String sSTDOUTFile = "STDOUT";
+	private static final String sSTDERRFile = "STDERR";
+
+	private final File fCacheDir;
+	private final long lMaxBytes;
+	private long lTotalBytes = 0;
+	// Tool version strings, by command (e.g. "javac -version"); determined the first time each is needed...
+	private static final HashMap<String,String> hmToolVersion = new HashMap<String,String>();
+
+	/**
+	 * @param fCacheDir directory in which to keep the cache (created if necessary)
+	 * @param lMaxBytes size limit for the cache; least-recently-used entries are evicted beyond this
+	 */
+	CompileCache(File fCacheDir, long lMaxBytes) {
+		this.fCacheDir = fCacheDir;
+		this.lMaxBytes = lMaxBytes;
+		if (!fCacheDir.isDirectory() && !fCacheDir.mkdirs())
+			throw new IllegalArgumentException("Unable to create compile cache directory '"+fCacheDir.getAbsolutePath()+"'!");
+		for (File fEntry : listEntries())
+			lTotalBytes += FileUtil.sizeOf(fEntry);
+		log.log("Compile cache '"+fCacheDir.getAbsolutePath()+"': "+listEntries().length+" entries, "+lTotalBytes+" bytes (limit "+lMaxBytes+").");
+	}
+
+	/**
+	 * Determine the version of a compiler (or interpreter), by running a command which reports it (once; the result is
+	 * remembered)
+	 * @param sVersionCommand command which reports the version (e.g. "javac -version")
+	 * @return the command's output
+	 */
+	static synchronized String getToolVersion(String sVersionCommand) {
+		String sVersion = hmToolVersion.get(sVersionCommand);
+		if (sVersion == null) {
+			try {
+				CommandRunnerResult crr = new CommandRunner().runCommand(sVersionCommand, new File(System.getProperty("java.io.tmpdir")), 60000);
+				sVersion = toString(crr.getSTDOUT())+toString(crr.getSTDERR());
+				crr.release();
+			} catch (Exception e) {
+				sVersion = "unknown: "+e.toString();
+			}
+			log.log("Version from '"+sVersionCommand+"': "+sVersion.trim());
+			hmToolVersion.put(sVersionCommand, sVersion);
+		}
+		return sVersion;
+	}
+
+	/**
+	 * Build the cache key for a compile
+	 * @param sCompilerLang language (e.g. JAVA)
+	 * @param sPgmName program name
+	 * @param sCompileCommand command used to compile the program
+	 * @param sToolchain identifies the compiler version (e.g. from getToolVersion())
+	 * @param sSourceHash hash of the program's source code (see hash())
+	 * @return key (a hex string, usable as a filename)
+	 */
+	static String makeKey(String sCompilerLang, String sPgmName, String sCompileCommand, String sToolchain, String sSourceHash) {
+		return hash(sCompilerLang+"\0"+sPgmName+"\0"+sCompileCommand+"\0"+sToolchain+"\0"+sSourceHash);
+	}
+
+	/**
+	 * @param s some text
+	 * @return SHA-256 hash of the text (encoded as UTF-8), as a hex string
+	 */
+	static String hash(String s) {
+		try {
+			return toHex(MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8)));
+		} catch (Exception e) {
+			throw new IllegalStateException("Unable to compute SHA-256 hash: "+e.toString(), e);
+		}
+	}
+
+	static String toHex(byte[] ab) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : ab)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+	/**
+	 * Look for a compile in the cache; if found, copy the files it produced into a directory
+	 * @param sKey cache key (see makeKey())
+	 * @param fDestDir directory into which to copy the compiled files
+	 * @return the cached result of the compile command (with its working directory set to fDestDir), or null if not found
+	 */
+	CommandRunnerResult lookup(String sKey, File fDestDir) {
+		File fEntry = new File(fCacheDir, sKey);
+		synchronized (this) {
+			if (!fEntry.isDirectory())
+				return null;
+			// Mark it as recently used...
+			fEntry.setLastModified(System.currentTimeMillis());
+		}
+		try {
+			FileUtil.copyTree(new File(fEntry, sArtifactsDir), fDestDir);
+			return loadResult(fEntry, fDestDir);
+		} catch (IOException e) {
+			// Probably evicted while we were reading it; treat it as a miss...
+			log.log("WARNING: Unable to read compile cache entry '"+fEntry.getAbsolutePath()+"': "+e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Add a compile to the cache
+	 * @param sKey cache key (see makeKey())
+	 * @param fWorkDir directory in which the program was compiled
+	 * @param colsExclude names of files in fWorkDir which were not produced by the compile (e.g. the source code)
+	 * @param crr result of the compile command
+	 */
+	void store(String sKey, File fWorkDir, Collection<String> colsExclude, CommandRunnerResult crr) {
+		File fEntry = new File(fCacheDir, sKey);
+		if (fEntry.exists())
+			return;
+		// Build the entry under a temporary name, then rename it into place, so that nobody sees a partial entry...
+		File fTmpEntry = new File(fCacheDir, sKey+"."+Thread.currentThread().getId()+".tmp");
+		try {
+			File fArtifacts = new File(fTmpEntry, sArtifactsDir);
+			if (!fArtifacts.mkdirs())
+				throw new IOException("Unable to create directory '"+fArtifacts.getAbsolutePath()+"'");
+			File[] lf = fWorkDir.listFiles();
+			if (lf != null) {
+				for (File f : lf) {
+					if (!colsExclude.contains(f.getName()))
+						FileUtil.copyTree(f, new File(fArtifacts, f.getName()));
+				}
+			}
+			saveResult(fTmpEntry, crr);
+			long lEntryBytes = FileUtil.sizeOf(fTmpEntry);
+			synchronized (this) {
+				if (!fTmpEntry.renameTo(fEntry)) {
+					// Someone else got there first...
+					FileUtil.deleteTree(fTmpEntry);
+					return;
+				}
+				lTotalBytes += lEntryBytes;
+				evict();
+			}
+		} catch (IOException e) {
+			log.log("WARNING: Unable to add compile cache entry '"+fEntry.getAbsolutePath()+"': "+e.toString());
+			FileUtil.deleteTree(fTmpEntry);
+		}
+	}
+
+	/**
+	 * Remove least-recently-used entries, until the cache is within its size limit
+	 */
+	private synchronized void evict() {
+		if (lTotalBytes <= lMaxBytes)
+			return;
+		File[] lfEntries = listEntries();
+		Arrays.sort(lfEntries, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+		for (int i = 0; i < lfEntries.length && lTotalBytes > lMaxBytes; i++) {
+			long lEntryBytes = FileUtil.sizeOf(lfEntries[i]);
+			log.log("Evicting compile cache entry '"+lfEntries[i].getName()+"' ("+lEntryBytes+" bytes).");
+			FileUtil.deleteTree(lfEntries[i]);
+			lTotalBytes -= lEntryBytes;
+		}
+	}
+
+	private File[] listEntries() {
+		File[] lf = fCacheDir.listFiles();
+		if (lf == null)
+			return new File[0];
+		// Skip any partially built entries...
+		int iCount = 0;
+		for (File f : lf) {
+			if (f.isDirectory() && !f.getName().endsWith(".tmp"))
+				lf[iCount++] = f;
+		}
+		return Arrays.copyOf(lf, iCount);
+	}
+
+	/**
+	 * Save a command's result (everything but the working directory) to files in a directory
+	 */
+	static void saveResult(File fDir, CommandRunnerResult crr) throws IOException {
+		Properties p = new Properties();
+		p.setProperty("Command", crr.sCommand);
+		p.setProperty("RC", ""+crr.iRC);
+		p.setProperty("ElapsedMillis", ""+crr.lElapsedMillis);
+		p.setProperty("TimeLimitMillis", ""+crr.lTimeLimitMillis);
+		p.setProperty("TimedOut", ""+crr.bTimedOut);
+		p.setProperty("CpuMillis", ""+crr.lCpuMillis);
+		p.setProperty("PeakRssBytes", ""+crr.lPeakRssBytes);
+		p.setProperty("OutputLimitBytes", ""+crr.lOutputLimitBytes);
+		p.setProperty("DirQuotaBytes", ""+crr.lDirQuotaBytes);
+		try (OutputStream os = new FileOutputStream(new File(fDir, sResultFile))) {
+			p.store(os, null);
+		}
+		try (InputStream is = crr.getSTDOUT()) {
+			Files.copy(is, new File(fDir, sSTDOUTFile).toPath());
+		}
+		try (InputStream is = crr.getSTDERR()) {
+			Files.copy(is, new File(fDir, sSTDERRFile).toPath());
+		}
+	}
+
+	/**
+	 * Load a command's result, as saved by saveResult()
+	 * @param fWorkDir working directory to record in the result
+	 */
+	static CommandRunnerResult loadResult(File fDir, File fWorkDir) throws IOException {
+		Properties p = new Properties();
+		try (InputStream is = new FileInputStream(new File(fDir, sResultFile))) {
+			p.load(is);
+		}
+		SpillableOutputBuffer sobSTDOUT = new SpillableOutputBuffer(CommandRunner.lDefaultSpillThreshold);
+		SpillableOutputBuffer sobSTDERR = new SpillableOutputBuffer(CommandRunner.lDefaultSpillThreshold);
+		Files.copy(new File(fDir, sSTDOUTFile).toPath(), sobSTDOUT);
+		Files.copy(new File(fDir, sSTDERRFile).toPath(), sobSTDERR);
+		sobSTDOUT.close();
+		sobSTDERR.close();
+		CommandRunnerResult crr = new CommandRunnerResult(
+			p.getProperty("Command"),
+			fWorkDir,
+			Integer.parseInt(p.getProperty("RC")),
+			sobSTDOUT,
+			sobSTDERR,
+			Long.parseLong(p.getProperty("ElapsedMillis")),
+			Long.parseLong(p.getProperty("TimeLimitMillis")),
+			Boolean.parseBoolean(p.getProperty("TimedOut"))
+		);
+		// (Not in results saved before these were)...
+		crr.lCpuMillis = Long.parseLong(p.getProperty("CpuMillis", "-1"));
+		crr.lPeakRssBytes = Long.parseLong(p.getProperty("PeakRssBytes", "-1"));
+		crr.lOutputLimitBytes = Long.parseLong(p.getProperty("OutputLimitBytes", "0"));
+		crr.lDirQuotaBytes = Long.parseLong(p.getProperty("DirQuotaBytes", "0"));
+		return crr;
+	}
+
+	/**
+	 * @return everything in the stream (which is closed), decoded as UTF-8 all at once (so that no character is split
+	 * between reads)
+	 */
+	private static String toString(InputStream is) throws IOException {
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] ab = new byte[4096];
+			int iRead;
+			while ((iRead = is.read(ab)) > 0)
+				baos.write(ab, 0, iRead);
+			return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			is.close();
+		}
+	}
+
+}
@@ -0,0 +1,165 @@
+package com.joev.batch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a job deck one line ("card") at a time, as raw UTF-8 bytes, without creating a String for each line.
+ * Control cards can be recognized with startsWith(), and program code or input data copied straight to a file with
+ * writeLine(); only lines which are actually needed as text (e.g. control cards) need be decoded, with getLine().
+ * Like BufferedReader.readLine(), a line ends with LF, CR or CR LF. A UTF-8 byte order mark at the very start of the
+ * deck (as written by Windows Notepad) is skipped.
+ */
+class DeckReader implements Closeable {
+
+	private static final byte[] abNL = System.getProperty("line.separator").getBytes(StandardCharsets.UTF_8);
+
+	private final InputStream is;
+	private byte[] ab = new byte[64*1024];
+	// Bytes read, but not yet returned as (part of) a line, are ab[iStart] to ab[iEnd-1]...
+	private int iStart = 0;
+	private int iEnd = 0;
+	private boolean bEOF = false;
+	// Set after a line ending in CR, in case the next byte is the LF of a CR LF...
+	private boolean bSkipLF = false;
+	private boolean bFirstLine = true;
+	// The current line is ab[iLineStart] to ab[iLineStart+iLineLength-1]...
+	private int iLineStart = 0;
+	private int iLineLength = 0;
+	private int iLineNumber = 0;
+
+	DeckReader(InputStream is) {
+		this.is = is;
+	}
+
+	/**
+	 * Read more bytes into the buffer (moving unconsumed bytes to the front of it, or growing it, to make room)
+	 * @return false at EOF
+	 */
+	private boolean fill() throws IOException {
+		if (bEOF)
+			return false;
+		if (iStart > 0) {
+			System.arraycopy(ab, iStart, ab, 0, iEnd - iStart);
+			iEnd -= iStart;
+			iStart = 0;
+		}
+		if (iEnd == ab.length) {
+			// A very long line; make room for more of it...
+			byte[] abBigger = new byte[2*ab.length];
+			System.arraycopy(ab, 0, abBigger, 0, iEnd);
+			ab = abBigger;
+		}
+		int iRead = is.read(ab, iEnd, ab.length - iEnd);
+		if (iRead < 0) {
+			bEOF = true;
+			return false;
+		}
+		iEnd += iRead;
+		return true;
+	}
+
+	/**
+	 * Advance to the next line
+	 * @return false at EOF (in which case there is no current line)
+	 */
+	boolean readLine() throws IOException {
+		if (bFirstLine) {
+			bFirstLine = false;
+			while (iEnd < 3 && fill())
+				;
+			if (iEnd >= 3 && ab[0] == (byte) 0xEF && ab[1] == (byte) 0xBB && ab[2] == (byte) 0xBF)
+				iStart = 3;
+		}
+		if (bSkipLF) {
+			bSkipLF = false;
+			if (iStart < iEnd || fill()) {
+				if (ab[iStart] == '\n')
+					iStart++;
+			}
+		}
+		int iScan = iStart;
+		while (true) {
+			for (; iScan < iEnd; iScan++) {
+				byte b = ab[iScan];
+				if (b == '\n' || b == '\r') {
+					iLineStart = iStart;
+					iLineLength = iScan - iStart;
+					iStart = iScan + 1;
+					bSkipLF = (b == '\r');
+					iLineNumber++;
+					return true;
+				}
+			}
+			int iScanned = iScan - iStart;
+			if (!fill()) {
+				if (iStart == iEnd)
+					return false;
+				// Last line, with no line terminator...
+				iLineStart = iStart;
+				iLineLength = iEnd - iStart;
+				iStart = iEnd;
+				iLineNumber++;
+				return true;
+			}
+			iScan = iStart + iScanned;
+		}
+	}
+
+	/**
+	 * @return number of the current line (the first line is 1)
+	 */
+	int getLineNumber() {
+		return iLineNumber;
+	}
+
+	/**
+	 * @param sPrefix text to look for (ASCII only, e.g. "$RUN")
+	 * @return true if the current line starts with sPrefix
+	 */
+	boolean startsWith(String sPrefix) {
+		int iLen = sPrefix.length();
+		if (iLineLength < iLen)
+			return false;
+		for (int i = 0; i < iLen; i++) {
+			if (ab[iLineStart+i] != (byte) sPrefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the current line is empty, or only whitespace
+	 */
+	boolean isBlank() {
+		for (int i = iLineStart; i < iLineStart+iLineLength; i++) {
+			if (!Character.isWhitespace(ab[i]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the current line, decoded from UTF-8 (without its line terminator)
+	 */
+	String getLine() {
+		return new String(ab, iLineStart, iLineLength, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Write the current line, followed by this platform's line separator
+	 */
+	void writeLine(OutputStream os) throws IOException {
+		os.write(ab, iLineStart, iLineLength);
+		os.write(abNL);
+	}
+
+	@Override
+	public void close() throws IOException {
+		is.close();
+	}
+
+}
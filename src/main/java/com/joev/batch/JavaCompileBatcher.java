@@ -0,0 +1,142 @@
+package com.joev.batch;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.joev.util.CommandRunner.CommandRunnerResult;
+import com.joev.util.InProcessJavaCompiler;
+import com.joev.util.SimpleLogger;
+
+/**
+ * Gathers Java programs waiting to be compiled into batches, and compiles each batch together (see
+ * InProcessJavaCompiler.compileBatch()), rather than compiling each one on its own. A batch is compiled as soon as it
+ * holds JavaCompileBatchSize programs, or JavaCompileBatchWaitMillis after its first program arrived, whichever is
+ * sooner. Each program's class files are written to its own job's working directory, and its result holds only its
+ * own diagnostics, just as if it had been compiled on its own. A batch is given the shortest time limit of its programs.
+ */
+class JavaCompileBatcher {
+
+	private static final SimpleLogger log = new SimpleLogger(JavaCompileBatcher.class.getSimpleName());
+
+	/**
+	 * A program waiting to be compiled
+	 */
+	private static class Request {
+		private final String sPgmName;
+		private final String sSource;
+		private final File fOutputDir;
+		private final long lTimeLimitMillis;
+		private final CompletableFuture<CommandRunnerResult> cf = new CompletableFuture<CommandRunnerResult>();
+
+		private Request(String sPgmName, String sSource, File fOutputDir, long lTimeLimitMillis) {
+			this.sPgmName = sPgmName;
+			this.sSource = sSource;
+			this.fOutputDir = fOutputDir;
+			this.lTimeLimitMillis = lTimeLimitMillis;
+		}
+	}
+
+	private final InProcessJavaCompiler compiler;
+	private final int iBatchSize;
+	private final long lWaitMillis;
+	// (Bounded, so that the stages before compilation can't get far ahead of it)...
+	private final LinkedBlockingQueue<Request> lbqPending;
+	private final Thread tBatcher;
+	private volatile boolean bShutdown = false;
+
+	/**
+	 * @param compiler the compiler to compile each batch with
+	 * @param iBatchSize maximum number of programs in a batch
+	 * @param lWaitMillis maximum time to hold a program back, waiting for others to compile with it
+	 */
+	JavaCompileBatcher(InProcessJavaCompiler compiler, int iBatchSize, long lWaitMillis) {
+		this.compiler = compiler;
+		this.iBatchSize = iBatchSize;
+		this.lWaitMillis = lWaitMillis;
+		this.lbqPending = new LinkedBlockingQueue<Request>(iBatchSize);
+		log.log("Compiling Java programs in batches of up to "+iBatchSize+", waiting up to "+lWaitMillis+"ms for each batch to fill.");
+		tBatcher = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (!bShutdown || !lbqPending.isEmpty())
+						compileNextBatch();
+				} catch (InterruptedException e) {
+					log.log("Interrupted; stopping.");
+				}
+			}
+		}, "JavaCompileBatcher");
+		tBatcher.setDaemon(true);
+		tBatcher.start();
+	}
+
+	/**
+	 * Add a program to the next batch (waiting, if the next batch is already full)
+	 * @param sPgmName name of the program's main class
+	 * @param sSource the program's source code
+	 * @param fOutputDir directory in which to write the program's class files
+	 * @param lTimeLimitMillis longest time (wall-clock milliseconds) to let the program's compile run; 0 for no limit
+	 * @return the result of compiling the program, once its batch has been compiled
+	 */
+	CompletableFuture<CommandRunnerResult> submit(String sPgmName, String sSource, File fOutputDir, long lTimeLimitMillis) throws InterruptedException {
+		if (bShutdown)
+			throw new IllegalStateException("JavaCompileBatcher has been shut down");
+		Request r = new Request(sPgmName, sSource, fOutputDir, lTimeLimitMillis);
+		lbqPending.put(r);
+		return r.cf;
+	}
+
+	/**
+	 * Wait for the next batch to fill up (or for its time to be up), then compile it
+	 */
+	private void compileNextBatch() throws InterruptedException {
+		Request rFirst = lbqPending.poll(1, TimeUnit.SECONDS);
+		if (rFirst == null)
+			return;
+		ArrayList<Request> alBatch = new ArrayList<Request>();
+		alBatch.add(rFirst);
+		long lDeadline = System.currentTimeMillis() + lWaitMillis;
+		while (alBatch.size() < iBatchSize) {
+			long lRemaining = lDeadline - System.currentTimeMillis();
+			Request r = (lRemaining > 0) ? lbqPending.poll(lRemaining, TimeUnit.MILLISECONDS) : lbqPending.poll();
+			if (r == null)
+				break;
+			alBatch.add(r);
+		}
+		ArrayList<String> alsPgmNames = new ArrayList<String>();
+		ArrayList<String> alsSources = new ArrayList<String>();
+		ArrayList<File> alfOutputDirs = new ArrayList<File>();
+		long lTimeLimitMillis = 0;
+		for (Request r : alBatch) {
+			alsPgmNames.add(r.sPgmName);
+			alsSources.add(r.sSource);
+			alfOutputDirs.add(r.fOutputDir);
+			if (r.lTimeLimitMillis > 0 && (lTimeLimitMillis == 0 || r.lTimeLimitMillis < lTimeLimitMillis))
+				lTimeLimitMillis = r.lTimeLimitMillis;
+		}
+		List<CommandRunnerResult> alResults;
+		try {
+			alResults = compiler.compileBatch(alsPgmNames, alsSources, alfOutputDirs, lTimeLimitMillis);
+		} catch (Throwable t) {
+			log.log("Batch compile failed: "+t.toString());
+			for (Request r : alBatch)
+				r.cf.completeExceptionally(t);
+			return;
+		}
+		for (int i = 0; i < alBatch.size(); i++)
+			alBatch.get(i).cf.complete(alResults.get(i));
+	}
+
+	/**
+	 * Compile whatever has already been submitted, then stop
+	 */
+	void shutdownAndWait() throws InterruptedException {
+		bShutdown = true;
+		tBatcher.join();
+		log.log("Shut down.");
+	}
+
+}
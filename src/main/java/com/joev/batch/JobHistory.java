@@ -0,0 +1,179 @@
+package com.joev.batch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import com.joev.util.SimpleLogger;
+
+/**
+ * Persistent record of how long past jobs took to compile and run, keyed by language, program name and source hash,
+ * used to estimate how long a job will take before it is run. Each entry holds a moving average of the job's times.
+ * The history is kept in a properties file, one entry per line:
+ *   <lang>:<pgmName>:<sourceHash>=<compileMillis>,<runMillis>,<count>,<lastUpdatedMillis>
+ * The whole file is rewritten when it's saved, so it's saved at most once per save interval (and at close()), rather
+ * than after every job; the last interval's times are lost if the simulator dies, which only makes a few estimates stale.
+ */
+class JobHistory {
+
+	private static final SimpleLogger log = new SimpleLogger(JobHistory.class.getSimpleName());
+
+	// Weight given to the newest time, in the moving average...
+	private static final double dNewWeight = 0.5;
+
+	private static class Entry {
+		long lCompileMillis;
+		long lRunMillis;
+		int iCount;
+		long lLastUpdated;
+	}
+
+	private final File fHistory;
+	private final int iMaxEntries;
+	private final long lSaveIntervalMillis;
+	private final HashMap<String,Entry> hmEntries = new HashMap<String,Entry>();
+	// Whether there are changes not yet saved, and when they were last saved...
+	private boolean bDirty = false;
+	private long lLastSavedMillis = System.currentTimeMillis();
+
+	/**
+	 * @param fHistory file in which the history is kept (loaded now, if it exists)
+	 * @param iMaxEntries the least recently updated entries are dropped beyond this many
+	 * @param lSaveIntervalMillis changes are saved at most this often (and at close()); 0 to save after every job
+	 */
+	JobHistory(File fHistory, int iMaxEntries, long lSaveIntervalMillis) {
+		this.fHistory = fHistory;
+		this.iMaxEntries = iMaxEntries;
+		this.lSaveIntervalMillis = lSaveIntervalMillis;
+		if (fHistory.exists()) {
+			Properties p = new Properties();
+			try (InputStream is = new FileInputStream(fHistory)) {
+				p.load(is);
+			} catch (IOException e) {
+				log.log("WARNING: Unable to read job history '"+fHistory.getAbsolutePath()+"': "+e.toString());
+			}
+			for (String sKey : p.stringPropertyNames()) {
+				String[] ls = p.getProperty(sKey).split(",");
+				try {
+					Entry e = new Entry();
+					e.lCompileMillis = Long.parseLong(ls[0]);
+					e.lRunMillis = Long.parseLong(ls[1]);
+					e.iCount = Integer.parseInt(ls[2]);
+					e.lLastUpdated = Long.parseLong(ls[3]);
+					hmEntries.put(sKey, e);
+				} catch (RuntimeException e) {
+					log.log("WARNING: Ignoring invalid job history entry '"+sKey+"'.");
+				}
+			}
+		}
+		log.log("Job history '"+fHistory.getAbsolutePath()+"': "+hmEntries.size()+" entries.");
+	}
+
+	private static String makeKey(String sCompilerLang, String sPgmName, String sPgmHash) {
+		return sCompilerLang+":"+sPgmName+":"+sPgmHash;
+	}
+
+	/**
+	 * @return expected compile+run time (milliseconds) of a program, or -1 if it has not been seen before
+	 */
+	synchronized long getExpectedMillis(String sCompilerLang, String sPgmName, String sPgmHash) {
+		Entry e = hmEntries.get(makeKey(sCompilerLang, sPgmName, sPgmHash));
+		return (e == null) ? -1 : e.lCompileMillis + e.lRunMillis;
+	}
+
+	/**
+	 * @return average compile+run time (milliseconds) of all programs in a language, or -1 if there are none
+	 */
+	synchronized long getLanguageMeanMillis(String sCompilerLang) {
+		long lTotal = 0;
+		int iCount = 0;
+		for (Map.Entry<String,Entry> me : hmEntries.entrySet()) {
+			if (me.getKey().startsWith(sCompilerLang+":")) {
+				lTotal += me.getValue().lCompileMillis + me.getValue().lRunMillis;
+				iCount++;
+			}
+		}
+		return (iCount == 0) ? -1 : lTotal/iCount;
+	}
+
+	/**
+	 * Record how long a job took, and save the history if it hasn't been saved within the save interval
+	 */
+	synchronized void record(String sCompilerLang, String sPgmName, String sPgmHash, long lCompileMillis, long lRunMillis) {
+		String sKey = makeKey(sCompilerLang, sPgmName, sPgmHash);
+		Entry e = hmEntries.get(sKey);
+		if (e == null) {
+			e = new Entry();
+			e.lCompileMillis = lCompileMillis;
+			e.lRunMillis = lRunMillis;
+			hmEntries.put(sKey, e);
+		} else {
+			e.lCompileMillis = Math.round(dNewWeight*lCompileMillis + (1-dNewWeight)*e.lCompileMillis);
+			e.lRunMillis = Math.round(dNewWeight*lRunMillis + (1-dNewWeight)*e.lRunMillis);
+		}
+		e.iCount++;
+		e.lLastUpdated = System.currentTimeMillis();
+		if (hmEntries.size() > iMaxEntries)
+			trim();
+		bDirty = true;
+		if (System.currentTimeMillis() - lLastSavedMillis >= lSaveIntervalMillis)
+			save();
+	}
+
+	/**
+	 * Save any changes not yet saved
+	 */
+	synchronized void close() {
+		if (bDirty)
+			save();
+	}
+
+	/**
+	 * Drop the least recently updated entries, down to 90% of the limit
+	 */
+	private void trim() {
+		ArrayList<Map.Entry<String,Entry>> alme = new ArrayList<Map.Entry<String,Entry>>(hmEntries.entrySet());
+		Collections.sort(alme, new Comparator<Map.Entry<String,Entry>>() {
+			public int compare(Map.Entry<String,Entry> me1, Map.Entry<String,Entry> me2) {
+				return Long.compare(me1.getValue().lLastUpdated, me2.getValue().lLastUpdated);
+			}
+		});
+		int iDrop = hmEntries.size() - (9*iMaxEntries)/10;
+		for (int i = 0; i < iDrop; i++)
+			hmEntries.remove(alme.get(i).getKey());
+	}
+
+	/**
+	 * Write the history to a temporary file, then rename it into place, so that it's never left half-written
+	 */
+	private void save() {
+		Properties p = new Properties();
+		for (Map.Entry<String,Entry> me : hmEntries.entrySet()) {
+			Entry e = me.getValue();
+			p.setProperty(me.getKey(), e.lCompileMillis+","+e.lRunMillis+","+e.iCount+","+e.lLastUpdated);
+		}
+		File fTmp = new File(fHistory.getPath()+".tmp");
+		try {
+			try (OutputStream os = new FileOutputStream(fTmp)) {
+				p.store(os, "BatchSimulator job history");
+			}
+			Files.move(fTmp.toPath(), fHistory.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			bDirty = false;
+		} catch (IOException e) {
+			log.log("WARNING: Unable to save job history '"+fHistory.getAbsolutePath()+"': "+e.toString());
+		}
+		lLastSavedMillis = System.currentTimeMillis();
+	}
+
+}
@@ -0,0 +1,141 @@
+package com.joev.batch;
+
+import java.util.ArrayList;
+
+import com.joev.util.SimpleLogger;
+
+/**
+ * Slows the running of jobs down, to simulate an actual (slow) computer, per PacingPolicy:
+ *   None: no delay
+ *   Fixed: each execution slot rests for PacingDelaySeconds after each job
+ *   CpuSpeed: each execution slot rests in proportion to how long each job took (compile+run), as if the computer ran
+ *             at PacingCpuSpeed times the speed of this one (e.g. 0.25 means each job "really" took 4 times as long)
+ *   TokenBucket: at most PacingJobsPerMinute jobs are started per minute, with bursts of up to PacingBurst jobs
+ * There is one execution slot for each job which may be executed at once. Rather than sleeping after each job, the
+ * delay is applied before the next job is executed (in awaitTurn()), so that the next job can be parsed, staged and
+ * compiled while its slot is resting.
+ */
+class JobPacer {
+
+	private static final SimpleLogger log = new SimpleLogger(JobPacer.class.getSimpleName());
+
+	enum Kind { None, Fixed, CpuSpeed, TokenBucket }
+
+	/**
+	 * One job's turn to execute; handed back to jobDone() once the job has run
+	 */
+	static class Slot {
+		private final int iNumber;
+		// Earliest time (System.currentTimeMillis()) at which the slot may execute another job...
+		private long lReadyAt = 0;
+		private boolean bInUse = false;
+
+		private Slot(int iNumber) {
+			this.iNumber = iNumber;
+		}
+	}
+
+	private final Kind kind;
+	private final ArrayList<Slot> alSlots = new ArrayList<Slot>();
+	private final long lFixedDelayMillis;
+	private final double dCpuSpeed;
+	// (TokenBucket) tokens are added at dTokensPerMilli, up to iBurst; each job takes one...
+	private final double dTokensPerMilli;
+	private final int iBurst;
+	private double dTokens;
+	private long lLastRefill = System.currentTimeMillis();
+
+	/**
+	 * @param kind the pacing policy
+	 * @param iSlots number of jobs which may be executed at once
+	 * @param lFixedDelayMillis (Fixed) rest after each job
+	 * @param dCpuSpeed (CpuSpeed) speed of the simulated computer, relative to this one (0 < dCpuSpeed <= 1)
+	 * @param dJobsPerMinute (TokenBucket) long-run limit on the rate at which jobs are started
+	 * @param iBurst (TokenBucket) number of jobs which may be started at once, after a quiet spell
+	 */
+	JobPacer(Kind kind, int iSlots, long lFixedDelayMillis, double dCpuSpeed, double dJobsPerMinute, int iBurst) {
+		if (kind.equals(Kind.CpuSpeed) && (dCpuSpeed <= 0 || dCpuSpeed > 1))
+			throw new IllegalArgumentException("PacingCpuSpeed must be greater than 0, and at most 1");
+		if (kind.equals(Kind.TokenBucket) && (dJobsPerMinute <= 0 || iBurst < 1))
+			throw new IllegalArgumentException("PacingJobsPerMinute must be greater than 0, and PacingBurst at least 1");
+		this.kind = kind;
+		for (int i = 1; i <= iSlots; i++)
+			alSlots.add(new Slot(i));
+		this.lFixedDelayMillis = lFixedDelayMillis;
+		this.dCpuSpeed = dCpuSpeed;
+		this.dTokensPerMilli = dJobsPerMinute/60000;
+		this.iBurst = iBurst;
+		this.dTokens = iBurst;
+		switch (kind) {
+		case Fixed:
+			log.log("PacingPolicy: Fixed; each of "+iSlots+" slot(s) rests "+lFixedDelayMillis+"ms after each job.");
+			break;
+		case CpuSpeed:
+			log.log("PacingPolicy: CpuSpeed; simulating a computer "+dCpuSpeed+" times the speed of this one, with "+iSlots+" slot(s).");
+			break;
+		case TokenBucket:
+			log.log("PacingPolicy: TokenBucket; at most "+dJobsPerMinute+" job(s) per minute, in bursts of up to "+iBurst+".");
+			break;
+		default:
+			log.log("PacingPolicy: None");
+		}
+	}
+
+	/**
+	 * Wait until a job may be executed
+	 * @return the job's slot, to be handed to jobDone() once the job has run
+	 */
+	synchronized Slot awaitTurn() throws InterruptedException {
+		boolean bWaited = false;
+		while (true) {
+			// The free slot which will be ready soonest...
+			Slot sBest = null;
+			for (Slot s : alSlots) {
+				if (!s.bInUse && (sBest == null || s.lReadyAt < sBest.lReadyAt))
+					sBest = s;
+			}
+			if (sBest == null) {
+				wait();
+				continue;
+			}
+			long lNow = System.currentTimeMillis();
+			long lWait = sBest.lReadyAt - lNow;
+			if (kind.equals(Kind.TokenBucket)) {
+				dTokens = Math.min(iBurst, dTokens + (lNow - lLastRefill)*dTokensPerMilli);
+				lLastRefill = lNow;
+				if (dTokens < 1)
+					lWait = Math.max(lWait, (long) Math.ceil((1 - dTokens)/dTokensPerMilli));
+			}
+			if (lWait <= 0) {
+				if (kind.equals(Kind.TokenBucket))
+					dTokens -= 1;
+				sBest.bInUse = true;
+				if (bWaited)
+					log.log("Now I'm well rested. Going back to work (slot "+sBest.iNumber+")...");
+				return sBest;
+			}
+			if (!bWaited) {
+				log.log("Taking a short ("+String.format("%.1f", lWait/1000.0)+" second) break before the next job...");
+				bWaited = true;
+			}
+			wait(lWait);
+		}
+	}
+
+	/**
+	 * A job has been executed; start its slot's rest
+	 * @param s the slot from awaitTurn()
+	 * @param lCostMillis how long the job took (compile+run)
+	 */
+	synchronized void jobDone(Slot s, long lCostMillis) {
+		long lDelayMillis = 0;
+		if (kind.equals(Kind.Fixed))
+			lDelayMillis = lFixedDelayMillis;
+		else if (kind.equals(Kind.CpuSpeed))
+			lDelayMillis = Math.round(lCostMillis*(1/dCpuSpeed - 1));
+		s.lReadyAt = System.currentTimeMillis() + lDelayMillis;
+		s.bInUse = false;
+		notifyAll();
+	}
+
+}
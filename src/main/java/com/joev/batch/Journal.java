@@ -0,0 +1,247 @@
+package com.joev.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.joev.util.SimpleLogger;
+
+/**
+ * Append-only journal of what has happened to each job, so that after a crash (or kill) the simulator can carry on
+ * where it left off: jobs which were published aren't run again, jobs which were in progress keep their job numbers
+ * (and, if it's still there, their compiled program), and nothing is left behind in java.io.tmpdir.
+ * Each line is one event, tab-separated:
+ *   <EVENT> <fileKey> <deckNumber> <jobNumber> <value>
+ * where the events are RECEIVED (value: the input file), PARSED (value: the job's working directory), STAGED (value:
+ * its listing file), COMPILED and RAN (value: return code), PUBLISHED, and FILEDONE (the input file was deleted, so
+ * its jobs can be forgotten). The fileKey identifies an input file by its name, length and last-modified time.
+ * Every JournalCompactEvery events, the journal is rewritten with just the jobs whose files are not done (one JOB line each,
+ * holding the same information), so that it stays small and can be replayed quickly.
+ */
+class Journal {
+
+	private static final SimpleLogger log = new SimpleLogger(Journal.class.getSimpleName());
+
+	enum Event { RECEIVED, PARSED, STAGED, COMPILED, RAN, PUBLISHED, FILEDONE }
+
+	/**
+	 * What the journal says about one job
+	 */
+	static class JobRecord {
+		int iJobNumber;
+		// Latest event for the job (PARSED, STAGED, COMPILED, RAN, PUBLISHED)...
+		Event eState = Event.PARSED;
+		int iCompileRC = -1;
+		String sWorkDir = "";
+		String sListing = "";
+	}
+
+	private final File fJournal;
+	private final int iCompactEvery;
+	// Jobs of the files which are not done, by fileKey, then deck number...
+	private final HashMap<String,HashMap<Integer,JobRecord>> hmFiles = new HashMap<String,HashMap<Integer,JobRecord>>();
+	private int iMaxJobNumber = 0;
+	private int iEventsSinceCompaction = 0;
+	private Writer wJournal = null;
+
+	/**
+	 * Open the journal, replaying (then compacting) whatever is already in it
+	 * @param fJournal the journal file
+	 * @param iCompactEvery number of events after which the journal is compacted
+	 */
+	Journal(File fJournal, int iCompactEvery) throws IOException {
+		this.fJournal = fJournal;
+		this.iCompactEvery = iCompactEvery;
+		long lStartNanos = System.nanoTime();
+		int iLines = 0;
+		if (fJournal.exists()) {
+			try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(fJournal), StandardCharsets.UTF_8))) {
+				String sLine;
+				while ((sLine = br.readLine()) != null) {
+					iLines++;
+					try {
+						replay(sLine.split("\t", -1));
+					} catch (RuntimeException e) {
+						// e.g. the last line, cut short by the crash...
+						log.log("WARNING: Ignoring invalid journal line #"+iLines+": "+sLine);
+					}
+				}
+			}
+		}
+		compact();
+		int iJobs = 0;
+		for (HashMap<Integer,JobRecord> hm : hmFiles.values())
+			iJobs += hm.size();
+		log.log("Journal '"+fJournal.getAbsolutePath()+"': replayed "+iLines+" line(s) in "+(System.nanoTime() - lStartNanos)/1000000+"ms; "
+			+iJobs+" job(s) of "+hmFiles.size()+" unfinished file(s); highest job number "+iMaxJobNumber+".");
+	}
+
+	/**
+	 * Apply one line of the journal
+	 */
+	private void replay(String[] ls) {
+		if (ls[0].equals("MAXJOB")) {
+			iMaxJobNumber = Math.max(iMaxJobNumber, Integer.parseInt(ls[1]));
+			return;
+		}
+		if (ls[0].equals("JOB")) {
+			// JOB fileKey deck jobNumber state compileRC workDir listing...
+			JobRecord jr = getRecord(ls[1], Integer.parseInt(ls[2]), Integer.parseInt(ls[3]));
+			jr.eState = Event.valueOf(ls[4]);
+			jr.iCompileRC = Integer.parseInt(ls[5]);
+			jr.sWorkDir = ls[6];
+			jr.sListing = ls[7];
+			return;
+		}
+		apply(Event.valueOf(ls[0]), ls[1], Integer.parseInt(ls[2]), Integer.parseInt(ls[3]), ls[4]);
+	}
+
+	private JobRecord getRecord(String sFileKey, int iDeck, int iJobNumber) {
+		HashMap<Integer,JobRecord> hm = hmFiles.get(sFileKey);
+		if (hm == null) {
+			hm = new HashMap<Integer,JobRecord>();
+			hmFiles.put(sFileKey, hm);
+		}
+		JobRecord jr = hm.get(iDeck);
+		if (jr == null) {
+			jr = new JobRecord();
+			hm.put(iDeck, jr);
+		}
+		jr.iJobNumber = iJobNumber;
+		iMaxJobNumber = Math.max(iMaxJobNumber, iJobNumber);
+		return jr;
+	}
+
+	private void apply(Event e, String sFileKey, int iDeck, int iJobNumber, String sValue) {
+		switch (e) {
+		case RECEIVED:
+			break;
+		case FILEDONE:
+			hmFiles.remove(sFileKey);
+			break;
+		default:
+			JobRecord jr = getRecord(sFileKey, iDeck, iJobNumber);
+			jr.eState = e;
+			if (e.equals(Event.PARSED))
+				jr.sWorkDir = sValue;
+			else if (e.equals(Event.STAGED))
+				jr.sListing = sValue;
+			else if (e.equals(Event.COMPILED))
+				jr.iCompileRC = Integer.parseInt(sValue);
+		}
+	}
+
+	/**
+	 * @return key identifying an input file (its name, length and last-modified time), which survives it being renamed
+	 * into another directory (e.g. when it is claimed)
+	 */
+	static String fileKey(File f) {
+		return f.getName()+"|"+f.length()+"|"+f.lastModified();
+	}
+
+	/**
+	 * Record an event, and apply it
+	 */
+	synchronized void record(Event e, String sFileKey, int iDeck, int iJobNumber, String sValue) {
+		apply(e, sFileKey, iDeck, iJobNumber, sValue);
+		try {
+			wJournal.write(e+"\t"+sFileKey+"\t"+iDeck+"\t"+iJobNumber+"\t"+sValue+"\n");
+			// Not buffered beyond this line, so the journal is up-to-date if we die...
+			wJournal.flush();
+			if (++iEventsSinceCompaction >= iCompactEvery)
+				compact();
+		} catch (IOException ex) {
+			log.log("WARNING: Unable to write to journal '"+fJournal.getAbsolutePath()+"': "+ex.toString());
+		}
+	}
+
+	/**
+	 * @return what the journal says about a deck of an input file; null if nothing
+	 */
+	synchronized JobRecord lookup(String sFileKey, int iDeck) {
+		HashMap<Integer,JobRecord> hm = hmFiles.get(sFileKey);
+		return (hm == null) ? null : hm.get(iDeck);
+	}
+
+	/**
+	 * @return highest job number in the journal
+	 */
+	synchronized int getMaxJobNumber() {
+		return iMaxJobNumber;
+	}
+
+	/**
+	 * @return working directories of the jobs which are to be resumed (i.e. not yet published; a published job's
+	 * directory has already been released, and may since have been reused)
+	 */
+	synchronized Set<String> getLiveWorkDirs() {
+		HashSet<String> hs = new HashSet<String>();
+		for (HashMap<Integer,JobRecord> hm : hmFiles.values()) {
+			for (JobRecord jr : hm.values()) {
+				if (!jr.eState.equals(Event.PUBLISHED) && !jr.sWorkDir.isEmpty())
+					hs.add(jr.sWorkDir);
+			}
+		}
+		return hs;
+	}
+
+	/**
+	 * Forget the jobs of all files but the given ones (e.g. of input files deleted while we were down)
+	 */
+	synchronized void retainFiles(Set<String> hsFileKeys) {
+		Iterator<String> it = hmFiles.keySet().iterator();
+		while (it.hasNext()) {
+			if (!hsFileKeys.contains(it.next()))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Rewrite the journal with just the current state, then carry on appending to it
+	 */
+	synchronized void compact() throws IOException {
+		if (wJournal != null)
+			wJournal.close();
+		File fTmp = new File(fJournal.getPath()+".tmp");
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(fTmp), StandardCharsets.UTF_8)) {
+			w.write("MAXJOB\t"+iMaxJobNumber+"\n");
+			for (Map.Entry<String,HashMap<Integer,JobRecord>> meFile : hmFiles.entrySet()) {
+				for (Map.Entry<Integer,JobRecord> meJob : meFile.getValue().entrySet()) {
+					JobRecord jr = meJob.getValue();
+					w.write("JOB\t"+meFile.getKey()+"\t"+meJob.getKey()+"\t"+jr.iJobNumber+"\t"+jr.eState+"\t"+jr.iCompileRC+"\t"+jr.sWorkDir+"\t"+jr.sListing+"\n");
+				}
+			}
+		}
+		Files.move(fTmp.toPath(), fJournal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		OutputStream os = new FileOutputStream(fJournal, true);
+		wJournal = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+		iEventsSinceCompaction = 0;
+	}
+
+	/**
+	 * Compact the journal, and stop writing to it
+	 */
+	synchronized void close() {
+		try {
+			compact();
+			wJournal.close();
+		} catch (IOException e) {
+			log.log("WARNING: Unable to close journal '"+fJournal.getAbsolutePath()+"': "+e.toString());
+		}
+	}
+
+}
@@ -0,0 +1,424 @@
+package com.joev.batch;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.joev.util.SimpleLogger;
+
+/**
+ * Archive of finished listings, so that the Output directory needn't hold one file for every job ever run: each listing
+ * is appended, compressed (as a gzip member of its own), to the current segment file (segment-00001.gz, ...; a new one
+ * is started once the current one reaches its size limit), and a line is appended to the index (index.txt):
+ *   <listing name> <tab> <RC> <tab> <segment number> <tab> <offset> <tab> <compressed length>
+ * The listing name gives its date/time, job number and input filename; the RC is -1 if not known. Only the newest
+ * listings (ArchiveKeepNewest) are also kept as plain files in the Output directory.
+ * Fetching a listing takes one seek into its segment, once the index has been read. Segment files are gzip files in
+ * their own right, so "zcat segment-00001.gz" shows all of the listings in one.
+ * Several simulators sharing a spool may archive into the same directory: appends are made under a file lock, and
+ * each picks up the others' index lines as it goes.
+ * Usage (to query the archive):
+ *   OutputArchive [-d <archive dir>] list [-j <job number>] [-f <input filename>] [-from <yyyyMMdd...>] [-to <yyyyMMdd...>] [-rc <n>]
+ *   OutputArchive [-d <archive dir>] get <listing name>
+ */
+public class OutputArchive {
+
+	private static final SimpleLogger log = new SimpleLogger(OutputArchive.class.getSimpleName());
+
+	private static final String sIndexFile = "index.txt";
+	private static final String sLockFile = "archive.lock";
+	// Listing names: <yyyyMMddHHmmssSSS>_<job number>_<input filename>...
+	private static final Pattern patListing = Pattern.compile("(\\d{17})_(\\d{4,})_(.+)");
+	// Listings left in the Output directory (e.g. from before the archive was used) are archived once they are this
+	// old, by which time they're surely finished...
+	private static final long lStaleListingMillis = 3600*1000;
+
+	/**
+	 * An archived listing
+	 */
+	public static class Entry {
+		public final String sListing;
+		public final int iRC;
+		private final int iSegment;
+		private final long lOffset;
+		private final long lLength;
+
+		private Entry(String sListing, int iRC, int iSegment, long lOffset, long lLength) {
+			this.sListing = sListing;
+			this.iRC = iRC;
+			this.iSegment = iSegment;
+			this.lOffset = lOffset;
+			this.lLength = lLength;
+		}
+
+		/**
+		 * @return when the job was run: yyyyMMddHHmmssSSS
+		 */
+		public String getDate() {
+			Matcher m = patListing.matcher(sListing);
+			return m.matches() ? m.group(1) : "";
+		}
+
+		public int getJobNumber() {
+			Matcher m = patListing.matcher(sListing);
+			return m.matches() ? Integer.parseInt(m.group(2)) : -1;
+		}
+
+		public String getInputFilename() {
+			Matcher m = patListing.matcher(sListing);
+			return m.matches() ? m.group(3) : sListing;
+		}
+
+		public String toString() {
+			return sListing+"\t"+iRC+"\t"+iSegment+"\t"+lOffset+"\t"+lLength;
+		}
+	}
+
+	private final File fArchiveDir;
+	private final File fOutputDir;
+	private final long lSegmentMaxBytes;
+	private final int iKeepNewest;
+	// The archived listings, in the order they were archived, and by name...
+	private final ArrayList<Entry> alEntries = new ArrayList<Entry>();
+	private final HashMap<String,Entry> hmEntries = new HashMap<String,Entry>();
+	// Names of the newest listings, which are kept as plain files too, oldest first (the names start with the
+	// date/time, so in name order; the order they were archived in may differ, e.g. for those left in the Output
+	// directory, or archived by another simulator)...
+	private final TreeSet<String> hsPlain = new TreeSet<String>();
+	// Names dropped from hsPlain while reading the index, whose plain files archive() still has to delete...
+	private final ArrayList<String> alEvicted = new ArrayList<String>();
+	private int iLastSegment = 1;
+	// How much of the index has been read...
+	private long lIndexBytesRead = 0;
+	// Archives listings in the background (null if the archive is only being queried)...
+	private final ExecutorService esArchive;
+
+	/**
+	 * Open the archive, just to query it
+	 * @param fArchiveDir directory holding the archive
+	 */
+	public OutputArchive(File fArchiveDir) throws IOException {
+		this.fArchiveDir = fArchiveDir;
+		this.fOutputDir = null;
+		this.lSegmentMaxBytes = 0;
+		this.iKeepNewest = 0;
+		this.esArchive = null;
+		readIndex();
+	}
+
+	/**
+	 * Open the archive, to add listings to it; any listings in the Output directory which should be archived (or which
+	 * are archived, and no longer among the newest) are taken care of in the background
+	 * @param fArchiveDir directory holding the archive (created if necessary)
+	 * @param fOutputDir directory holding the plain listings
+	 * @param lSegmentMaxBytes size at which to start a new segment file
+	 * @param iKeepNewest number of the newest listings to keep as plain files too
+	 */
+	OutputArchive(File fArchiveDir, File fOutputDir, long lSegmentMaxBytes, int iKeepNewest) throws IOException {
+		this.fArchiveDir = fArchiveDir;
+		this.fOutputDir = fOutputDir;
+		this.lSegmentMaxBytes = lSegmentMaxBytes;
+		this.iKeepNewest = iKeepNewest;
+		if (!fArchiveDir.isDirectory() && !fArchiveDir.mkdirs())
+			throw new IOException("Unable to create archive directory '"+fArchiveDir.getAbsolutePath()+"'");
+		readIndex();
+		log.log("Output archive '"+fArchiveDir.getAbsolutePath()+"': "+alEntries.size()+" listings, in "+iLastSegment+" segment(s); keeping the newest "+iKeepNewest+" in '"+fOutputDir.getAbsolutePath()+"'.");
+		this.esArchive = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "OutputArchive");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		esArchive.execute(new Runnable() {
+			public void run() {
+				tidyOutputDir();
+			}
+		});
+	}
+
+	/**
+	 * Archive a finished listing (in the background)
+	 * @param fListing the listing, in the Output directory
+	 * @param iRC the job's result
+	 */
+	void add(final File fListing, final int iRC) {
+		esArchive.execute(new Runnable() {
+			public void run() {
+				archive(fListing, iRC);
+			}
+		});
+	}
+
+	/**
+	 * Finish archiving the listings already added
+	 */
+	void close() throws InterruptedException {
+		esArchive.shutdown();
+		esArchive.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Append a listing to the current segment, and to the index, unless it's already there; then delete the plain
+	 * listings which are no longer among the newest
+	 */
+	private synchronized void archive(File fListing, int iRC) {
+		String sListing = indexName(fListing.getName());
+		try (FileChannel fc = FileChannel.open(new File(fArchiveDir, sLockFile).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			// (Released when the channel is closed)...
+			fc.lock();
+			// Pick up anything another simulator has archived...
+			readIndex();
+			if (!hmEntries.containsKey(sListing) && fListing.isFile()) {
+				File fSegment = getSegmentFile(iLastSegment);
+				if (fSegment.length() >= lSegmentMaxBytes)
+					fSegment = getSegmentFile(++iLastSegment);
+				long lOffset = fSegment.length();
+				try (OutputStream os = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(fSegment, true), 64*1024))) {
+					Files.copy(fListing.toPath(), os);
+				} catch (IOException e) {
+					// Don't leave part of a listing in the segment...
+					try (RandomAccessFile raf = new RandomAccessFile(fSegment, "rw")) {
+						raf.setLength(lOffset);
+					}
+					throw e;
+				}
+				Entry e = new Entry(sListing, iRC, iLastSegment, lOffset, fSegment.length()-lOffset);
+				byte[] abLine = (e.toString()+"\n").getBytes(StandardCharsets.UTF_8);
+				try (OutputStream os = new FileOutputStream(new File(fArchiveDir, sIndexFile), true)) {
+					os.write(abLine);
+				}
+				lIndexBytesRead += abLine.length;
+				addEntry(e);
+			}
+			// Keep just the newest as plain files...
+			for (Iterator<String> it = hsPlain.iterator(); hsPlain.size() > iKeepNewest && it.hasNext(); ) {
+				new File(fOutputDir, it.next()).delete();
+				it.remove();
+			}
+			for (String sName : alEvicted)
+				new File(fOutputDir, sName).delete();
+			alEvicted.clear();
+		} catch (IOException e) {
+			log.log("WARNING: Unable to archive listing '"+fListing.getAbsolutePath()+"': "+e.toString());
+		}
+	}
+
+	/**
+	 * Archive any listings in the Output directory which were left there (e.g. from before the archive was used), and
+	 * delete those which are archived, and not among the newest
+	 */
+	private void tidyOutputDir() {
+		String[] lsNames = fOutputDir.list();
+		if (lsNames == null)
+			return;
+		// (The names start with the date/time, so this is oldest first)...
+		Arrays.sort(lsNames);
+		long lStale = System.currentTimeMillis() - lStaleListingMillis;
+		int iArchived = 0;
+		for (String sName : lsNames) {
+			File f = new File(fOutputDir, sName);
+			if (patListing.matcher(sName).matches() && !isArchived(indexName(sName)) && f.lastModified() < lStale) {
+				archive(f, -1);
+				iArchived++;
+			}
+		}
+		int iDeleted = 0;
+		synchronized (this) {
+			for (String sName : lsNames) {
+				String sListing = indexName(sName);
+				if (hmEntries.containsKey(sListing) && !hsPlain.contains(sListing) && new File(fOutputDir, sName).delete())
+					iDeleted++;
+			}
+		}
+		if (iArchived > 0 || iDeleted > 0)
+			log.log("Archived "+iArchived+" listing(s) left in '"+fOutputDir.getAbsolutePath()+"', and deleted "+iDeleted+" archived listing(s) from there.");
+	}
+
+	/**
+	 * @return the name a listing file is archived under (the index is tab-separated, one listing per line)
+	 */
+	private static String indexName(String sFilename) {
+		return sFilename.replaceAll("[\t\r\n]", "_");
+	}
+
+	private synchronized boolean isArchived(String sName) {
+		return hmEntries.containsKey(sName);
+	}
+
+	private File getSegmentFile(int iSegment) {
+		return new File(fArchiveDir, String.format("segment-%05d.gz", iSegment));
+	}
+
+	/**
+	 * Read the index lines added since it was last read (complete lines only)
+	 */
+	private synchronized void readIndex() throws IOException {
+		File fIndex = new File(fArchiveDir, sIndexFile);
+		if (!fIndex.exists() || fIndex.length() <= lIndexBytesRead)
+			return;
+		byte[] ab;
+		try (RandomAccessFile raf = new RandomAccessFile(fIndex, "r")) {
+			raf.seek(lIndexBytesRead);
+			ab = new byte[(int) (raf.length() - lIndexBytesRead)];
+			raf.readFully(ab);
+		}
+		int iStart = 0;
+		for (int i = 0; i < ab.length; i++) {
+			if (ab[i] != '\n')
+				continue;
+			String[] ls = new String(ab, iStart, i-iStart, StandardCharsets.UTF_8).split("\t");
+			iStart = i+1;
+			try {
+				addEntry(new Entry(ls[0], Integer.parseInt(ls[1]), Integer.parseInt(ls[2]), Long.parseLong(ls[3]), Long.parseLong(ls[4])));
+			} catch (RuntimeException e) {
+				log.log("WARNING: Skipping invalid line in archive index '"+fIndex.getAbsolutePath()+"': "+Arrays.toString(ls));
+			}
+		}
+		lIndexBytesRead += iStart;
+	}
+
+	private void addEntry(Entry e) {
+		if (hmEntries.put(e.sListing, e) == null)
+			alEntries.add(e);
+		iLastSegment = Math.max(iLastSegment, e.iSegment);
+		if (fOutputDir != null) {
+			hsPlain.add(e.sListing);
+			// Forget the oldest, without deleting them here; archive() does that, under the lock...
+			for (Iterator<String> it = hsPlain.iterator(); hsPlain.size() > iKeepNewest+1 && it.hasNext(); ) {
+				alEvicted.add(it.next());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return the listing with a given name; null if it isn't in the archive
+	 */
+	public synchronized Entry get(String sListing) {
+		return hmEntries.get(sListing);
+	}
+
+	/**
+	 * Find listings in the archive; each condition is ignored if it's null
+	 * @param iJobNumber job number
+	 * @param sInputFilename name of the input file
+	 * @param sFrom earliest date/time, as yyyyMMdd[HH[mm[ss[SSS]]]]
+	 * @param sTo latest date/time, as yyyyMMdd[HH[mm[ss[SSS]]]] (inclusive)
+	 * @param iRC result of the job
+	 * @return the listings, oldest first
+	 */
+	public synchronized List<Entry> find(Integer iJobNumber, String sInputFilename, String sFrom, String sTo, Integer iRC) {
+		ArrayList<Entry> al = new ArrayList<Entry>();
+		for (Entry e : alEntries) {
+			String sDate = e.getDate();
+			if ((iJobNumber == null || e.getJobNumber() == iJobNumber)
+				&& (sInputFilename == null || e.getInputFilename().equals(sInputFilename))
+				&& (sFrom == null || sDate.compareTo(sFrom) >= 0)
+				&& (sTo == null || sDate.substring(0, Math.min(sTo.length(), sDate.length())).compareTo(sTo) <= 0)
+				&& (iRC == null || e.iRC == iRC))
+				al.add(e);
+		}
+		return al;
+	}
+
+	/**
+	 * Copy an archived listing (uncompressed) to a stream
+	 */
+	public void copyListing(Entry e, OutputStream os) throws IOException {
+		byte[] ab = new byte[(int) e.lLength];
+		try (RandomAccessFile raf = new RandomAccessFile(getSegmentFile(e.iSegment), "r")) {
+			raf.seek(e.lOffset);
+			raf.readFully(ab);
+		}
+		try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(ab))) {
+			byte[] abBuffer = new byte[8192];
+			int iRead;
+			while ((iRead = is.read(abBuffer)) > 0)
+				os.write(abBuffer, 0, iRead);
+		}
+		os.flush();
+	}
+
+	public static void main(String[] args) throws Exception {
+		File fArchiveDir = null;
+		int i = 0;
+		if (args.length >= 2 && args[0].equals("-d")) {
+			fArchiveDir = new File(args[1]);
+			i = 2;
+		}
+		if (fArchiveDir == null) {
+			Properties props = new Properties();
+			try (InputStream is = OutputArchive.class.getResourceAsStream("/BatchSimulator.properties")) {
+				if (is != null)
+					props.load(is);
+			}
+			fArchiveDir = new File(props.getProperty("ArchiveDir", new File(props.getProperty("SpoolParentDir", "Spool"), "Archive").getPath()));
+		}
+		String sCommand = (i < args.length) ? args[i++] : "";
+		if (sCommand.equals("get") && i+1 == args.length) {
+			OutputArchive oa = new OutputArchive(fArchiveDir);
+			Entry e = oa.get(args[i]);
+			if (e == null) {
+				System.err.println("Listing '"+args[i]+"' is not in the archive '"+fArchiveDir.getPath()+"'.");
+				System.exit(1);
+			}
+			oa.copyListing(e, System.out);
+			return;
+		}
+		if (sCommand.equals("list")) {
+			Integer iJobNumber = null;
+			String sInputFilename = null;
+			String sFrom = null;
+			String sTo = null;
+			Integer iRC = null;
+			for (; i+1 < args.length; i += 2) {
+				if (args[i].equals("-j"))
+					iJobNumber = Integer.parseInt(args[i+1]);
+				else if (args[i].equals("-f"))
+					sInputFilename = args[i+1];
+				else if (args[i].equals("-from"))
+					sFrom = args[i+1];
+				else if (args[i].equals("-to"))
+					sTo = args[i+1];
+				else if (args[i].equals("-rc"))
+					iRC = Integer.parseInt(args[i+1]);
+				else
+					break;
+			}
+			if (i == args.length) {
+				for (Entry e : new OutputArchive(fArchiveDir).find(iJobNumber, sInputFilename, sFrom, sTo, iRC))
+					System.out.println(String.format("%4d %s", e.iRC, e.sListing));
+				return;
+			}
+		}
+		System.err.println("Usage: OutputArchive [-d <archive dir>] list [-j <job number>] [-f <input filename>] [-from <yyyyMMdd...>] [-to <yyyyMMdd...>] [-rc <n>]");
+		System.err.println("       OutputArchive [-d <archive dir>] get <listing name>");
+		System.exit(2);
+	}
+
+}
@@ -0,0 +1,95 @@
+package com.joev.batch;
+
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.joev.util.SimpleLogger;
+
+/**
+ * One stage of a pipeline: a fixed number of threads, each taking work items from a bounded queue and handing them to
+ * a Handler (which typically does its part of the work, then puts the item to the next stage). Since put() waits while
+ * the queue is full, a slow stage holds back the stages before it, rather than letting work pile up.
+ */
+class PipelineStage<T> {
+
+	private static final SimpleLogger log = new SimpleLogger(PipelineStage.class.getSimpleName());
+
+	/**
+	 * Does a stage's work on one item
+	 */
+	interface Handler<T> {
+		void handle(T t) throws Exception;
+	}
+
+	private final String sName;
+	private final LinkedBlockingQueue<T> lbqWork;
+	private final ArrayList<Thread> altWorkers = new ArrayList<Thread>();
+	private volatile boolean bShutdown = false;
+
+	/**
+	 * Create the stage, and start its threads
+	 * @param sName name of the stage (its threads are named '<sName>-n')
+	 * @param iThreads number of threads
+	 * @param iQueueDepth number of items which may wait in the stage's queue
+	 * @param h does the stage's work
+	 */
+	PipelineStage(String sName, int iThreads, int iQueueDepth, final Handler<T> h) {
+		this.sName = sName;
+		this.lbqWork = new LinkedBlockingQueue<T>(iQueueDepth);
+		log.log("Starting pipeline stage '"+sName+"' with "+iThreads+" thread(s), queue depth "+iQueueDepth+".");
+		for (int i = 1; i <= iThreads; i++) {
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					while (true) {
+						T t;
+						try {
+							t = lbqWork.poll(100, TimeUnit.MILLISECONDS);
+						} catch (InterruptedException e) {
+							return;
+						}
+						if (t == null) {
+							// Once shut down, stop as soon as the queue is empty...
+							if (bShutdown && lbqWork.isEmpty())
+								return;
+							continue;
+						}
+						try {
+							h.handle(t);
+						} catch (Exception e) {
+							log.log("ERROR: Pipeline stage '"+PipelineStage.this.sName+"' failed on "+t+": "+e.toString());
+							e.printStackTrace();
+						}
+					}
+				}
+			}, sName+"-"+i);
+			altWorkers.add(t);
+			t.start();
+		}
+	}
+
+	/**
+	 * Add an item to the stage's queue, waiting for room if it's full
+	 */
+	void put(T t) throws InterruptedException {
+		lbqWork.put(t);
+	}
+
+	/**
+	 * @return number of items waiting in the stage's queue
+	 */
+	int getQueueLength() {
+		return lbqWork.size();
+	}
+
+	/**
+	 * Let the stage's threads finish everything in its queue, then stop them, and wait for them to end
+	 */
+	void shutdownAndWait() throws InterruptedException {
+		bShutdown = true;
+		for (Thread t : altWorkers)
+			t.join();
+		log.log("Pipeline stage '"+sName+"' stopped.");
+	}
+
+}
@@ -0,0 +1,271 @@
+package com.joev.batch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.joev.util.SimpleLogger;
+
+/**
+ * Decides the order in which the input spool files which are ready to run are taken from the queue. The queue is
+ * listed oldest first; a policy reorders it (stably, so that files it considers equal stay oldest first):
+ *   FIFO: oldest first
+ *   PRIORITY: highest PRIORITY= parameter on the file's $JOB card(s) first (default 0)
+ *   SJF: shortest expected (compile+run) time first, estimated from the JobHistory, less an allowance for time spent
+ *        waiting in the queue (AgingFactor milliseconds per millisecond waited), so that long jobs aren't starved
+ * The decks in each file are scanned (once, unless the file changes) to find their parameters, languages, program
+ * names and program hashes, the same way BatchJobReader hashes the program as it parses the deck.
+ * The order is given by each file's rank (lower first, then oldest first), so that a file's place in the queue can be
+ * worked out once, when it joins the queue (see SpoolIndex).
+ */
+abstract class QueuePolicy {
+
+	protected static final SimpleLogger log = new SimpleLogger(QueuePolicy.class.getSimpleName());
+
+	enum Kind { FIFO, PRIORITY, SJF }
+
+	private static final Pattern patCompileCard = Pattern.compile("^\\$(PY|JAVA|C) (\\w+).*");
+	private static final Pattern patPriority = Pattern.compile("\\bPRIORITY=(\\S+)");
+
+	/**
+	 * What a scan of one input spool file found
+	 */
+	protected static class FileSummary {
+		long lLength;
+		long lLastModified;
+		// Highest PRIORITY= of any deck in the file...
+		int iPriority = 0;
+		// Total expected compile+run time of the decks in the file...
+		long lExpectedMillis = 0;
+	}
+
+	// Summaries of the files in the queue, so each file is only scanned once (files may be ranked from more than one
+	// thread)...
+	private final ConcurrentHashMap<File,FileSummary> hmSummaries = new ConcurrentHashMap<File,FileSummary>();
+
+	/**
+	 * @return the policy of the given kind
+	 */
+	static QueuePolicy create(Kind kind, JobHistory jobHistory, double dAgingFactor, long lDefaultEstimateMillis) {
+		switch (kind) {
+		case PRIORITY:
+			return new Priority();
+		case SJF:
+			return new ShortestExpectedFirst(jobHistory, dAgingFactor, lDefaultEstimateMillis);
+		default:
+			return new Fifo();
+		}
+	}
+
+	/**
+	 * @return name of the policy, for the log
+	 */
+	abstract String getName();
+
+	/**
+	 * Put the queue (which is oldest first) in the order its files should be run
+	 */
+	void order(List<File> alfQueue) {
+		// Forget files which have left the queue...
+		hmSummaries.keySet().retainAll(alfQueue);
+		if (!isRanked() || alfQueue.size() < 2)
+			return;
+		Collections.sort(alfQueue, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				return Double.compare(rank(f1), rank(f2));
+			}
+		});
+		StringBuilder sb = new StringBuilder("Queue order ("+getName()+"):");
+		for (File f : alfQueue)
+			sb.append(" ").append(f.getName()).append(describe(f));
+		log.log(sb.toString());
+	}
+
+	/**
+	 * @return false if every file has the same rank (i.e. the queue is run oldest first)
+	 */
+	protected boolean isRanked() {
+		return true;
+	}
+
+	/**
+	 * @return the file's rank; files of lower rank are run first, and files of equal rank, oldest first
+	 */
+	abstract double rank(File f);
+
+	/**
+	 * Forget a file which has left the queue
+	 */
+	void forget(File f) {
+		hmSummaries.remove(f);
+	}
+
+	/**
+	 * @return what the policy is ordering the file by, for the log (e.g. "(PRIORITY=5)")
+	 */
+	protected String describe(File f) {
+		return "";
+	}
+
+	/**
+	 * Estimate the compile+run time of one deck
+	 */
+	protected long estimateMillis(String sCompilerLang, String sPgmName, String sPgmHash) {
+		return 0;
+	}
+
+	/**
+	 * @return the file's summary, scanning the file if it hasn't been scanned since it last changed
+	 */
+	protected FileSummary getSummary(File f) {
+		FileSummary fs = hmSummaries.get(f);
+		if (fs != null && fs.lLength == f.length() && fs.lLastModified == f.lastModified())
+			return fs;
+		fs = new FileSummary();
+		fs.lLength = f.length();
+		fs.lLastModified = f.lastModified();
+		try {
+			scan(f, fs);
+		} catch (Exception e) {
+			log.log("WARNING: Unable to scan '"+f.getName()+"' to order the queue: "+e.toString());
+		}
+		hmSummaries.put(f, fs);
+		return fs;
+	}
+
+	/**
+	 * Read through a file's decks, noting each one's PRIORITY= and estimated time
+	 */
+	private void scan(File f, FileSummary fs) throws Exception {
+		MessageDigest mdPgm = MessageDigest.getInstance("SHA-256");
+		// Program lines are only hashed, not kept...
+		OutputStream osHash = new DigestOutputStream(new OutputStream() {
+			public void write(int b) { }
+			public void write(byte[] ab, int iOff, int iLen) { }
+		}, mdPgm);
+		boolean bFirstPriority = true;
+		String sCompilerLang = null;
+		String sPgmName = null;
+		boolean bInProgram = false;
+		try (DeckReader dr = new DeckReader(new FileInputStream(f))) {
+			while (dr.readLine()) {
+				if (dr.startsWith("$JOB ") || (bInProgram && dr.startsWith("$RUN"))) {
+					if (sCompilerLang != null) {
+						fs.lExpectedMillis += estimateMillis(sCompilerLang, sPgmName, CompileCache.toHex(mdPgm.digest()));
+						sCompilerLang = null;
+					}
+					bInProgram = false;
+					if (dr.startsWith("$JOB ")) {
+						Matcher m = patPriority.matcher(dr.getLine());
+						if (m.find()) {
+							try {
+								int iPriority = Integer.parseInt(m.group(1));
+								fs.iPriority = bFirstPriority ? iPriority : Math.max(fs.iPriority, iPriority);
+								bFirstPriority = false;
+							} catch (NumberFormatException e) {
+								log.log("WARNING: Ignoring invalid $JOB parameter PRIORITY="+m.group(1)+" in '"+f.getName()+"' (expecting a number)");
+							}
+						}
+					}
+				} else if (bInProgram) {
+					dr.writeLine(osHash);
+				} else if (dr.startsWith("$")) {
+					Matcher m = patCompileCard.matcher(dr.getLine());
+					if (m.matches()) {
+						sCompilerLang = m.group(1);
+						sPgmName = m.group(2);
+						mdPgm.reset();
+						bInProgram = true;
+					}
+				}
+			}
+		}
+		if (sCompilerLang != null)
+			fs.lExpectedMillis += estimateMillis(sCompilerLang, sPgmName, CompileCache.toHex(mdPgm.digest()));
+	}
+
+	/**
+	 * Oldest first
+	 */
+	static class Fifo extends QueuePolicy {
+		String getName() {
+			return Kind.FIFO.name();
+		}
+
+		protected boolean isRanked() {
+			return false;
+		}
+
+		double rank(File f) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Highest PRIORITY= first, then oldest first
+	 */
+	static class Priority extends QueuePolicy {
+		String getName() {
+			return Kind.PRIORITY.name();
+		}
+
+		double rank(File f) {
+			return -getSummary(f).iPriority;
+		}
+
+		protected String describe(File f) {
+			return "(PRIORITY="+getSummary(f).iPriority+")";
+		}
+	}
+
+	/**
+	 * Shortest expected time first, with aging: a file's score is its expected time, less AgingFactor times how long
+	 * it has been waiting. Since every file's wait grows at the same rate, the order only changes as files arrive, so
+	 * the score can be computed from the arrival time instead, as the file's rank: expected + AgingFactor*lastModified.
+	 */
+	static class ShortestExpectedFirst extends QueuePolicy {
+		private final JobHistory jobHistory;
+		private final double dAgingFactor;
+		private final long lDefaultEstimateMillis;
+
+		ShortestExpectedFirst(JobHistory jobHistory, double dAgingFactor, long lDefaultEstimateMillis) {
+			this.jobHistory = jobHistory;
+			this.dAgingFactor = dAgingFactor;
+			this.lDefaultEstimateMillis = lDefaultEstimateMillis;
+		}
+
+		String getName() {
+			return Kind.SJF.name();
+		}
+
+		double rank(File f) {
+			return getSummary(f).lExpectedMillis + dAgingFactor*f.lastModified();
+		}
+
+		protected String describe(File f) {
+			return "(~"+getSummary(f).lExpectedMillis+"ms)";
+		}
+
+		/**
+		 * This program's own history if it has run before; otherwise the average of its language; otherwise (or with no
+		 * JobHistory) the default
+		 */
+		protected long estimateMillis(String sCompilerLang, String sPgmName, String sPgmHash) {
+			if (jobHistory == null)
+				return lDefaultEstimateMillis;
+			long lMillis = jobHistory.getExpectedMillis(sCompilerLang, sPgmName, sPgmHash);
+			if (lMillis < 0)
+				lMillis = jobHistory.getLanguageMeanMillis(sCompilerLang);
+			return (lMillis < 0) ? lDefaultEstimateMillis : lMillis;
+		}
+	}
+
+}
@@ -0,0 +1,224 @@
+package com.joev.batch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+import com.joev.util.CommandRunner.CommandRunnerResult;
+import com.joev.util.FileUtil;
+import com.joev.util.SimpleLogger;
+
+/**
+ * On-disk cache of the results of jobs, so that a job which is run again unchanged (same language, program name,
+ * source code, input data, time limits and toolchain) gets its listing straight away, without compiling or running
+ * anything.
+ * Each entry is a directory, named by the hash of its key, containing the result of the compile command (if the
+ * language is compiled) and of the run command (unless the compile failed). Entries stored longer ago than the age
+ * limit are not used, and those not used within it are removed; when the cache grows beyond its size limit, the least
+ * recently used entries are evicted.
+ * Only results which finished within their time limits are cached, and only a deterministic program gives the same
+ * results every time, so a job which doesn't (e.g. it prints the time) should say CACHE=NO on its $JOB card.
+ */
+class ResultCache {
+
+	private static final SimpleLogger log = new SimpleLogger(ResultCache.class.getSimpleName());
+
+	private static final String sEntryFile = "entry.properties";
+	private static final String sCompileDir = "compile";
+	private static final String sRunDir = "run";
+
+	/**
+	 * Results found in the cache
+	 */
+	static class Result {
+		// Result of the compile command; null if the language isn't compiled...
+		final CommandRunnerResult crrCompile;
+		// Result of the run command; null if the compile failed...
+		final CommandRunnerResult crrRun;
+		// When the results were stored (System.currentTimeMillis())...
+		final long lStoredMillis;
+
+		private Result(CommandRunnerResult crrCompile, CommandRunnerResult crrRun, long lStoredMillis) {
+			this.crrCompile = crrCompile;
+			this.crrRun = crrRun;
+			this.lStoredMillis = lStoredMillis;
+		}
+	}
+
+	private final File fCacheDir;
+	private final long lMaxBytes;
+	private final long lMaxAgeMillis;
+	private long lTotalBytes = 0;
+	private long lLastSweepMillis = 0;
+
+	/**
+	 * @param fCacheDir directory in which to keep the cache (created if necessary)
+	 * @param lMaxBytes size limit for the cache; least-recently-used entries are evicted beyond this
+	 * @param lMaxAgeMillis entries stored longer ago than this are not used; 0 for no limit
+	 */
+	ResultCache(File fCacheDir, long lMaxBytes, long lMaxAgeMillis) {
+		this.fCacheDir = fCacheDir;
+		this.lMaxBytes = lMaxBytes;
+		this.lMaxAgeMillis = lMaxAgeMillis;
+		if (!fCacheDir.isDirectory() && !fCacheDir.mkdirs())
+			throw new IllegalArgumentException("Unable to create result cache directory '"+fCacheDir.getAbsolutePath()+"'!");
+		for (File fEntry : listEntries())
+			lTotalBytes += FileUtil.sizeOf(fEntry);
+		log.log("Result cache '"+fCacheDir.getAbsolutePath()+"': "+listEntries().length+" entries, "+lTotalBytes+" bytes (limit "+lMaxBytes+").");
+		evict();
+	}
+
+	/**
+	 * Build the cache key for a job
+	 * @param sLang language (e.g. JAVA)
+	 * @param sPgmName program name
+	 * @param sSourceHash hash of the program's source code
+	 * @param sInputHash hash of the program's input data
+	 * @param sToolchain identifies the compiler and runtime versions (e.g. from CompileCache.getToolVersion())
+	 * @param lCompileTimeLimitMillis time limit for compiling the program
+	 * @param lRunTimeLimitMillis time limit for running the program
+	 * @return key (a hex string, usable as a filename)
+	 */
+	static String makeKey(String sLang, String sPgmName, String sSourceHash, String sInputHash, String sToolchain, long lCompileTimeLimitMillis, long lRunTimeLimitMillis) {
+		return CompileCache.hash(sLang+"\0"+sPgmName+"\0"+sSourceHash+"\0"+sInputHash+"\0"+sToolchain+"\0"+lCompileTimeLimitMillis+"\0"+lRunTimeLimitMillis);
+	}
+
+	/**
+	 * Look for a job's results in the cache
+	 * @param sKey cache key (see makeKey())
+	 * @param fWorkDir working directory to record in the results
+	 * @return the cached results, or null if not found (or too old)
+	 */
+	Result lookup(String sKey, File fWorkDir) {
+		File fEntry = new File(fCacheDir, sKey);
+		synchronized (this) {
+			if (!fEntry.isDirectory())
+				return null;
+			// Mark it as recently used...
+			fEntry.setLastModified(System.currentTimeMillis());
+		}
+		try {
+			Properties p = new Properties();
+			try (InputStream is = new FileInputStream(new File(fEntry, sEntryFile))) {
+				p.load(is);
+			}
+			long lStoredMillis = Long.parseLong(p.getProperty("StoredMillis"));
+			if (lMaxAgeMillis > 0 && System.currentTimeMillis() - lStoredMillis > lMaxAgeMillis) {
+				remove(fEntry, "it is older than "+lMaxAgeMillis/1000+" seconds");
+				return null;
+			}
+			File fCompile = new File(fEntry, sCompileDir);
+			File fRun = new File(fEntry, sRunDir);
+			return new Result(
+				fCompile.isDirectory() ? CompileCache.loadResult(fCompile, fWorkDir) : null,
+				fRun.isDirectory() ? CompileCache.loadResult(fRun, fWorkDir) : null,
+				lStoredMillis
+			);
+		} catch (IOException | RuntimeException e) {
+			// Probably evicted while we were reading it; treat it as a miss...
+			log.log("WARNING: Unable to read result cache entry '"+fEntry.getAbsolutePath()+"': "+e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Add a job's results to the cache
+	 * @param sKey cache key (see makeKey())
+	 * @param crrCompile result of the compile command; null if the language isn't compiled
+	 * @param crrRun result of the run command; null if the compile failed
+	 */
+	void store(String sKey, CommandRunnerResult crrCompile, CommandRunnerResult crrRun) {
+		File fEntry = new File(fCacheDir, sKey);
+		// Build the entry under a temporary name, then rename it into place, so that nobody sees a partial entry...
+		File fTmpEntry = new File(fCacheDir, sKey+"."+Thread.currentThread().getId()+".tmp");
+		try {
+			if (!fTmpEntry.mkdirs())
+				throw new IOException("Unable to create directory '"+fTmpEntry.getAbsolutePath()+"'");
+			if (crrCompile != null)
+				saveResult(new File(fTmpEntry, sCompileDir), crrCompile);
+			if (crrRun != null)
+				saveResult(new File(fTmpEntry, sRunDir), crrRun);
+			Properties p = new Properties();
+			p.setProperty("StoredMillis", ""+System.currentTimeMillis());
+			try (OutputStream os = new FileOutputStream(new File(fTmpEntry, sEntryFile))) {
+				p.store(os, null);
+			}
+			long lEntryBytes = FileUtil.sizeOf(fTmpEntry);
+			synchronized (this) {
+				// Replace an entry which was too old to use...
+				if (fEntry.exists())
+					remove(fEntry, "it is being replaced");
+				if (!fTmpEntry.renameTo(fEntry)) {
+					// Someone else got there first...
+					FileUtil.deleteTree(fTmpEntry);
+					return;
+				}
+				lTotalBytes += lEntryBytes;
+				evict();
+			}
+		} catch (IOException e) {
+			log.log("WARNING: Unable to add result cache entry '"+fEntry.getAbsolutePath()+"': "+e.toString());
+			FileUtil.deleteTree(fTmpEntry);
+		}
+	}
+
+	private static void saveResult(File fDir, CommandRunnerResult crr) throws IOException {
+		if (!fDir.mkdirs())
+			throw new IOException("Unable to create directory '"+fDir.getAbsolutePath()+"'");
+		CompileCache.saveResult(fDir, crr);
+	}
+
+	private synchronized void remove(File fEntry, String sWhy) {
+		long lEntryBytes = FileUtil.sizeOf(fEntry);
+		log.log("Removing result cache entry '"+fEntry.getName()+"' ("+lEntryBytes+" bytes), as "+sWhy+".");
+		FileUtil.deleteTree(fEntry);
+		lTotalBytes -= lEntryBytes;
+	}
+
+	/**
+	 * Remove entries which haven't been used within the age limit (checking at most every tenth of it), then
+	 * least-recently-used entries, until the cache is within its size limit
+	 */
+	private synchronized void evict() {
+		long lNow = System.currentTimeMillis();
+		boolean bSweep = lMaxAgeMillis > 0 && lNow - lLastSweepMillis >= lMaxAgeMillis/10;
+		if (lTotalBytes <= lMaxBytes && !bSweep)
+			return;
+		File[] lfEntries = listEntries();
+		if (bSweep) {
+			for (File fEntry : lfEntries) {
+				if (lNow - fEntry.lastModified() > lMaxAgeMillis)
+					remove(fEntry, "it hasn't been used for "+lMaxAgeMillis/1000+" seconds");
+			}
+			lLastSweepMillis = lNow;
+			lfEntries = listEntries();
+		}
+		Arrays.sort(lfEntries, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+		for (int i = 0; i < lfEntries.length && lTotalBytes > lMaxBytes; i++)
+			remove(lfEntries[i], "the cache is over its size limit");
+	}
+
+	private File[] listEntries() {
+		File[] lf = fCacheDir.listFiles();
+		if (lf == null)
+			return new File[0];
+		// Skip any partially built entries...
+		int iCount = 0;
+		for (File f : lf) {
+			if (f.isDirectory() && !f.getName().endsWith(".tmp"))
+				lf[iCount++] = f;
+		}
+		return Arrays.copyOf(lf, iCount);
+	}
+
+}
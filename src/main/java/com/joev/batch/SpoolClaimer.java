@@ -0,0 +1,235 @@
+package com.joev.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import com.joev.util.SimpleLogger;
+
+/**
+ * Lets several BatchSimulator instances (e.g. on different machines, sharing the spool over NFS) take jobs from the
+ * same input queue without running any of them twice. Before an instance processes an input file, it claims it by
+ * renaming it into its own directory, Spool/Claimed/<node>; a rename either succeeds for exactly one instance, or
+ * fails because another instance got there first.
+ * Each instance also keeps a lease file, Spool/Claimed/<node>.lease, which it rewrites every LeaseSeconds/3 seconds.
+ * If another instance's lease file does not change for LeaseSeconds (as measured by this instance's own clock, so the
+ * machines' clocks needn't agree), that instance is presumed dead, and its claimed files are moved back to the input
+ * queue to be run again. When an instance starts, it likewise returns any files it left claimed when it last stopped.
+ * A returned file keeps its name (so a restarted instance's Journal still knows it); if a file of the same name is in
+ * the input queue, it stays claimed until that one is gone, rather than replacing it.
+ * Job numbers are taken from a sequence file, Spool/JobNumber.seq, which is locked while it is updated.
+ */
+class SpoolClaimer {
+
+	private static final SimpleLogger log = new SimpleLogger(SpoolClaimer.class.getSimpleName());
+
+	private static final String sLeaseSuffix = ".lease";
+
+	private final File fInputDir;
+	private final File fClaimedParentDir;
+	private final File fClaimedDir;
+	private final File fLease;
+	private final File fJobNumberSeq;
+	private final String sNode;
+	private final long lLeaseMillis;
+	// For each other node's lease: { last lease contents seen, when (our clock) they were first seen }...
+	private final HashMap<String,Object[]> hmLeaseSeen = new HashMap<String,Object[]>();
+	// Files we left claimed, which couldn't be returned when we started (tried again at each heartbeat)...
+	private final HashSet<File> hsUnreturned = new HashSet<File>();
+	private Thread tHeartbeat = null;
+	private volatile boolean bClosed = false;
+
+	/**
+	 * @param fSpoolParentDir the shared spool directory (holding Input)
+	 * @param sNode this instance's name; must be unique among the instances sharing the spool
+	 * @param lLeaseMillis time after which an instance whose lease has not been renewed is presumed dead
+	 */
+	SpoolClaimer(File fSpoolParentDir, String sNode, long lLeaseMillis) throws IOException {
+		this.fInputDir = new File(fSpoolParentDir, "Input");
+		this.fClaimedParentDir = new File(fSpoolParentDir, "Claimed");
+		this.fClaimedDir = new File(fClaimedParentDir, sNode);
+		this.fLease = new File(fClaimedParentDir, sNode+sLeaseSuffix);
+		this.fJobNumberSeq = new File(fSpoolParentDir, "JobNumber.seq");
+		this.sNode = sNode;
+		this.lLeaseMillis = lLeaseMillis;
+		if (!fClaimedDir.isDirectory() && !fClaimedDir.mkdirs())
+			throw new IOException("Unable to create claimed-files directory '"+fClaimedDir.getAbsolutePath()+"'");
+		log.log("Node '"+sNode+"' claiming input files into '"+fClaimedDir.getAbsolutePath()+"', with a "+lLeaseMillis+"ms lease.");
+		renewLease();
+		// Anything we claimed before we last stopped was never finished; put it back...
+		returnClaimedFiles(fClaimedDir);
+	}
+
+	/**
+	 * Start renewing our lease, and checking the other nodes' leases, in the background
+	 */
+	void start() {
+		tHeartbeat = new Thread(new Runnable() {
+			public void run() {
+				while (!bClosed) {
+					try {
+						Thread.sleep(lLeaseMillis/3);
+					} catch (InterruptedException e) {
+						return;
+					}
+					try {
+						renewLease();
+						reclaimFromDeadNodes();
+						retryUnreturned();
+					} catch (Exception e) {
+						log.log("WARNING: Lease heartbeat failed: "+e.toString());
+					}
+				}
+			}
+		}, "SpoolClaimer-Heartbeat");
+		tHeartbeat.setDaemon(true);
+		tHeartbeat.start();
+	}
+
+	/**
+	 * Claim an input file for this node
+	 * @param f the file, in the input queue
+	 * @return the file, in its new place in our claimed-files directory; null if another node claimed it first
+	 */
+	File claim(File f) throws IOException {
+		File fClaimed = new File(fClaimedDir, f.getName());
+		try {
+			Files.move(f.toPath(), fClaimed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+			log.log("File '"+f.getName()+"' was claimed by another node.");
+			return null;
+		} catch (AtomicMoveNotSupportedException e) {
+			throw new IOException("The spool's file system can't rename files atomically, so it can't be shared: "+e.getMessage());
+		}
+		log.log("Claimed '"+f.getName()+"'.");
+		return fClaimed;
+	}
+
+	/**
+	 * @return the next job number, unique across all of the nodes sharing the spool
+	 */
+	// (Synchronized, since a JVM may only hold one lock on the file at a time)
+	synchronized int nextJobNumber() throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(fJobNumberSeq, "rw");
+			 FileChannel fc = raf.getChannel()) {
+			// Held until the channel is closed...
+			fc.lock();
+			ByteBuffer bb = ByteBuffer.allocate((int) fc.size());
+			fc.read(bb, 0);
+			String s = new String(bb.array(), StandardCharsets.UTF_8).trim();
+			int iJobNumber = (s.isEmpty() ? 0 : Integer.parseInt(s)) + 1;
+			byte[] ab = (iJobNumber+"\n").getBytes(StandardCharsets.UTF_8);
+			fc.truncate(0);
+			fc.write(ByteBuffer.wrap(ab), 0);
+			fc.force(false);
+			return iJobNumber;
+		}
+	}
+
+	/**
+	 * Stop renewing our lease, and give it up (so other nodes needn't wait for it to expire)
+	 */
+	void close() {
+		bClosed = true;
+		if (tHeartbeat != null)
+			tHeartbeat.interrupt();
+		fLease.delete();
+	}
+
+	private void renewLease() throws IOException {
+		Files.write(fLease.toPath(), (sNode+" "+System.currentTimeMillis()+"\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Return the claimed files of any node whose lease has expired (or which has claimed files, but no lease at all)
+	 */
+	private void reclaimFromDeadNodes() throws IOException {
+		File[] lfNodeDirs = fClaimedParentDir.listFiles();
+		if (lfNodeDirs == null)
+			return;
+		long lNow = System.currentTimeMillis();
+		for (File fNodeDir : lfNodeDirs) {
+			String sOtherNode = fNodeDir.getName();
+			if (!fNodeDir.isDirectory() || sOtherNode.equals(sNode))
+				continue;
+			File fOtherLease = new File(fClaimedParentDir, sOtherNode+sLeaseSuffix);
+			String sLease = "";
+			try {
+				sLease = new String(Files.readAllBytes(fOtherLease.toPath()), StandardCharsets.UTF_8);
+			} catch (NoSuchFileException e) {
+				// No lease at all (e.g. it stopped, or was never started), so it's as good as expired...
+			}
+			Object[] aoSeen = hmLeaseSeen.get(sOtherNode);
+			if (aoSeen == null || !aoSeen[0].equals(sLease)) {
+				hmLeaseSeen.put(sOtherNode, new Object[] { sLease, lNow });
+				continue;
+			}
+			if (lNow - (Long) aoSeen[1] >= lLeaseMillis) {
+				String[] lsClaimed = fNodeDir.list();
+				if (lsClaimed != null && lsClaimed.length > 0) {
+					log.log("Node '"+sOtherNode+"' has not renewed its lease for "+(lNow - (Long) aoSeen[1])+"ms; returning its "+lsClaimed.length+" claimed file(s) to the input queue...");
+					returnClaimedFiles(fNodeDir);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Move all of the files in a node's claimed-files directory back to the input queue
+	 */
+	private void returnClaimedFiles(File fNodeDir) {
+		File[] lf = fNodeDir.listFiles();
+		if (lf == null)
+			return;
+		for (File f : lf) {
+			// (Another node's files are tried again at each heartbeat anyway, while its lease stays expired)
+			if (!returnClaimedFile(f) && fNodeDir.equals(fClaimedDir))
+				hsUnreturned.add(f);
+		}
+	}
+
+	/**
+	 * Try again to return the files we left claimed, which couldn't be returned when we started
+	 */
+	private void retryUnreturned() {
+		for (Iterator<File> it = hsUnreturned.iterator(); it.hasNext(); ) {
+			if (returnClaimedFile(it.next()))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Move a claimed file back to the input queue, under its own name
+	 * @return false if a file of the same name is in the input queue, so it can't be returned yet
+	 */
+	private boolean returnClaimedFile(File f) {
+		File fReturned = new File(fInputDir, f.getName());
+		try {
+			// Link it into place, then remove it from the claimed-files directory: unlike a rename, the link fails,
+			// rather than replacing a newer file of the same name...
+			Files.createLink(fReturned.toPath(), f.toPath());
+			Files.delete(f.toPath());
+			log.log("Returned '"+f.getName()+"' (claimed by '"+f.getParentFile().getName()+"') to the input queue.");
+		} catch (FileAlreadyExistsException e) {
+			log.log("Unable to return '"+f.getAbsolutePath()+"' to the input queue yet, as a file of the same name is there. Will try again.");
+			return false;
+		} catch (NoSuchFileException e) {
+			// Another node returned it first...
+		} catch (IOException | UnsupportedOperationException e) {
+			log.log("WARNING: Unable to return '"+f.getAbsolutePath()+"' to the input queue: "+e.toString());
+		}
+		return true;
+	}
+
+}
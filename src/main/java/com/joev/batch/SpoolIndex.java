@@ -0,0 +1,179 @@
+package com.joev.batch;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.joev.util.SimpleLogger;
+
+/**
+ * An index of the input queue, kept in memory and brought up to date incrementally, so that taking the next file to
+ * run doesn't mean listing, stat-ing, sorting and logging the whole queue each time.
+ * The files which are ready to run are kept in the order the QueuePolicy gives them (by rank, then oldest first); each
+ * file's rank is worked out once, when it becomes ready. Before each file is taken, only the files the SpoolWatcher
+ * has had events for, and those still settling, are looked at again. The directory is rescanned when polling, when
+ * events were lost, and every IntakeRescanSeconds regardless (in case events quietly stop arriving); a rescan just
+ * lists the names in the directory, and looks at the ones which have come or gone.
+ * A file which has been taken stays out of the index until it is forgotten (once it's deleted, or claimed, or couldn't
+ * be read to the end, so that it's looked at again).
+ */
+class SpoolIndex {
+
+	private static final SimpleLogger log = new SimpleLogger(SpoolIndex.class.getSimpleName());
+
+	/**
+	 * A file which is ready to run
+	 */
+	private static class Entry {
+		private final File f;
+		private final long lLength;
+		private final long lLastModified;
+		private final double dRank;
+
+		private Entry(File f, double dRank) {
+			this.f = f;
+			this.lLength = f.length();
+			this.lLastModified = f.lastModified();
+			this.dRank = dRank;
+		}
+	}
+
+	private final File fDir;
+	private final SpoolWatcher sw;
+	private final QueuePolicy queuePolicy;
+	private final Set<String> hsControlFilenames;
+	private final long lRescanMillis;
+	private long lLastRescan = 0;
+	// Files which are ready, in the order they should be run...
+	private final TreeSet<Entry> tsReady = new TreeSet<Entry>(new Comparator<Entry>() {
+		public int compare(Entry e1, Entry e2) {
+			int iCompare = Double.compare(e1.dRank, e2.dRank);
+			if (iCompare == 0)
+				iCompare = Long.compare(e1.lLastModified, e2.lLastModified);
+			return (iCompare != 0) ? iCompare : e1.f.getName().compareTo(e2.f.getName());
+		}
+	});
+	// ...and by name...
+	private final HashMap<String,Entry> hmReady = new HashMap<String,Entry>();
+	// Names of files which are still being written...
+	private final HashSet<String> hsPending = new HashSet<String>();
+	// Names of files which have been taken, but not yet forgotten...
+	private final HashSet<String> hsTaken = new HashSet<String>();
+
+	/**
+	 * @param sw watcher of the input queue directory (already started)
+	 * @param hsControlFilenames names of command files (e.g. the stop-command file), which aren't jobs
+	 * @param lRescanMillis longest time between rescans of the directory, even while events are being received
+	 */
+	SpoolIndex(File fDir, SpoolWatcher sw, QueuePolicy queuePolicy, Set<String> hsControlFilenames, long lRescanMillis) {
+		this.fDir = fDir;
+		this.sw = sw;
+		this.queuePolicy = queuePolicy;
+		this.hsControlFilenames = hsControlFilenames;
+		this.lRescanMillis = lRescanMillis;
+	}
+
+	/**
+	 * Take the next file to run out of the queue
+	 * @return the file; null if no file is ready
+	 */
+	synchronized File poll() {
+		refresh();
+		Entry e = tsReady.pollFirst();
+		if (e == null)
+			return null;
+		hmReady.remove(e.f.getName());
+		hsTaken.add(e.f.getName());
+		return e.f;
+	}
+
+	/**
+	 * Forget a file which has been taken, once it's done with (or has been moved away), so that a later file with the
+	 * same name is treated as new
+	 */
+	synchronized void forget(File f) {
+		hsTaken.remove(f.getName());
+		queuePolicy.forget(f);
+		sw.forget(f);
+	}
+
+	/**
+	 * Bring the index up to date, looking only at files which may have changed
+	 */
+	private void refresh() {
+		Set<String> hsChanged = sw.drainChanged();
+		long lNow = System.currentTimeMillis();
+		if (hsChanged == null || lNow - lLastRescan >= lRescanMillis) {
+			if (hsChanged == null)
+				hsChanged = new HashSet<String>();
+			String[] lsNames = fDir.list();
+			HashSet<String> hsNames = new HashSet<String>((lsNames == null) ? Arrays.<String>asList() : Arrays.asList(lsNames));
+			// New files...
+			for (String sName : hsNames) {
+				if (!hmReady.containsKey(sName) && !hsPending.contains(sName) && !hsTaken.contains(sName))
+					hsChanged.add(sName);
+			}
+			// Vanished files...
+			for (String sName : hmReady.keySet()) {
+				if (!hsNames.contains(sName))
+					hsChanged.add(sName);
+			}
+			lLastRescan = lNow;
+		}
+		hsChanged.addAll(hsPending);
+		for (String sName : hsChanged)
+			update(sName);
+	}
+
+	/**
+	 * Look at one file again: drop it if it's gone, or put it in the queue if it's ready (or among those still being
+	 * written, if not)
+	 */
+	private void update(String sName) {
+		if (hsControlFilenames.contains(sName) || hsTaken.contains(sName))
+			return;
+		File f = new File(fDir, sName);
+		Entry e = hmReady.remove(sName);
+		if (e != null)
+			tsReady.remove(e);
+		boolean bWasPending = hsPending.remove(sName);
+		if (!f.isFile()) {
+			queuePolicy.forget(f);
+			return;
+		}
+		if (sw.isSettled(f)) {
+			e = new Entry(f, queuePolicy.rank(f));
+			tsReady.add(e);
+			hmReady.put(sName, e);
+		} else {
+			hsPending.add(sName);
+			if (!bWasPending)
+				log.log("File '"+sName+"' is still being written; not processing it yet.");
+		}
+	}
+
+	/**
+	 * Log the queue: the files which are ready, in the order they will be run, then those still being written, and
+	 * those in progress
+	 */
+	synchronized void logStatus() {
+		refresh();
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		log.log("Input queue (from '"+fDir.getAbsolutePath()+"'), in order ("+queuePolicy.getName()+"):");
+		log.log("  Date/Time           Length Filename");
+		log.log("  ------------------- ------ ----------------------------------------");
+		for (Entry e : tsReady)
+			log.log(String.format("  %s %6d %s%s", sdf.format(e.lLastModified), e.lLength, e.f.getName(), queuePolicy.describe(e.f)));
+		log.log("  Ready: "+tsReady.size()+", still being written: "+hsPending.size()+", in progress: "+hsTaken.size());
+		for (String sName : hsPending)
+			log.log("  Still being written: "+sName);
+		for (String sName : hsTaken)
+			log.log("  In progress: "+sName);
+	}
+
+}
@@ -0,0 +1,251 @@
+package com.joev.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.joev.util.SimpleLogger;
+
+/**
+ * Watches a spool directory for new/changed files (and the stop-command file) using NIO's WatchService,
+ * so that the simulator can react to newly submitted jobs immediately, rather than on its next poll.
+ * Files are only reported as ready once their length and last-modified time have not changed for a "settle"
+ * period, so that partially written files are not picked up.
+ * If the filesystem does not deliver events (the WatchService can't be created, is itself polling-based, or a
+ * file shows up that no event was received for, as on some network filesystems), it falls back to polling.
+ */
+class SpoolWatcher implements Runnable {
+
+	private static final SimpleLogger log = new SimpleLogger(SpoolWatcher.class.getSimpleName());
+
+	private final File fDir;
+	private final String sStopCommandFilename;
+	private final long lSettleMillis;
+	private WatchService ws = null;
+	private volatile boolean bPolling = false;
+	private volatile boolean bStopRequested = false;
+	// Names of files which are ready to be processed...
+	private final HashSet<String> hsSettled = new HashSet<String>();
+	// Names of files which we have received events for (or which were already in the directory when we started)...
+	private final HashSet<String> hsEventSeen = new HashSet<String>();
+	// Most recent length/last-modified observed for each file, and when that was first observed...
+	private final HashMap<String,long[]> hmSnapshot = new HashMap<String,long[]>();
+	// Names of files which have had events since drainChanged() was last called...
+	private HashSet<String> hsChanged = new HashSet<String>();
+	// Events have been lost since drainChanged() was last called...
+	private boolean bOverflow = false;
+	// Incremented by the event thread, so that awaitWork() can tell whether anything happened...
+	private long lEventCount = 0;
+
+	SpoolWatcher(File fDir, String sStopCommandFilename, long lSettleMillis) {
+		this.fDir = fDir;
+		this.sStopCommandFilename = sStopCommandFilename;
+		this.lSettleMillis = lSettleMillis;
+	}
+
+	/**
+	 * Start watching the directory (or fall back to polling, if that isn't possible)
+	 * @param bWatch false to just poll, without even trying to watch
+	 */
+	void start(boolean bWatch) {
+		// Files already in the directory must settle too (one may still be being copied in, e.g. if we were restarted
+		// in the middle of it); there'll be no event for them, but that's no reason to fall back to polling...
+		String[] lsNames = fDir.list();
+		if (lsNames != null) {
+			long lNow = System.currentTimeMillis();
+			for (String sName : lsNames) {
+				File f = new File(fDir, sName);
+				hsEventSeen.add(sName);
+				hmSnapshot.put(sName, new long[] { f.length(), f.lastModified(), lNow });
+			}
+		}
+		if (!bWatch) {
+			log.log("Polling directory '"+fDir.getAbsolutePath()+"' for new jobs.");
+			bPolling = true;
+			return;
+		}
+		try {
+			this.ws = FileSystems.getDefault().newWatchService();
+			// The JDK's fallback implementation (e.g. on macOS) polls the directory itself; no better than our own polling...
+			String sWatchServiceClass = ws.getClass().getName();
+			if (ws.getClass().getSimpleName().startsWith("Polling")) {
+				fallBackToPolling("WatchService implementation '"+sWatchServiceClass+"' is polling-based");
+				return;
+			}
+			fDir.toPath().register(ws,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY,
+				StandardWatchEventKinds.ENTRY_DELETE
+			);
+		} catch (IOException | UnsupportedOperationException e) {
+			fallBackToPolling("Unable to watch directory: "+e.toString());
+			return;
+		}
+		Thread t = new Thread(this, "SpoolWatcher");
+		t.setDaemon(true);
+		t.start();
+		log.log("Watching directory '"+fDir.getAbsolutePath()+"' for new jobs.");
+	}
+
+	private synchronized void fallBackToPolling(String sReason) {
+		if (bPolling)
+			return;
+		log.log("Falling back to polling '"+fDir.getAbsolutePath()+"'. Reason: "+sReason);
+		bPolling = true;
+		if (ws != null) {
+			try { ws.close(); } catch (IOException e) { /* Ignore */ }
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Event loop; runs on its own (daemon) thread until the WatchService is closed
+	 */
+	public void run() {
+		try {
+			while (true) {
+				WatchKey wk = ws.take();
+				synchronized (this) {
+					for (WatchEvent<?> we : wk.pollEvents()) {
+						if (we.kind() == StandardWatchEventKinds.OVERFLOW) {
+							// Events were lost; just wake up the caller, who will rescan the directory...
+							bOverflow = true;
+						} else {
+							String sName = ((Path) we.context()).getFileName().toString();
+							hsChanged.add(sName);
+							if (we.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+								hsSettled.remove(sName);
+								hsEventSeen.remove(sName);
+								hmSnapshot.remove(sName);
+							} else {
+								// Created or changed; it will have to settle (again) before it's ready...
+								hsSettled.remove(sName);
+								hsEventSeen.add(sName);
+								if (sName.equals(sStopCommandFilename))
+									bStopRequested = true;
+							}
+						}
+					}
+					lEventCount++;
+					notifyAll();
+				}
+				if (!wk.reset()) {
+					fallBackToPolling("Directory is no longer accessible");
+					return;
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Done watching
+		}
+	}
+
+	/**
+	 * Wait until something happens in the directory, or until a not-yet-settled file might have settled, or until
+	 * lMaxWaitMillis has passed, whichever comes first. When polling, this simply waits.
+	 * @param lMaxWaitMillis longest time to wait
+	 */
+	synchronized void awaitWork(long lMaxWaitMillis) throws InterruptedException {
+		long lWait = lMaxWaitMillis;
+		// If a file is still settling, come back when its settle period would be over...
+		long lNow = System.currentTimeMillis();
+		for (long[] alSnapshot : hmSnapshot.values()) {
+			long lSettledAt = alSnapshot[2] + lSettleMillis;
+			if (lSettledAt > lNow)
+				lWait = Math.min(lWait, lSettledAt - lNow);
+		}
+		long lEventCountAtStart = lEventCount;
+		long lDeadline = lNow + lWait;
+		while (lEventCount == lEventCountAtStart && !bStopRequested && (lNow = System.currentTimeMillis()) < lDeadline) {
+			wait(lDeadline - lNow);
+		}
+	}
+
+	/**
+	 * @return names of the files which have had events since the last call; null if the directory must be rescanned
+	 * instead (when polling, or if events were lost)
+	 */
+	synchronized Set<String> drainChanged() {
+		HashSet<String> hs = hsChanged;
+		hsChanged = new HashSet<String>();
+		if (bPolling || bOverflow) {
+			bOverflow = false;
+			return null;
+		}
+		return hs;
+	}
+
+	/**
+	 * Wake up awaitWork() (e.g. because work has arrived by some other route)
+	 */
+	synchronized void wake() {
+		lEventCount++;
+		notifyAll();
+	}
+
+	/**
+	 * @return true if the stop-command file has been seen being created
+	 */
+	boolean isStopRequested() {
+		return bStopRequested;
+	}
+
+	/**
+	 * Determine whether a file is ready to be processed, i.e. it is not being written to any more
+	 * @param f file in the watched directory
+	 * @return true if the file has not changed for the settle period
+	 */
+	synchronized boolean isSettled(File f) {
+		String sName = f.getName();
+		if (sName.equals(sStopCommandFilename))
+			return false;
+		if (hsSettled.contains(sName))
+			return true;
+		long lNow = System.currentTimeMillis();
+		long lLength = f.length();
+		long lLastModified = f.lastModified();
+		long[] alSnapshot = hmSnapshot.get(sName);
+		if (alSnapshot == null || alSnapshot[0] != lLength || alSnapshot[1] != lLastModified) {
+			hmSnapshot.put(sName, new long[] { lLength, lLastModified, lNow });
+			return false;
+		}
+		if (lNow - alSnapshot[2] < lSettleMillis)
+			return false;
+		hmSnapshot.remove(sName);
+		hsSettled.add(sName);
+		if (!bPolling && !hsEventSeen.contains(sName)) {
+			// We're watching, yet this file appeared (and settled) without any event; events are evidently not being delivered...
+			fallBackToPolling("No event was received for new file '"+sName+"'");
+		}
+		return true;
+	}
+
+	/**
+	 * Forget what we know about a file, once it has been processed (so a later file with the same name is treated as new)
+	 * @param f file in the watched directory
+	 */
+	synchronized void forget(File f) {
+		String sName = f.getName();
+		hsSettled.remove(sName);
+		hsEventSeen.remove(sName);
+		hmSnapshot.remove(sName);
+	}
+
+	/**
+	 * Stop watching the directory
+	 */
+	synchronized void close() {
+		if (ws != null) {
+			try { ws.close(); } catch (IOException e) { /* Ignore */ }
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+package com.joev.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * Submits a job file to a running BatchSimulator through its SubmitServer, and prints the listing of each of its jobs
+ * as it is written.
+ * Usage: SubmitClient [-h <host>] [-p <port>] <file>
+ * The port defaults to SubmitPort in BatchSimulator.properties (and the host to this machine). The exit code is 0 if
+ * the jobs were run, 1 if the file had parse errors (and nothing was run), and 2 for any other problem.
+ */
+public class SubmitClient {
+
+	public static void main(String[] args) throws Exception {
+		String sHost = "127.0.0.1";
+		int iPort = 0;
+		File fInput = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-h") && i+1 < args.length)
+				sHost = args[++i];
+			else if (args[i].equals("-p") && i+1 < args.length)
+				iPort = Integer.parseInt(args[++i]);
+			else
+				fInput = new File(args[i]);
+		}
+		if (fInput == null) {
+			System.err.println("Usage: SubmitClient [-h <host>] [-p <port>] <file>");
+			System.exit(2);
+		}
+		if (iPort == 0) {
+			Properties props = new Properties();
+			try (InputStream is = SubmitClient.class.getResourceAsStream("/BatchSimulator.properties")) {
+				if (is != null)
+					props.load(is);
+			}
+			String sPort = props.getProperty("SubmitPort", "").trim();
+			iPort = sPort.isEmpty() ? 0 : Integer.parseInt(sPort);
+			if (iPort <= 0) {
+				System.err.println("No port given, and SubmitPort isn't set in BatchSimulator.properties.");
+				System.exit(2);
+			}
+		}
+		int iRC = 2;
+		try (Socket s = new Socket(sHost, iPort)) {
+			OutputStream os = s.getOutputStream();
+			os.write(("SUBMIT "+fInput.getName()+"\n").getBytes(StandardCharsets.UTF_8));
+			os.write(Files.readAllBytes(fInput.toPath()));
+			os.flush();
+			// Tell the server that's all...
+			s.shutdownOutput();
+			BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+			String sLine = br.readLine();
+			if (sLine != null && sLine.startsWith("ACCEPTED"))
+				iRC = 0;
+			else if (sLine != null && sLine.startsWith("REJECTED"))
+				iRC = 1;
+			while (sLine != null) {
+				System.out.println(sLine);
+				sLine = br.readLine();
+			}
+		}
+		System.exit(iRC);
+	}
+
+}
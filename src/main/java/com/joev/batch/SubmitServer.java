@@ -0,0 +1,306 @@
+package com.joev.batch;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.joev.util.SimpleLogger;
+
+/**
+ * Accepts jobs over a TCP socket (on this machine only, by default), as an alternative to copying files into the
+ * input spool directory, and sends each job's listing back as it is written, so that nobody has to poll either
+ * directory. The conversation, over one connection:
+ *   client: SUBMIT <name>             (the name stands in for the input file's name, e.g. in the listing's name)
+ *   client: ...the deck(s), as they would appear in an input file...
+ *   client: (shuts down its side of the connection)
+ *   server: REJECTED <n> parse error(s), then the errors, if any deck could not be parsed (nothing is run); or
+ *   server: ACCEPTED <n> job(s), then the listing of each job in turn, as it is written
+ *   server: (closes the connection)
+ * Connections are handled by a fixed number of threads (SubmitThreads); each is busy until its jobs are done.
+ */
+class SubmitServer {
+
+	private static final SimpleLogger log = new SimpleLogger(SubmitServer.class.getSimpleName());
+	private static final String sNL = System.getProperty("line.separator");
+	// Longest time (milliseconds) to wait for a client to send the next part of its submission...
+	private static final int iRequestTimeoutMillis = 30000;
+
+	/**
+	 * Parses and queues the jobs submitted
+	 */
+	interface Handler {
+		/**
+		 * Parse a submitted deck (or decks) and, if they parsed cleanly, queue their jobs
+		 * @param sName the name the decks were submitted under
+		 * @param abDeck the deck(s)
+		 * @param alListings gets the stream of each queued job's listing, in order
+		 * @return the parse errors (in which case nothing is queued); otherwise an empty list
+		 */
+		List<String> submit(String sName, byte[] abDeck, List<ListingStream> alListings) throws Exception;
+	}
+
+	/**
+	 * A job's listing, as it is written: everything written to it is held until the connection's thread sends it on.
+	 * At most iMaxHeldChars are held (beyond that, the rest is left out, with a note that it was), and nothing more is
+	 * held once the connection has gone.
+	 */
+	static class ListingStream extends Writer {
+		private static final int iMaxHeldChars = 4*1024*1024;
+		// Marks the end of the listing (flush() never queues an empty piece)...
+		private static final String sEnd = "";
+		private final LinkedBlockingQueue<String> lbqChunks = new LinkedBlockingQueue<String>();
+		private final StringBuilder sb = new StringBuilder();
+		private int iHeldChars = 0;
+		private boolean bTruncated = false;
+		private boolean bAbandoned = false;
+		private boolean bClosed = false;
+
+		@Override
+		public synchronized void write(char[] ac, int iOff, int iLen) {
+			if (bAbandoned || bClosed || bTruncated)
+				return;
+			if (iHeldChars + sb.length() + iLen > iMaxHeldChars) {
+				bTruncated = true;
+				sb.append(sNL+"...listing truncated here, as it was not being read fast enough; see the output directory for the rest..."+sNL);
+				return;
+			}
+			sb.append(ac, iOff, iLen);
+		}
+
+		@Override
+		public synchronized void flush() {
+			if (sb.length() > 0) {
+				iHeldChars += sb.length();
+				lbqChunks.add(sb.toString());
+				sb.setLength(0);
+			}
+		}
+
+		@Override
+		public synchronized void close() {
+			if (bClosed)
+				return;
+			flush();
+			bClosed = true;
+			lbqChunks.add(sEnd);
+		}
+
+		/**
+		 * Drop anything held, and anything written from now on (the connection has gone)
+		 */
+		private synchronized void abandon() {
+			bAbandoned = true;
+			sb.setLength(0);
+			lbqChunks.clear();
+			iHeldChars = 0;
+		}
+
+		/**
+		 * @return the next piece of the listing, waiting for it if necessary; null once the listing is complete
+		 */
+		private String take() throws InterruptedException {
+			String s = lbqChunks.take();
+			synchronized (this) {
+				iHeldChars -= s.length();
+			}
+			return s.isEmpty() ? null : s;
+		}
+	}
+
+	private final Handler handler;
+	private final int iMaxBytes;
+	private final ServerSocket ss;
+	private final ExecutorService esConnections;
+	private final Thread tAccept;
+	private volatile boolean bStopped = false;
+
+	/**
+	 * Start accepting connections
+	 * @param sBindAddress address to listen on (e.g. 127.0.0.1, so that only this machine can submit jobs)
+	 * @param iPort port to listen on
+	 * @param iThreads most connections to handle at once
+	 * @param iMaxBytes largest submission accepted
+	 */
+	SubmitServer(final Handler handler, String sBindAddress, int iPort, int iThreads, int iMaxBytes) throws IOException {
+		this.handler = handler;
+		this.iMaxBytes = iMaxBytes;
+		this.ss = new ServerSocket(iPort, 50, InetAddress.getByName(sBindAddress));
+		final AtomicInteger aiThreadNumber = new AtomicInteger(0);
+		this.esConnections = Executors.newFixedThreadPool(iThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SubmitServer-"+aiThreadNumber.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.tAccept = new Thread(new Runnable() {
+			public void run() {
+				acceptConnections();
+			}
+		}, "SubmitServer");
+		this.tAccept.setDaemon(true);
+		this.tAccept.start();
+		log.log("Accepting jobs at "+sBindAddress+":"+ss.getLocalPort()+".");
+	}
+
+	private void acceptConnections() {
+		while (!bStopped) {
+			try {
+				final Socket s = ss.accept();
+				esConnections.execute(new Runnable() {
+					public void run() {
+						handle(s);
+					}
+				});
+			} catch (SocketException e) {
+				// The server socket was closed by stop()...
+			} catch (IOException e) {
+				log.log("WARNING: Error accepting a connection: "+e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Handle one connection: read the submission, hand it to the handler, and send back the result
+	 */
+	private void handle(Socket s) {
+		String sPeer = s.getRemoteSocketAddress().toString();
+		ArrayList<ListingStream> alListings = new ArrayList<ListingStream>();
+		Writer w = null;
+		try {
+			// Don't let a client which never finishes its submission hold this thread...
+			s.setSoTimeout(iRequestTimeoutMillis);
+			InputStream is = s.getInputStream();
+			w = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+			String sRequest = readRequestLine(is);
+			if (sRequest == null || !sRequest.startsWith("SUBMIT ")) {
+				reply(w, "ERROR Expecting: SUBMIT <name>");
+				return;
+			}
+			// Keep just the characters which are safe in a filename...
+			String sName = sRequest.substring(7).trim().replaceAll("[^A-Za-z0-9._-]", "_");
+			if (sName.isEmpty() || sName.startsWith("."))
+				sName = "submitted"+sName;
+			byte[] abDeck = readDeck(is);
+			// (Sending the listings back may take as long as the jobs do)...
+			s.setSoTimeout(0);
+			if (abDeck == null) {
+				reply(w, "ERROR Submission is larger than "+iMaxBytes+" bytes (SubmitMaxKB)");
+				return;
+			}
+			if (bStopped) {
+				reply(w, "ERROR Shutting down; not accepting jobs");
+				return;
+			}
+			log.log("Received '"+sName+"' ("+abDeck.length+" bytes) from "+sPeer+".");
+			List<String> alsErrors = handler.submit(sName, abDeck, alListings);
+			if (!alsErrors.isEmpty()) {
+				log.log("Rejected '"+sName+"' from "+sPeer+": "+alsErrors.size()+" parse error(s).");
+				w.write("REJECTED "+alsErrors.size()+" parse error(s)\n");
+				for (String sError : alsErrors)
+					w.write(sError+"\n");
+				w.flush();
+				return;
+			}
+			w.write("ACCEPTED "+alListings.size()+" job(s)\n");
+			w.flush();
+			// Send each listing in turn, as it is written...
+			for (ListingStream ls : alListings) {
+				String sChunk;
+				while ((sChunk = ls.take()) != null) {
+					w.write(sChunk);
+					w.flush();
+				}
+			}
+			log.log("Sent the listings of '"+sName+"' to "+sPeer+".");
+		} catch (SocketTimeoutException e) {
+			log.log("WARNING: Connection from "+sPeer+" sent nothing for "+iRequestTimeoutMillis+"ms; closing it.");
+			try {
+				if (w != null)
+					reply(w, "ERROR Timed out waiting for the submission");
+			} catch (IOException e2) {
+				// Ignore
+			}
+		} catch (IOException e) {
+			log.log("WARNING: Connection from "+sPeer+" failed: "+e.toString());
+		} catch (Exception e) {
+			log.log("WARNING: Unable to handle submission from "+sPeer+": "+e.toString());
+		} finally {
+			// Nobody is left to send the rest of the listings to...
+			for (ListingStream ls : alListings)
+				ls.abandon();
+			try {
+				s.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	private static void reply(Writer w, String sLine) throws IOException {
+		w.write(sLine+"\n");
+		w.flush();
+	}
+
+	/**
+	 * @return the first line sent (without its line ending); null if there isn't one
+	 */
+	private static String readRequestLine(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		int b;
+		while ((b = is.read()) >= 0 && b != '\n') {
+			if (baos.size() >= 1024)
+				return null;
+			baos.write(b);
+		}
+		if (b < 0 && baos.size() == 0)
+			return null;
+		return new String(baos.toByteArray(), StandardCharsets.UTF_8).replace("\r", "");
+	}
+
+	/**
+	 * @return the rest of what was sent; null if it's too large
+	 */
+	private byte[] readDeck(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] ab = new byte[8192];
+		int iRead;
+		while ((iRead = is.read(ab)) >= 0) {
+			if (baos.size() + iRead > iMaxBytes)
+				return null;
+			baos.write(ab, 0, iRead);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Stop accepting jobs (the connections in progress carry on, until their jobs are done)
+	 */
+	void stop() {
+		bStopped = true;
+		try {
+			ss.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+		esConnections.shutdown();
+		log.log("Stopped accepting jobs.");
+	}
+
+}
@@ -2,7 +2,19 @@ package com.joev.util;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class CommandRunner {
 
@@ -12,95 +24,590 @@ public class CommandRunner {
 	private static final String sOSName = System.getProperty("os.name");
 	private static final String sCMD;
 	private static final String sCMDArg1;
+	// On Linux, commands are started via 'setsid' (if available), so that each command's whole process tree is in
+	// its own process group, and can be killed all at once...
+	private static final String sSETSID;
 	static {
 		if (sOSName.startsWith("Windows")) {
 			sCMD = "cmd";
 			sCMDArg1 = "/C";
+			sSETSID = null;
 		} else if (sOSName.startsWith("Linux")) {
 			sCMD = "/bin/sh";
 			sCMDArg1 = "-c";
+			if (new File("/usr/bin/setsid").canExecute())
+				sSETSID = "/usr/bin/setsid";
+			else if (new File("/bin/setsid").canExecute())
+				sSETSID = "/bin/setsid";
+			else
+				sSETSID = null;
 		} else {
 			throw new IllegalArgumentException("Unable to determine OSType! System.getProperty(os.name)='"+sOSName+"'. Expecting 'Windows.*' or 'Linux.*'.");
 		}
 	}
+	
+	// Time (milliseconds) to wait for a killed command's output streams to reach EOF...
+	private static final long lDrainAfterKillMillis = 5000;
+
+	// If turned on (Linux only), the CPU time and peak memory use of each command (and the processes it starts) are
+	// measured: the shell reports its children's CPU time ('times') when the command ends, and the memory of the process
+	// tree is sampled from /proc while it runs. This costs each command a shell which stays around (rather than exec-ing
+	// the command), and a sampling thread, so it's off unless asked for...
+	private static volatile boolean bResourceAccounting = false;
+	// Time (milliseconds) between samples of a command's memory use...
+	private static final long lRssSampleMillis = 50;
+	private static final Pattern patTimes = Pattern.compile("(\\d+)m([\\d.]+)s");
 
 	/**
-	 * Utility routine to run an OS command
+	 * Turn the measurement of each command's CPU time and peak memory use on or off (it's only possible on Linux)
+	 */
+	public static void setResourceAccounting(boolean b) {
+		bResourceAccounting = b && sOSName.startsWith("Linux");
+	}
+
+	// Limits on what each command may use (Linux only); null for none...
+	private static volatile JobSandbox sandbox = null;
+
+	/**
+	 * Run each command in a sandbox, which limits what it may use (see JobSandbox); null for none
+	 */
+	public static void setSandbox(JobSandbox js) {
+		sandbox = sOSName.startsWith("Linux") ? js : null;
+	}
+
+	// Default number of bytes of STDOUT/STDERR to keep in memory, before spilling to a temporary file...
+	public static final long lDefaultSpillThreshold = 1024*1024;
+	
+	private final long lSpillThreshold;
+	// Most bytes of STDOUT (and of STDERR) to keep; a command which writes more is killed. 0 for no limit...
+	private final long lOutputLimit;
+	// Most bytes a command may leave in its working directory; one which leaves more is killed. 0 for no limit...
+	private final long lDirQuota;
+	// How often (milliseconds) to check the size of a command's working directory, when it has a quota...
+	private static final long lDirCheckMillis = 250;
+
+	/**
+	 * Utility routine to run an OS command, with no time limit
 	 * @param sCommand = Command to be run
 	 * @param fDir = Working directory to set, before running the command
 	 * @return
 	 * @throws Exception
 	 */
 	public CommandRunnerResult runCommand(String sCommand, File fDir) throws Exception {
-		log.log("Running command: '"+sCommand+"' using working directory '"+fDir.getAbsolutePath()+"'...");
+		return runCommand(sCommand, fDir, 0);
+	}
+
+	/**
+	 * Utility routine to run an OS command
+	 * STDOUT and STDERR are both read while the command is running (so that a command which writes a lot of output
+	 * can't fill up the pipe and block), into buffers which spill to temporary files if they get large.
+	 * If the command runs longer than the time limit, writes more than the output limit to either stream, or fills its
+	 * working directory beyond the quota, it is killed, along with any processes it started.
+	 * @param sCommand = Command to be run
+	 * @param fDir = Working directory to set, before running the command
+	 * @param lTimeLimitMillis = Longest time (wall-clock milliseconds) to let the command run; 0 for no limit
+	 * @return
+	 * @throws Exception
+	 */
+	public CommandRunnerResult runCommand(String sCommand, File fDir, long lTimeLimitMillis) throws Exception {
+		log.log("Running command: '"+sCommand+"' using working directory '"+fDir.getAbsolutePath()+"'"
+			+(lTimeLimitMillis > 0 ? " with time limit "+lTimeLimitMillis+"ms" : "")+"...");
+		String sShellCommand = sCommand;
+		File fTimes = null;
+		if (bResourceAccounting) {
+			// Once the command ends, have the shell write its children's CPU time to a file (lost if it's killed)...
+			fTimes = File.createTempFile("BatchSimulator", ".times");
+			sShellCommand = sCommand+"\nBATCHSIM_RC=$?; times >'"+fTimes.getAbsolutePath()+"'; exit $BATCHSIM_RC";
+		}
+		JobSandbox.Lease lease = (sandbox == null) ? null : sandbox.open();
+		if (lease != null)
+			sShellCommand = lease.wrap(sShellCommand);
+		CommandRunnerResult crr = null;
+		try {
+			crr = runShellCommand(sCommand, sShellCommand, fDir, lTimeLimitMillis, fTimes, lease);
+			return crr;
+		} finally {
+			if (lease != null)
+				lease.close(crr);
+		}
+	}
+
+	/**
+	 * Run the command (as adjusted for the shell, by runCommand()), and wait for it to end
+	 */
+	private CommandRunnerResult runShellCommand(final String sCommand, String sShellCommand, File fDir, long lTimeLimitMillis, File fTimes, final JobSandbox.Lease lease) throws Exception {
 		Runtime rt = Runtime.getRuntime();
-		String lsCommand[] = { sCMD, sCMDArg1, sCommand };
-		Process proc = rt.exec(lsCommand, null, fDir);
+		String lsCommand[] = inOwnProcessGroup(sCMD, sCMDArg1, sShellCommand);
+		long lStartNanos = System.nanoTime();
+		final Process proc = rt.exec(lsCommand, null, fDir);
+		RssSampler rs = bResourceAccounting ? new RssSampler(getPid(proc)) : null;
+		// The command gets no input from us...
+		proc.getOutputStream().close();
+		SpillableOutputBuffer sobSTDOUT = new SpillableOutputBuffer(lSpillThreshold, lOutputLimit);
+		SpillableOutputBuffer sobSTDERR = new SpillableOutputBuffer(lSpillThreshold, lOutputLimit);
+		// A command which writes too much is killed, by whichever drainer notices first...
+		final AtomicBoolean abOutputLimitExceeded = new AtomicBoolean(false);
+		Runnable rOnLimit = new Runnable() {
+			public void run() {
+				if (abOutputLimitExceeded.compareAndSet(false, true)) {
+					log.log("Command '"+sCommand+"' exceeded its output limit of "+lOutputLimit+" bytes. Killing it...");
+					killProcessTree(proc);
+					if (lease != null)
+						lease.kill();
+				}
+			}
+		};
+		// Drain STDOUT and STDERR on their own threads, while this one waits for the command to end...
+		StreamDrainer sdSTDOUT = new StreamDrainer(proc.getInputStream(), sobSTDOUT, rOnLimit);
+		StreamDrainer sdSTDERR = new StreamDrainer(proc.getErrorStream(), sobSTDERR, rOnLimit);
+		Thread tSTDOUT = sdSTDOUT.start(Thread.currentThread().getName()+"-STDOUT");
+		Thread tSTDERR = sdSTDERR.start(Thread.currentThread().getName()+"-STDERR");
+		boolean bTimedOut = false;
+		boolean bDirQuotaExceeded = false;
+		if (lDirQuota > 0) {
+			// Check now and then that the command isn't filling its working directory...
+			long lDeadline = System.currentTimeMillis() + lTimeLimitMillis;
+			while (!proc.waitFor((lTimeLimitMillis > 0) ? Math.max(1, Math.min(lDirCheckMillis, lDeadline - System.currentTimeMillis())) : lDirCheckMillis, TimeUnit.MILLISECONDS)) {
+				if (FileUtil.sizeOf(fDir) > lDirQuota) {
+					bDirQuotaExceeded = true;
+					log.log("Command '"+sCommand+"' left more than its quota of "+lDirQuota+" bytes in '"+fDir.getAbsolutePath()+"'. Killing it...");
+				} else if (lTimeLimitMillis > 0 && System.currentTimeMillis() >= lDeadline) {
+					bTimedOut = true;
+					log.log("Command '"+sCommand+"' exceeded its time limit of "+lTimeLimitMillis+"ms. Killing it...");
+				} else {
+					continue;
+				}
+				killProcessTree(proc);
+				if (lease != null)
+					lease.kill();
+				break;
+			}
+		} else if (lTimeLimitMillis > 0) {
+			if (!proc.waitFor(lTimeLimitMillis, TimeUnit.MILLISECONDS)) {
+				bTimedOut = true;
+				log.log("Command '"+sCommand+"' exceeded its time limit of "+lTimeLimitMillis+"ms. Killing it...");
+				killProcessTree(proc);
+				if (lease != null)
+					lease.kill();
+			}
+		}
 		int iRC = proc.waitFor();
-		log.log("Command '"+sCommand+"' completed. RC="+iRC);
-		// Get STDOUT...
-		BufferedReader br = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-		StringBuffer sbSTDOUT = new StringBuffer();
-		String sLine = null;
-		while ((sLine = br.readLine()) != null) {
-			if (sbSTDOUT.length() > 0)
-				sbSTDOUT.append(sNL);
-			sbSTDOUT.append(sLine);
-		}		
-		// Get STDERR...
-		br = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
-		StringBuffer sbSTDERR = new StringBuffer();
-		sLine = null;
-		while ((sLine = br.readLine()) != null) {
-			if (sbSTDERR.length() > 0)
-				sbSTDERR.append(sNL);
-			sbSTDERR.append(sLine);
+		long lElapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lStartNanos);
+		long lPeakRssBytes = (rs == null) ? -1 : rs.stop();
+		long lCpuMillis = (fTimes == null) ? -1 : readChildCpuMillis(fTimes);
+		boolean bOutputLimitExceeded = abOutputLimitExceeded.get();
+		// Wait for the output to be drained. If there is a limit, don't wait forever: processes started by the
+		// command may have escaped the kill (or been left running in the background), and still hold the pipes open...
+		long lJoinMillis = (lTimeLimitMillis > 0 || lOutputLimit > 0 || lDirQuota > 0) ? lDrainAfterKillMillis : 0;
+		tSTDOUT.join(lJoinMillis);
+		tSTDERR.join(lJoinMillis);
+		if (tSTDOUT.isAlive() || tSTDERR.isAlive()) {
+			log.log("Output of command '"+sCommand+"' still open after it ended. Killing any remaining processes...");
+			killProcessTree(proc);
+			if (lease != null)
+				lease.kill();
+			sdSTDOUT.abandon();
+			sdSTDERR.abandon();
 		}
+		log.log("Command '"+sCommand+"' completed. RC="+iRC+" Elapsed="+lElapsedMillis+"ms"+(bTimedOut ? " (killed: time limit exceeded)" : "")
+			+(bOutputLimitExceeded ? " (killed: output limit exceeded)" : "")+(bDirQuotaExceeded ? " (killed: disk quota exceeded)" : ""));
+		if (sdSTDOUT.ioe != null && !bTimedOut && !bOutputLimitExceeded && !bDirQuotaExceeded)
+			log.log("WARNING: Error reading STDOUT of command '"+sCommand+"': "+sdSTDOUT.ioe.toString());
+		if (sdSTDERR.ioe != null && !bTimedOut && !bOutputLimitExceeded && !bDirQuotaExceeded)
+			log.log("WARNING: Error reading STDERR of command '"+sCommand+"': "+sdSTDERR.ioe.toString());
 		// Return the result of running the command...
-		CommandRunnerResult crr = new CommandRunnerResult(sCommand, fDir, iRC, sbSTDOUT.toString(), sbSTDERR.toString());
+		CommandRunnerResult crr = new CommandRunnerResult(sCommand, fDir, iRC, sobSTDOUT, sobSTDERR, lElapsedMillis, lTimeLimitMillis, bTimedOut);
+		crr.lCpuMillis = lCpuMillis;
+		crr.lPeakRssBytes = lPeakRssBytes;
+		if (bOutputLimitExceeded)
+			crr.lOutputLimitBytes = lOutputLimit;
+		if (bDirQuotaExceeded)
+			crr.lDirQuotaBytes = lDirQuota;
 		return crr;
 	}
+	
+	/**
+	 * Read (then delete) the output of the shell's 'times' command: "<shell user> <shell system>\n<children's user>
+	 * <children's system>", each like "0m0.123s"
+	 * @return the children's CPU time (user + system), in milliseconds; -1 if it isn't there (e.g. the command was killed)
+	 */
+	private static long readChildCpuMillis(File fTimes) {
+		try {
+			Matcher m = patTimes.matcher(new String(Files.readAllBytes(fTimes.toPath()), StandardCharsets.UTF_8));
+			double dSeconds = 0;
+			int iTimes = 0;
+			while (m.find()) {
+				// Skip the shell's own times...
+				if (++iTimes > 2)
+					dSeconds += 60*Long.parseLong(m.group(1)) + Double.parseDouble(m.group(2));
+			}
+			return (iTimes == 4) ? Math.round(1000*dSeconds) : -1;
+		} catch (IOException | NumberFormatException e) {
+			return -1;
+		} finally {
+			fTimes.delete();
+		}
+	}
+	
+	/**
+	 * Samples the memory use of a process and all of its descendants (from /proc), until it's stopped
+	 */
+	private static class RssSampler implements Runnable {
+		private final long lPid;
+		private final Thread t;
+		private volatile boolean bStopped = false;
+		private long lPeakBytes = -1;
+		RssSampler(long lPid) {
+			this.lPid = lPid;
+			this.t = new Thread(this, Thread.currentThread().getName()+"-RSS");
+			t.setDaemon(true);
+			if (lPid > 0)
+				t.start();
+		}
+		/**
+		 * @return the most memory the process tree was seen to use at once: the greater of the total resident set size
+		 * of its processes, and the peak resident set size (VmHWM) of any one of them; -1 if it couldn't be seen at all
+		 */
+		long stop() throws InterruptedException {
+			bStopped = true;
+			t.interrupt();
+			t.join();
+			return lPeakBytes;
+		}
+		public void run() {
+			while (!bStopped) {
+				sample();
+				try {
+					Thread.sleep(lRssSampleMillis);
+				} catch (InterruptedException e) {
+					// Stopped...
+				}
+			}
+		}
+		private void sample() {
+			ArrayList<Long> allPids = new ArrayList<Long>();
+			allPids.add(lPid);
+			long lTotalKB = 0;
+			long lMaxHwmKB = 0;
+			boolean bSeen = false;
+			for (int i = 0; i < allPids.size(); i++) {
+				long lp = allPids.get(i);
+				try {
+					for (String sLine : Files.readAllLines(Paths.get("/proc", ""+lp, "status"), StandardCharsets.UTF_8)) {
+						if (sLine.startsWith("VmRSS:"))
+							lTotalKB += parseKB(sLine);
+						else if (sLine.startsWith("VmHWM:"))
+							lMaxHwmKB = Math.max(lMaxHwmKB, parseKB(sLine));
+					}
+					bSeen = true;
+					File[] lfTasks = new File("/proc/"+lp+"/task").listFiles();
+					if (lfTasks != null) {
+						for (File fTask : lfTasks) {
+							for (String sChild : new String(Files.readAllBytes(new File(fTask, "children").toPath()), StandardCharsets.UTF_8).trim().split("\\s+")) {
+								if (!sChild.isEmpty())
+									allPids.add(Long.parseLong(sChild));
+							}
+						}
+					}
+				} catch (IOException | NumberFormatException e) {
+					// The process ended while we looked...
+				}
+			}
+			if (bSeen)
+				lPeakBytes = Math.max(lPeakBytes, 1024*Math.max(lTotalKB, lMaxHwmKB));
+		}
+		private static long parseKB(String sLine) {
+			// e.g. "VmRSS:     1234 kB"...
+			return Long.parseLong(sLine.replaceAll("[^0-9]", ""));
+		}
+	}
+	
+	/**
+	 * @param lsCommand a command (program and arguments)
+	 * @return the command, adjusted (if possible) so that it runs as the leader of a new process group, so that
+	 * killProcessTree() can kill it along with all of the processes it starts
+	 */
+	static String[] inOwnProcessGroup(String... lsCommand) {
+		if (sSETSID == null)
+			return lsCommand;
+		String[] lsGroupCommand = new String[lsCommand.length+1];
+		lsGroupCommand[0] = sSETSID;
+		System.arraycopy(lsCommand, 0, lsGroupCommand, 1, lsCommand.length);
+		return lsGroupCommand;
+	}
+	
+	/**
+	 * Forcibly kill a process that we started, along with all of the processes it started
+	 * @param proc the process
+	 */
+	public static void killProcessTree(Process proc) {
+		long lPid = getPid(proc);
+		try {
+			if (lPid > 0) {
+				if (sOSName.startsWith("Windows")) {
+					Runtime.getRuntime().exec(new String[] { "taskkill", "/F", "/T", "/PID", ""+lPid }).waitFor();
+				} else if (sSETSID != null) {
+					// The command is the leader of its own process group, which its children inherit; kill the whole group...
+					Runtime.getRuntime().exec(new String[] { "kill", "-KILL", "--", "-"+lPid }).waitFor();
+				} else {
+					// No process group to kill, so kill the command's direct children...
+					Runtime.getRuntime().exec(new String[] { "pkill", "-KILL", "-P", ""+lPid }).waitFor();
+				}
+			}
+		} catch (Exception e) {
+			log.log("WARNING: Unable to kill process tree of PID "+lPid+": "+e.toString());
+		}
+		proc.destroyForcibly();
+	}
+	
+	/**
+	 * @param proc a process
+	 * @return the process' operating-system process ID, or -1 if it can't be determined
+	 */
+	public static long getPid(Process proc) {
+		try {
+			// Java 9 and later...
+			Method m = Process.class.getMethod("pid");
+			return (Long) m.invoke(proc);
+		} catch (Exception e) {
+			// Java 8 (on Linux/Unix): the implementation class has a private 'pid' field...
+			try {
+				Field f = proc.getClass().getDeclaredField("pid");
+				f.setAccessible(true);
+				return f.getLong(proc);
+			} catch (Exception e2) {
+				return -1;
+			}
+		}
+	}
 
 	public CommandRunner() {
+		this(lDefaultSpillThreshold);
+	}
+	
+	/**
+	 * @param lSpillThreshold number of bytes of STDOUT/STDERR to keep in memory, before spilling to a temporary file
+	 */
+	public CommandRunner(long lSpillThreshold) {
+		this(lSpillThreshold, 0);
+	}
+	
+	/**
+	 * @param lSpillThreshold number of bytes of STDOUT/STDERR to keep in memory, before spilling to a temporary file
+	 * @param lOutputLimit most bytes of STDOUT (and of STDERR) to keep; a command which writes more is killed, and its
+	 * output truncated (0 for no limit)
+	 */
+	public CommandRunner(long lSpillThreshold, long lOutputLimit) {
+		this(lSpillThreshold, lOutputLimit, 0);
+	}
+	
+	/**
+	 * @param lSpillThreshold number of bytes of STDOUT/STDERR to keep in memory, before spilling to a temporary file
+	 * @param lOutputLimit most bytes of STDOUT (and of STDERR) to keep; a command which writes more is killed, and its
+	 * output truncated (0 for no limit)
+	 * @param lDirQuota most bytes a command may leave in its working directory; a command which leaves more is killed
+	 * (0 for no limit)
+	 */
+	public CommandRunner(long lSpillThreshold, long lOutputLimit, long lDirQuota) {
+		this.lSpillThreshold = lSpillThreshold;
+		this.lOutputLimit = lOutputLimit;
+		this.lDirQuota = lDirQuota;
 	}
 	
-	public class CommandRunnerResult {
+	/**
+	 * Copies everything from an InputStream (e.g. a process' STDOUT) to a SpillableOutputBuffer, until EOF; if the
+	 * buffer's limit is reached, tells whoever is listening (the rest is still read, and discarded)
+	 */
+	private static class StreamDrainer implements Runnable {
+		private final InputStream is;
+		private final SpillableOutputBuffer sob;
+		private final Runnable rOnLimit;
+		private volatile IOException ioe = null;
+		StreamDrainer(InputStream is, SpillableOutputBuffer sob, Runnable rOnLimit) {
+			this.is = is;
+			this.sob = sob;
+			this.rOnLimit = rOnLimit;
+		}
+		Thread start(String sThreadName) {
+			Thread t = new Thread(this, sThreadName);
+			t.setDaemon(true);
+			t.start();
+			return t;
+		}
+		/**
+		 * Stop draining, by closing the input stream out from under the thread doing it
+		 */
+		void abandon() {
+			try { is.close(); } catch (IOException e) { /* Ignore */ }
+		}
+		public void run() {
+			byte[] ab = new byte[8192];
+			int iRead;
+			try {
+				boolean bLimitReached = false;
+				while ((iRead = is.read(ab)) > 0) {
+					sob.write(ab, 0, iRead);
+					if (!bLimitReached && sob.isTruncated()) {
+						bLimitReached = true;
+						rOnLimit.run();
+					}
+				}
+			} catch (IOException e) {
+				this.ioe = e;
+			} finally {
+				try { is.close(); } catch (IOException e) { /* Ignore */ }
+				try { sob.close(); } catch (IOException e) { /* Ignore */ }
+			}
+		}
+	}
+	
+	public static class CommandRunnerResult {
 		public String sCommand;
 		public File fDir;
 		public int iRC;
-		public String sSTDOUT;
-		public String sSTDERR;
-		CommandRunnerResult(String sCommand, File fDir, int iRC, String sSTDOUT, String sSTDERR) {
+		public long lElapsedMillis;
+		public long lTimeLimitMillis;
+		public boolean bTimedOut;
+		// CPU time (user + system) used by the command and the processes it started, and the most memory they used
+		// at once; -1 if not known...
+		public long lCpuMillis = -1;
+		public long lPeakRssBytes = -1;
+		// The limits the command was run with (see JobSandbox), and what they did to it; null if it wasn't limited...
+		public String sSandbox = null;
+		public long lThrottledPeriods = 0;
+		public long lThrottledMillis = 0;
+		public int iOomKills = 0;
+		public int iPidsMaxEvents = 0;
+		// The output limit, if the command was killed for writing more than it (see runCommand()); otherwise 0...
+		public long lOutputLimitBytes = 0;
+		// The working directory's quota, if the command was killed for leaving more than it there; otherwise 0...
+		public long lDirQuotaBytes = 0;
+		private SpillableOutputBuffer sobSTDOUT;
+		private SpillableOutputBuffer sobSTDERR;
+		public CommandRunnerResult(String sCommand, File fDir, int iRC, SpillableOutputBuffer sobSTDOUT, SpillableOutputBuffer sobSTDERR, long lElapsedMillis, long lTimeLimitMillis, boolean bTimedOut) {
 			this.sCommand = sCommand;
 			this.fDir = fDir;
 			this.iRC = iRC;
-			this.sSTDOUT = sSTDOUT;
-			this.sSTDERR = sSTDERR;
+			this.sobSTDOUT = sobSTDOUT;
+			this.sobSTDERR = sobSTDERR;
+			this.lElapsedMillis = lElapsedMillis;
+			this.lTimeLimitMillis = lTimeLimitMillis;
+			this.bTimedOut = bTimedOut;
+		}
+		/**
+		 * @return true if the command was killed before it could finish (it exceeded its time or output limit, or its
+		 * working directory's quota)
+		 */
+		public boolean isCutShort() {
+			return this.bTimedOut || this.lOutputLimitBytes > 0 || this.lDirQuotaBytes > 0;
+		}
+		/**
+		 * @return the command's STDOUT, as a stream which reads from the beginning
+		 */
+		public InputStream getSTDOUT() throws IOException {
+			return sobSTDOUT.getInputStream();
+		}
+		/**
+		 * @return the command's STDERR, as a stream which reads from the beginning
+		 */
+		public InputStream getSTDERR() throws IOException {
+			return sobSTDERR.getInputStream();
+		}
+		/**
+		 * @return the file containing the command's STDOUT, or null if it was small enough to be kept in memory
+		 */
+		public File getSTDOUTFile() throws IOException {
+			return sobSTDOUT.getFile();
+		}
+		/**
+		 * @return the file containing the command's STDERR, or null if it was small enough to be kept in memory
+		 */
+		public File getSTDERRFile() throws IOException {
+			return sobSTDERR.getFile();
+		}
+		public long getSTDOUTLength() {
+			return sobSTDOUT.length();
+		}
+		public long getSTDERRLength() {
+			return sobSTDERR.length();
+		}
+		/**
+		 * Discard the captured output (deleting any temporary files holding it)
+		 */
+		public void release() {
+			sobSTDOUT.release();
+			sobSTDERR.release();
+		}
+		/**
+		 * Write this result, formatted as by toString(), to a logger, a chunk of lines at a time (rather than
+		 * building the whole thing in memory first)
+		 * @param log logger to write to
+		 */
+		public void logTo(SimpleLogger log) {
+			StringBuilder sb = new StringBuilder();
+			appendSummary(sb);
+			appendLines(log, sb, "STDOUT", sobSTDOUT);
+			appendLines(log, sb, "STDERR", sobSTDERR);
+			if (sb.length() > 0)
+				log.log(sb.toString());
 		}
 		public String toString() {
 			StringBuilder sb = new StringBuilder();
+			appendSummary(sb);
+			appendLines(null, sb, "STDOUT", sobSTDOUT);
+			appendLines(null, sb, "STDERR", sobSTDERR);
+			return sb.toString();
+		}
+		private void appendSummary(StringBuilder sb) {
 			sb.append("  Command: ").append(this.sCommand).append(sNL);
 			sb.append("  Working Directory: ").append(this.fDir).append(sNL);
 			sb.append("  RC: ").append(this.iRC).append(sNL);
-			if (this.sSTDOUT.equals("")) {
-				sb.append("  STDOUT: (empty)").append(sNL);
-			} else {
-				int iLineNo = 0;
-				for (String sLine : this.sSTDOUT.split("[\r\n]+")) {
-					iLineNo++;
-					sb.append(String.format("  STDOUT:%04d: %s", iLineNo, sLine)).append(sNL);
-				}
+			sb.append(String.format("  Elapsed Time: %.3f seconds", this.lElapsedMillis/1000.0)).append(sNL);
+			if (this.lCpuMillis >= 0)
+				sb.append(String.format("  CPU Time: %.3f seconds", this.lCpuMillis/1000.0)).append(sNL);
+			if (this.lPeakRssBytes >= 0)
+				sb.append("  Peak Memory: ").append(this.lPeakRssBytes/1024).append(" KB").append(sNL);
+			if (this.sSandbox != null)
+				sb.append("  Limits: ").append(this.sSandbox).append(sNL);
+			if (this.lThrottledPeriods > 0)
+				sb.append(String.format("  CPU Throttled: %d times, for %.3f seconds in all", this.lThrottledPeriods, this.lThrottledMillis/1000.0)).append(sNL);
+			if (this.bTimedOut)
+				sb.append(String.format("  *** TIME LIMIT (%.3f seconds) EXCEEDED: Command and all processes it started were killed ***", this.lTimeLimitMillis/1000.0)).append(sNL);
+			if (this.lOutputLimitBytes > 0)
+				sb.append("  *** OUTPUT LIMIT ("+this.lOutputLimitBytes+" bytes) EXCEEDED: Output truncated; command and all processes it started were killed ***").append(sNL);
+			if (this.lDirQuotaBytes > 0)
+				sb.append("  *** DISK QUOTA ("+this.lDirQuotaBytes+" bytes) EXCEEDED: Command and all processes it started were killed ***").append(sNL);
+			if (this.iOomKills > 0)
+				sb.append("  *** MEMORY LIMIT EXCEEDED: "+this.iOomKills+" process(es) killed for lack of memory ***").append(sNL);
+			if (this.iPidsMaxEvents > 0)
+				sb.append("  *** PROCESS LIMIT REACHED: "+this.iPidsMaxEvents+" attempt(s) to start a process refused ***").append(sNL);
+		}
+		/**
+		 * Append the lines of captured output to a buffer, each prefixed with its tag and line number.
+		 * If a logger is given, the buffer is written to it (and emptied) every so often.
+		 */
+		private void appendLines(SimpleLogger log, StringBuilder sb, String sTag, SpillableOutputBuffer sob) {
+			if (sob.length() == 0) {
+				sb.append("  ").append(sTag).append(": (empty)").append(sNL);
+				return;
 			}
-			if (this.sSTDERR.equals("")) {
-				sb.append("  STDERR: (empty)").append(sNL);
-			} else {
+			try (BufferedReader br = new BufferedReader(new InputStreamReader(sob.getInputStream(), StandardCharsets.UTF_8))) {
 				int iLineNo = 0;
-				for (String sLine : this.sSTDERR.split("[\r\n]+")) {
-					sb.append(String.format("  STDERR:%04d: %s", iLineNo, sLine)).append(sNL);
+				String sLine;
+				while ((sLine = br.readLine()) != null) {
+					// Blank lines are skipped, as they always have been...
+					if (sLine.isEmpty())
+						continue;
 					iLineNo++;
+					sb.append(String.format("  %s:%04d: %s", sTag, iLineNo, sLine)).append(sNL);
+					if (log != null && sb.length() >= 64*1024) {
+						log.log(sb.toString());
+						sb.setLength(0);
+					}
 				}
+			} catch (IOException e) {
+				sb.append("  ").append(sTag).append(": (unable to read: ").append(e.toString()).append(")").append(sNL);
 			}
-			return sb.toString();
 		}
 	}
 
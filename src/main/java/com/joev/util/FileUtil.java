@@ -0,0 +1,68 @@
+package com.joev.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Utility routines for working with files and directory trees
+ */
+public class FileUtil {
+
+	/**
+	 * Copy a file, or a directory and everything under it, preserving attributes (e.g. execute permission)
+	 */
+	public static void copyTree(File fFrom, File fTo) throws IOException {
+		if (fFrom.isDirectory()) {
+			if (!fTo.isDirectory() && !fTo.mkdirs())
+				throw new IOException("Unable to create directory '"+fTo.getAbsolutePath()+"'");
+			File[] lf = fFrom.listFiles();
+			if (lf == null)
+				throw new IOException("Unable to list directory '"+fFrom.getAbsolutePath()+"'");
+			for (File f : lf)
+				copyTree(f, new File(fTo, f.getName()));
+		} else {
+			Files.copy(fFrom.toPath(), fTo.toPath(), StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * @return size (bytes) of a file, or of all the files in a directory tree
+	 */
+	public static long sizeOf(File f) {
+		if (!f.isDirectory())
+			return f.length();
+		long lSize = 0;
+		File[] lf = f.listFiles();
+		if (lf != null) {
+			for (File fChild : lf)
+				lSize += sizeOf(fChild);
+		}
+		return lSize;
+	}
+
+	/**
+	 * Delete everything in a directory, but not the directory itself (as much as possible; errors are ignored)
+	 */
+	public static void deleteContents(File fDir) {
+		File[] lf = fDir.listFiles();
+		if (lf != null) {
+			for (File fChild : lf)
+				deleteTree(fChild);
+		}
+	}
+
+	/**
+	 * Delete a file, or a directory and everything under it (as much as possible; errors are ignored)
+	 */
+	public static void deleteTree(File f) {
+		File[] lf = f.listFiles();
+		if (lf != null) {
+			for (File fChild : lf)
+				deleteTree(fChild);
+		}
+		f.delete();
+	}
+
+}
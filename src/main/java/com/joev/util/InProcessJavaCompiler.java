@@ -0,0 +1,603 @@
+package com.joev.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import com.joev.util.CommandRunner.CommandRunnerResult;
+
+/**
+ * Compiles Java source code using the compiler built in to this JVM (javax.tools), rather than by running 'javac'
+ * in a new process. Source code is read from, and class files are written to, memory; the class files are then
+ * written to an output directory, just as 'javac' would have. Diagnostics are formatted the way 'javac' formats
+ * them, so the result looks the same as if 'javac' had been run.
+ * A compile with a time limit runs on a thread of its own; if it runs out of time, it's abandoned (the compiler can't
+ * be stopped, so it's left to finish in the background, and whatever it produces is thrown away), and the result
+ * says the time limit was exceeded, as CommandRunner's would.
+ */
+public class InProcessJavaCompiler {
+
+	private static final SimpleLogger log = new SimpleLogger(InProcessJavaCompiler.class.getSimpleName());
+
+	private static final String sNL = System.getProperty("line.separator");
+
+	// (Batch compiles) names of the types a program declares, and every word it uses...
+	private static final Pattern patTypeDeclaration = Pattern.compile("\\b(?:class|interface|enum|record)\\s+(\\w+)");
+	private static final Pattern patWord = Pattern.compile("\\w+");
+
+	private final JavaCompiler compiler;
+
+	// Threads on which compiles with a time limit are run...
+	private static final AtomicInteger aiThreadNumber = new AtomicInteger(0);
+	private static final ExecutorService esCompiles = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "InProcessJavaCompiler-"+aiThreadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public InProcessJavaCompiler() {
+		this.compiler = ToolProvider.getSystemJavaCompiler();
+		if (this.compiler == null)
+			throw new IllegalStateException("No Java compiler is available in this JVM (running on a JRE rather than a JDK?)");
+	}
+
+	/**
+	 * @return true if this JVM has a built-in Java compiler (i.e. it's a JDK, not just a JRE)
+	 */
+	public static boolean isAvailable() {
+		return ToolProvider.getSystemJavaCompiler() != null;
+	}
+
+	/**
+	 * @return description of the compiler's version, e.g. for use in cache keys
+	 */
+	public String getVersion() {
+		return "javax.tools "+System.getProperty("java.vendor")+" "+System.getProperty("java.version");
+	}
+
+	/**
+	 * A source file whose contents are in memory
+	 */
+	private static class SourceObject extends SimpleJavaFileObject {
+		private final String sSource;
+		/**
+		 * @param sDir (in a batch) distinguishes this program's sources from the others'; otherwise ""
+		 */
+		SourceObject(String sDir, String sFilename, String sSource) {
+			super(URI.create("string:///"+sDir+sFilename), Kind.SOURCE);
+			this.sSource = sSource;
+		}
+		@Override
+		public CharSequence getCharContent(boolean bIgnoreEncodingErrors) {
+			return sSource;
+		}
+		@Override
+		public String getName() {
+			// Diagnostics refer to the file by this name, so make it look like a plain filename, as given to 'javac'...
+			String sPath = toUri().getPath();
+			return sPath.substring(sPath.lastIndexOf('/')+1);
+		}
+	}
+
+	/**
+	 * A class file, written to memory
+	 */
+	private static class ClassObject extends SimpleJavaFileObject {
+		private final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		// The source file it was compiled from...
+		private final FileObject foSource;
+		ClassObject(String sClassName, FileObject foSource) {
+			super(URI.create("mem:///"+sClassName.replace('.', '/')+".class"), Kind.CLASS);
+			this.foSource = foSource;
+		}
+		@Override
+		public OutputStream openOutputStream() {
+			return baos;
+		}
+	}
+
+	/**
+	 * Compile one or more Java source files
+	 * @param sfm file manager to look up the platform classes, etc. with
+	 * @param aljfoSources the source files
+	 * @param alfClasspath the classpath (and sourcepath) for the compile (like running 'javac' in that directory, or in
+	 * each of those directories)
+	 * @param wOut receives the compiler's output, formatted as 'javac' would; diagnostics only go here if dc is null
+	 * @param dc if not null, receives all of the compiler's diagnostics
+	 * @return class files produced, by class name (nothing has been written anywhere); null if there were errors
+	 */
+	private Map<String,ClassObject> compile(StandardJavaFileManager sfm, List<? extends JavaFileObject> aljfoSources, List<File> alfClasspath, Writer wOut, DiagnosticCollector<JavaFileObject> dc) {
+		final LinkedHashMap<String,ClassObject> mapClasses = new LinkedHashMap<String,ClassObject>();
+		ForwardingJavaFileManager<StandardJavaFileManager> fm = new ForwardingJavaFileManager<StandardJavaFileManager>(sfm) {
+			@Override
+			public JavaFileObject getJavaFileForOutput(Location location, String sClassName, JavaFileObject.Kind kind, FileObject foSibling) {
+				ClassObject co = new ClassObject(sClassName, foSibling);
+				mapClasses.put(sClassName, co);
+				return co;
+			}
+			@Override
+			public void close() {
+				// The file manager may be shared by several compiles; its owner closes it...
+			}
+		};
+		StringBuilder sbClasspath = new StringBuilder();
+		for (File f : alfClasspath)
+			sbClasspath.append(sbClasspath.length() == 0 ? "" : File.pathSeparator).append(f.getAbsolutePath());
+		List<String> alsOptions = Arrays.asList("-classpath", sbClasspath.toString(), "-sourcepath", sbClasspath.toString());
+		if (!compiler.getTask(wOut, fm, dc, alsOptions, null, aljfoSources).call())
+			return null;
+		return mapClasses;
+	}
+
+	/**
+	 * Call a compile, giving up on it if it takes longer than the time limit
+	 * @param lTimeLimitMillis longest time (wall-clock milliseconds) to wait for the compile; 0 for no limit (in which
+	 * case it's called in this thread)
+	 * @return whatever the compile returns
+	 * @throws TimeoutException if the compile ran out of time (and has been abandoned)
+	 */
+	private static <T> T callWithin(Callable<T> c, long lTimeLimitMillis) throws IOException, TimeoutException {
+		Future<T> f = null;
+		try {
+			if (lTimeLimitMillis <= 0)
+				return c.call();
+			f = esCompiles.submit(c);
+			return f.get(lTimeLimitMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			f.cancel(true);
+			throw e;
+		} catch (InterruptedException e) {
+			f.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the compiler", e);
+		} catch (ExecutionException e) {
+			Throwable t = e.getCause();
+			if (t instanceof IOException)
+				throw (IOException) t;
+			if (t instanceof RuntimeException)
+				throw (RuntimeException) t;
+			if (t instanceof Error)
+				throw (Error) t;
+			throw new IOException(t);
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * @return result for a compile which ran out of time (and produced nothing)
+	 */
+	private static CommandRunnerResult timedOutResult(String sCommand, File fOutputDir, long lElapsedMillis, long lTimeLimitMillis) throws IOException {
+		SpillableOutputBuffer sobSTDOUT = new SpillableOutputBuffer(CommandRunner.lDefaultSpillThreshold);
+		SpillableOutputBuffer sobSTDERR = new SpillableOutputBuffer(CommandRunner.lDefaultSpillThreshold);
+		sobSTDOUT.close();
+		sobSTDERR.close();
+		return new CommandRunnerResult(sCommand, fOutputDir, 1, sobSTDOUT, sobSTDERR, lElapsedMillis, lTimeLimitMillis, true);
+	}
+
+	/**
+	 * Write class files to a directory. Like 'javac' without '-d', each class file goes directly in the directory,
+	 * regardless of the class' package.
+	 */
+	private static void writeClass(String sClassName, ClassObject co, File fOutputDir) throws IOException {
+		File fClass = new File(fOutputDir, sClassName.substring(sClassName.lastIndexOf('.')+1)+".class");
+		try (FileOutputStream fos = new FileOutputStream(fClass)) {
+			co.baos.writeTo(fos);
+		}
+	}
+
+	/**
+	 * Compile a Java program, as 'javac <sPgmName>.java' would if run in fOutputDir, with no time limit
+	 * @param sPgmName name of the program's main class
+	 * @param sSource the program's source code
+	 * @param fOutputDir directory in which to write the class files
+	 * @return result, in the same form as if 'javac' had been run by CommandRunner; diagnostics are in STDERR
+	 */
+	public CommandRunnerResult compile(String sPgmName, String sSource, File fOutputDir) throws IOException {
+		return compile(sPgmName, sSource, fOutputDir, 0);
+	}
+
+	/**
+	 * Compile a Java program, as 'javac <sPgmName>.java' would if run in fOutputDir
+	 * @param sPgmName name of the program's main class
+	 * @param sSource the program's source code
+	 * @param fOutputDir directory in which to write the class files
+	 * @param lTimeLimitMillis longest time (wall-clock milliseconds) to let the compile run; 0 for no limit
+	 * @return result, in the same form as if 'javac' had been run by CommandRunner; diagnostics are in STDERR
+	 */
+	public CommandRunnerResult compile(String sPgmName, String sSource, File fOutputDir, long lTimeLimitMillis) throws IOException {
+		final String sFilename = sPgmName+".java";
+		String sCommand = "(in-process) javac "+sFilename;
+		log.log("Compiling '"+sFilename+"' in-process into directory '"+fOutputDir.getAbsolutePath()+"'"
+			+(lTimeLimitMillis > 0 ? " with time limit "+lTimeLimitMillis+"ms" : "")+"...");
+		long lStartNanos = System.nanoTime();
+		// With no DiagnosticListener, the compiler formats its diagnostics exactly as 'javac' does...
+		SpillableOutputBuffer sobSTDERR = new SpillableOutputBuffer(CommandRunner.lDefaultSpillThreshold);
+		final Writer wSTDERR = new OutputStreamWriter(sobSTDERR, StandardCharsets.UTF_8);
+		Map<String,ClassObject> mapClassBytes;
+		final StandardJavaFileManager sfm = compiler.getStandardFileManager(null, null, null);
+		// (It all happens in one thread, which measures its own CPU time)...
+		final long[] alCpuNanos = { -1 };
+		final List<SourceObject> alSources = Arrays.asList(new SourceObject("", sFilename, sSource));
+		final List<File> alfClasspath = Arrays.asList(fOutputDir);
+		boolean bTimedOut = false;
+		try {
+			mapClassBytes = callWithin(new Callable<Map<String,ClassObject>>() {
+				public Map<String,ClassObject> call() {
+					ThreadMXBean tmxb = ManagementFactory.getThreadMXBean();
+					long lStartCpuNanos = tmxb.isCurrentThreadCpuTimeSupported() ? tmxb.getCurrentThreadCpuTime() : -1;
+					try {
+						return compile(sfm, alSources, alfClasspath, wSTDERR, null);
+					} finally {
+						if (lStartCpuNanos >= 0)
+							alCpuNanos[0] = tmxb.getCurrentThreadCpuTime() - lStartCpuNanos;
+					}
+				}
+			}, lTimeLimitMillis);
+		} catch (TimeoutException e) {
+			bTimedOut = true;
+			long lElapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lStartNanos);
+			log.log("In-process compile of '"+sFilename+"' exceeded its time limit of "+lTimeLimitMillis+"ms. Abandoning it.");
+			return timedOutResult(sCommand, fOutputDir, lElapsedMillis, lTimeLimitMillis);
+		} finally {
+			// (The abandoned compile still has the file manager and STDERR; they're left to it)...
+			if (!bTimedOut)
+				sfm.close();
+		}
+		wSTDERR.flush();
+		// Like 'javac', only write class files (and return 0) if there were no errors...
+		if (mapClassBytes != null) {
+			for (Map.Entry<String,ClassObject> me : mapClassBytes.entrySet())
+				writeClass(me.getKey(), me.getValue(), fOutputDir);
+		}
+		long lElapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lStartNanos);
+		int iRC = (mapClassBytes != null) ? 0 : 1;
+		log.log("In-process compile of '"+sFilename+"' completed. RC="+iRC+" Elapsed="+lElapsedMillis+"ms");
+		SpillableOutputBuffer sobSTDOUT = new SpillableOutputBuffer(CommandRunner.lDefaultSpillThreshold);
+		sobSTDOUT.close();
+		sobSTDERR.close();
+		CommandRunnerResult crr = new CommandRunnerResult(sCommand, fOutputDir, iRC, sobSTDOUT, sobSTDERR, lElapsedMillis, lTimeLimitMillis, false);
+		if (alCpuNanos[0] >= 0)
+			crr.lCpuMillis = TimeUnit.NANOSECONDS.toMillis(alCpuNanos[0]);
+		return crr;
+	}
+
+	/**
+	 * Compile several Java programs together, each as 'javac <sPgmName>.java' would if run in its own output directory.
+	 * Programs are compiled in as few passes of the compiler as possible, all sharing one file manager (so the platform
+	 * classes are only looked up once): programs whose classes would clash (e.g. two programs which both declare a class
+	 * 'Foo', or one which uses a class 'Bar' that only another declares) go in different passes. If some programs in a
+	 * pass have errors, the rest are compiled again without them, so that one program's errors neither prevent the
+	 * others' class files being written, nor appear in the others' results.
+	 * Each pass has its programs' directories on its classpath (and sourcepath), as each would have if compiled alone;
+	 * since the programs in a pass don't mention each other's types, each only finds what's in its own directory.
+	 * The time taken by the passes is shared out among the programs in them, so that each program's result shows its
+	 * share of the batch's time (rather than all of it).
+	 * @param alsPgmNames names of the programs' main classes
+	 * @param alsSources the programs' source code
+	 * @param alfOutputDirs directories in which to write the programs' class files
+	 * @return result for each program, in the same form as if 'javac' had been run by CommandRunner; diagnostics are in STDERR
+	 */
+	public List<CommandRunnerResult> compileBatch(List<String> alsPgmNames, List<String> alsSources, List<File> alfOutputDirs) throws IOException {
+		return compileBatch(alsPgmNames, alsSources, alfOutputDirs, 0);
+	}
+
+	/**
+	 * Compile several Java programs together, as compileBatch() above, within a time limit for the whole batch: the
+	 * programs which haven't been compiled by then are reported as having exceeded it
+	 * @param lTimeLimitMillis longest time (wall-clock milliseconds) to let the batch run; 0 for no limit
+	 */
+	public List<CommandRunnerResult> compileBatch(List<String> alsPgmNames, List<String> alsSources, List<File> alfOutputDirs, long lTimeLimitMillis) throws IOException {
+		int iJobs = alsPgmNames.size();
+		long lStartNanos = System.nanoTime();
+		long lDeadlineNanos = lStartNanos + TimeUnit.MILLISECONDS.toNanos(lTimeLimitMillis);
+		// Each program's source is in its own (pretend) directory, so that the class files can be traced back to it...
+		ArrayList<SourceObject> alSources = new ArrayList<SourceObject>();
+		HashMap<URI,Integer> hmSourceJob = new HashMap<URI,Integer>();
+		for (int i = 0; i < iJobs; i++) {
+			SourceObject so = new SourceObject("job"+i+"/", alsPgmNames.get(i)+".java", alsSources.get(i));
+			alSources.add(so);
+			hmSourceJob.put(so.toUri(), i);
+		}
+		List<LinkedHashSet<Integer>> alGroups = groupByClassNames(alsPgmNames, alsSources);
+		log.log("Compiling "+iJobs+" program(s) in-process, in "+alGroups.size()+" group(s): "+alsPgmNames+"...");
+		StringBuilder[] asbSTDERR = new StringBuilder[iJobs];
+		int[] aiRC = new int[iJobs];
+		// (Results of programs compiled on their own, after an error which couldn't be pinned on any one of them)...
+		CommandRunnerResult[] acrrAlone = new CommandRunnerResult[iJobs];
+		// (Programs which the batch ran out of time before compiling)...
+		boolean[] abTimedOut = new boolean[iJobs];
+		boolean bTimedOut = false;
+		for (int i = 0; i < iJobs; i++)
+			asbSTDERR[i] = new StringBuilder();
+		int iPasses = 0;
+		final StandardJavaFileManager sfm = compiler.getStandardFileManager(null, null, null);
+		try {
+			for (LinkedHashSet<Integer> hsRemaining : alGroups) {
+				while (!hsRemaining.isEmpty()) {
+					long lRemainingMillis = TimeUnit.NANOSECONDS.toMillis(lDeadlineNanos - System.nanoTime());
+					if (bTimedOut || (lTimeLimitMillis > 0 && lRemainingMillis <= 0)) {
+						bTimedOut = true;
+						for (int i : hsRemaining) {
+							abTimedOut[i] = true;
+							aiRC[i] = 1;
+						}
+						break;
+					}
+					iPasses++;
+					final ArrayList<SourceObject> alPass = new ArrayList<SourceObject>();
+					final ArrayList<File> alfPassDirs = new ArrayList<File>();
+					for (int i : hsRemaining) {
+						alPass.add(alSources.get(i));
+						alfPassDirs.add(alfOutputDirs.get(i));
+					}
+					final DiagnosticCollector<JavaFileObject> dc = new DiagnosticCollector<JavaFileObject>();
+					final StringWriter swOther = new StringWriter();
+					Map<String,ClassObject> mapClasses;
+					try {
+						mapClasses = callWithin(new Callable<Map<String,ClassObject>>() {
+							public Map<String,ClassObject> call() {
+								return compile(sfm, alPass, alfPassDirs, swOther, dc);
+							}
+						}, (lTimeLimitMillis > 0) ? lRemainingMillis : 0);
+					} catch (TimeoutException e) {
+						log.log("Batch compile exceeded its time limit of "+lTimeLimitMillis+"ms. Abandoning it.");
+						bTimedOut = true;
+						continue;
+					}
+					if (mapClasses != null) {
+						for (Map.Entry<String,ClassObject> me : mapClasses.entrySet()) {
+							File fDir = getOutputDir(me.getValue().foSource, hmSourceJob, alfOutputDirs);
+							if (fDir != null)
+								writeClass(me.getKey(), me.getValue(), fDir);
+							else
+								log.log("WARNING: Batch compile produced class '"+me.getKey()+"' from '"+me.getValue().foSource.toUri()+"', which isn't any program's; not writing it.");
+						}
+						appendDiagnostics(dc.getDiagnostics(), hsRemaining, hmSourceJob, swOther.toString(), asbSTDERR);
+						break;
+					}
+					// The programs with errors are done; the rest are compiled again without them...
+					LinkedHashSet<Integer> hsFailed = new LinkedHashSet<Integer>();
+					boolean bUnattributedError = false;
+					for (Diagnostic<? extends JavaFileObject> d : dc.getDiagnostics()) {
+						if (!d.getKind().equals(Diagnostic.Kind.ERROR))
+							continue;
+						Integer iJob = (d.getSource() == null) ? null : hmSourceJob.get(d.getSource().toUri());
+						if (iJob == null)
+							bUnattributedError = true;
+						else
+							hsFailed.add(iJob);
+					}
+					if (hsFailed.isEmpty() || bUnattributedError) {
+						// An error which can't be pinned on any one program; compile them one at a time instead...
+						log.log("Batch compile failed with an error not attributable to any one program; compiling the remaining "+hsRemaining.size()+" program(s) one at a time...");
+						for (int i : hsRemaining) {
+							lRemainingMillis = TimeUnit.NANOSECONDS.toMillis(lDeadlineNanos - System.nanoTime());
+							if (lTimeLimitMillis > 0 && lRemainingMillis <= 0) {
+								bTimedOut = abTimedOut[i] = true;
+								aiRC[i] = 1;
+								continue;
+							}
+							acrrAlone[i] = compile(alsPgmNames.get(i), alsSources.get(i), alfOutputDirs.get(i), (lTimeLimitMillis > 0) ? lRemainingMillis : 0);
+							aiRC[i] = acrrAlone[i].iRC;
+						}
+						break;
+					}
+					appendDiagnostics(dc.getDiagnostics(), hsFailed, hmSourceJob, swOther.toString(), asbSTDERR);
+					for (int i : hsFailed)
+						aiRC[i] = 1;
+					hsRemaining.removeAll(hsFailed);
+				}
+			}
+		} finally {
+			// (An abandoned compile is still using it; it's left to it)...
+			if (!bTimedOut)
+				sfm.close();
+		}
+		long lElapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lStartNanos);
+		log.log("In-process batch compile of "+iJobs+" program(s) completed in "+iPasses+" pass(es). RCs="+Arrays.toString(aiRC)+" Elapsed="+lElapsedMillis+"ms");
+		// Share the time of the passes out among the programs compiled in them (those compiled alone have their own)...
+		long lPassMillis = lElapsedMillis;
+		int iPassJobs = 0;
+		for (int i = 0; i < iJobs; i++) {
+			if (acrrAlone[i] != null)
+				lPassMillis -= acrrAlone[i].lElapsedMillis;
+			else if (!abTimedOut[i])
+				iPassJobs++;
+		}
+		long lShareMillis = (iPassJobs == 0) ? 0 : Math.max(0, lPassMillis)/iPassJobs;
+		ArrayList<CommandRunnerResult> alResults = new ArrayList<CommandRunnerResult>();
+		for (int i = 0; i < iJobs; i++) {
+			if (acrrAlone[i] != null) {
+				alResults.add(acrrAlone[i]);
+				continue;
+			}
+			if (abTimedOut[i]) {
+				alResults.add(timedOutResult("(in-process, batch of "+iJobs+") javac "+alsPgmNames.get(i)+".java", alfOutputDirs.get(i), lElapsedMillis, lTimeLimitMillis));
+				continue;
+			}
+			SpillableOutputBuffer sobSTDOUT = new SpillableOutputBuffer(CommandRunner.lDefaultSpillThreshold);
+			SpillableOutputBuffer sobSTDERR = new SpillableOutputBuffer(CommandRunner.lDefaultSpillThreshold);
+			sobSTDERR.write(asbSTDERR[i].toString().getBytes(StandardCharsets.UTF_8));
+			sobSTDOUT.close();
+			sobSTDERR.close();
+			alResults.add(new CommandRunnerResult("(in-process, batch of "+iJobs+") javac "+alsPgmNames.get(i)+".java", alfOutputDirs.get(i),
+				aiRC[i], sobSTDOUT, sobSTDERR, lShareMillis, lTimeLimitMillis, false));
+		}
+		return alResults;
+	}
+
+	/**
+	 * @return the directory in which to write a class compiled in a batch: that of the program whose source it came
+	 * from, or (if it came from a source file found on the sourcepath) the directory that file is in; null if neither
+	 */
+	private static File getOutputDir(FileObject foSource, HashMap<URI,Integer> hmSourceJob, List<File> alfOutputDirs) {
+		if (foSource == null)
+			return null;
+		Integer iJob = hmSourceJob.get(foSource.toUri());
+		if (iJob != null)
+			return alfOutputDirs.get(iJob);
+		if ("file".equals(foSource.toUri().getScheme())) {
+			File fSourceDir = new File(foSource.toUri()).getParentFile().getAbsoluteFile();
+			for (File fDir : alfOutputDirs) {
+				if (fDir.getAbsoluteFile().equals(fSourceDir))
+					return fDir;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Split programs into groups which can be compiled in the same pass: no two programs in a group declare a type of
+	 * the same name, nor mention a type that only the other declares
+	 * @return the programs (indexes) in each group
+	 */
+	private static List<LinkedHashSet<Integer>> groupByClassNames(List<String> alsPgmNames, List<String> alsSources) {
+		ArrayList<LinkedHashSet<Integer>> alGroups = new ArrayList<LinkedHashSet<Integer>>();
+		// For each group: the types its programs declare, and the words they use...
+		ArrayList<HashSet<String>> alGroupTypes = new ArrayList<HashSet<String>>();
+		ArrayList<HashSet<String>> alGroupWords = new ArrayList<HashSet<String>>();
+		for (int i = 0; i < alsPgmNames.size(); i++) {
+			HashSet<String> hsTypes = new HashSet<String>();
+			hsTypes.add(alsPgmNames.get(i));
+			Matcher m = patTypeDeclaration.matcher(alsSources.get(i));
+			while (m.find())
+				hsTypes.add(m.group(1));
+			HashSet<String> hsWords = new HashSet<String>();
+			m = patWord.matcher(alsSources.get(i));
+			while (m.find())
+				hsWords.add(m.group());
+			int iGroup = 0;
+			for (; iGroup < alGroups.size(); iGroup++) {
+				if (Collections.disjoint(hsTypes, alGroupWords.get(iGroup)) && Collections.disjoint(hsWords, alGroupTypes.get(iGroup)))
+					break;
+			}
+			if (iGroup == alGroups.size()) {
+				alGroups.add(new LinkedHashSet<Integer>());
+				alGroupTypes.add(new HashSet<String>());
+				alGroupWords.add(new HashSet<String>());
+			}
+			alGroups.get(iGroup).add(i);
+			alGroupTypes.get(iGroup).addAll(hsTypes);
+			alGroupWords.get(iGroup).addAll(hsWords);
+		}
+		return alGroups;
+	}
+
+	/**
+	 * Format the diagnostics of one pass of a batch compile as 'javac' would, and append them to each program's STDERR.
+	 * Diagnostics which aren't about any one program's source (and any other compiler output) go to all of the programs.
+	 */
+	private static void appendDiagnostics(List<Diagnostic<? extends JavaFileObject>> alDiagnostics, Set<Integer> hsJobs,
+			HashMap<URI,Integer> hmSourceJob, String sOther, StringBuilder[] asbSTDERR) throws IOException {
+		HashMap<Integer,int[]> hmCounts = new HashMap<Integer,int[]>();
+		for (int i : hsJobs) {
+			asbSTDERR[i].append(sOther);
+			hmCounts.put(i, new int[2]);
+		}
+		for (Diagnostic<? extends JavaFileObject> d : alDiagnostics) {
+			Integer iJob = (d.getSource() == null) ? null : hmSourceJob.get(d.getSource().toUri());
+			if (iJob != null && !hsJobs.contains(iJob))
+				continue;
+			String sDiagnostic = formatDiagnostic(d);
+			for (int i : hsJobs) {
+				if (iJob != null && iJob != i)
+					continue;
+				asbSTDERR[i].append(sDiagnostic);
+				if (d.getKind().equals(Diagnostic.Kind.ERROR))
+					hmCounts.get(i)[0]++;
+				else if (d.getKind().equals(Diagnostic.Kind.WARNING) || d.getKind().equals(Diagnostic.Kind.MANDATORY_WARNING))
+					hmCounts.get(i)[1]++;
+			}
+		}
+		for (int i : hsJobs) {
+			int[] ai = hmCounts.get(i);
+			if (ai[0] > 0)
+				asbSTDERR[i].append(ai[0]+(ai[0] == 1 ? " error" : " errors")+sNL);
+			if (ai[1] > 0)
+				asbSTDERR[i].append(ai[1]+(ai[1] == 1 ? " warning" : " warnings")+sNL);
+		}
+	}
+
+	/**
+	 * @return a diagnostic, formatted as 'javac' would: "Foo.java:3: error: message", then the source line, and a
+	 * caret under the error's position, then the rest of the message
+	 */
+	private static String formatDiagnostic(Diagnostic<? extends JavaFileObject> d) throws IOException {
+		String[] lsMessage = d.getMessage(null).split("\\r?\\n", -1);
+		StringBuilder sb = new StringBuilder();
+		switch (d.getKind()) {
+		case ERROR:
+			sb.append("error: ");
+			break;
+		case WARNING:
+		case MANDATORY_WARNING:
+			sb.append("warning: ");
+			break;
+		case NOTE:
+			sb.append("Note: ");
+			break;
+		default:
+		}
+		sb.append(lsMessage[0]).append(sNL);
+		if (d.getSource() != null && d.getLineNumber() != Diagnostic.NOPOS) {
+			sb.insert(0, d.getSource().getName()+":"+d.getLineNumber()+": ");
+			String[] lsSource = d.getSource().getCharContent(true).toString().split("\\r?\\n", -1);
+			String sLine = lsSource[(int) d.getLineNumber()-1];
+			sb.append(sLine).append(sNL);
+			// Line the caret up with the position, even if the line has tabs in it...
+			int iColumn = (int) Math.min(d.getColumnNumber(), sLine.length()+1);
+			for (int i = 0; i < iColumn-1; i++)
+				sb.append(sLine.charAt(i) == '\t' ? '\t' : ' ');
+			sb.append('^').append(sNL);
+		}
+		for (int i = 1; i < lsMessage.length; i++)
+			sb.append(lsMessage[i]).append(sNL);
+		return sb.toString();
+	}
+
+}
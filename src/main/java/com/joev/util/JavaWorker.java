@@ -0,0 +1,206 @@
+package com.joev.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Scanner;
+
+/**
+ * A long-lived ("warm") JVM which runs Java programs, one at a time, on request from a JavaWorkerPool, so that each
+ * program doesn't have to pay for starting up a JVM of its own.
+ * Each program's classes are loaded by a new classloader, with System.in/out/err redirected to files for the
+ * duration of the program. A program which calls System.exit() (or Runtime.halt()) ends the worker, as it would
+ * its own JVM; the pool takes the worker's exit status as the program's, and replaces it.
+ * The worker talks to the pool over a socket (usage: JavaWorker port token), rather than STDIN/STDOUT, which a program
+ * (or a process it starts) could write to behind the worker's back. Requests and replies are one line each (fields
+ * separated by tabs):
+ *   READY token                                                         (sent once, at startup)
+ *   RUN classDir mainClass stdinFile stdoutFile stderrFile   ->   DONE rc elapsedMillis clean
+ * where "clean" is false if the program left threads running, or otherwise misbehaved, in which case this worker
+ * should not be reused. The worker exits when the pool closes the socket.
+ */
+public class JavaWorker {
+
+	public static void main(String[] args) throws Exception {
+		Socket sControl = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]));
+		BufferedReader brControl = new BufferedReader(new InputStreamReader(sControl.getInputStream(), "UTF-8"));
+		PrintStream psControl = new PrintStream(sControl.getOutputStream(), true, "UTF-8");
+		InputStream isOrigIn = System.in;
+		PrintStream psOrigOut = System.out;
+		PrintStream psOrigErr = System.err;
+		warmUp();
+		psControl.println("READY\t"+args[1]);
+
+		String sLine;
+		while ((sLine = brControl.readLine()) != null) {
+			String[] lsRequest = sLine.split("\t");
+			if (lsRequest.length != 6 || !lsRequest[0].equals("RUN")) {
+				psOrigErr.println("JavaWorker: Ignoring invalid request: "+sLine);
+				continue;
+			}
+			File fClassDir = new File(lsRequest[1]);
+			String sMainClass = lsRequest[2];
+			long lStartNanos = System.nanoTime();
+			int iRC;
+			boolean bClean = true;
+			try (
+				InputStream isJob = new FileInputStream(lsRequest[3]);
+				PrintStream psJobOut = new PrintStream(new FileOutputStream(lsRequest[4]), true);
+				PrintStream psJobErr = new PrintStream(new FileOutputStream(lsRequest[5]), true);
+			) {
+				System.setIn(isJob);
+				System.setOut(psJobOut);
+				System.setErr(psJobErr);
+				try {
+					iRC = runProgram(fClassDir, sMainClass);
+				} finally {
+					System.setIn(isOrigIn);
+					System.setOut(psOrigOut);
+					System.setErr(psOrigErr);
+				}
+			} catch (ProgramLeftThreadsException e) {
+				iRC = e.iRC;
+				bClean = false;
+			} catch (Throwable t) {
+				psOrigErr.println("JavaWorker: Error running '"+sMainClass+"': "+t.toString());
+				iRC = 1;
+				bClean = false;
+			}
+			long lElapsedMillis = (System.nanoTime() - lStartNanos) / 1000000;
+			psControl.println("DONE\t"+iRC+"\t"+lElapsedMillis+"\t"+bClean);
+		}
+	}
+
+	/**
+	 * Thrown when a program finished (or exited) while some of its threads were still running
+	 */
+	private static class ProgramLeftThreadsException extends Exception {
+		private static final long serialVersionUID = 1L;
+		final int iRC;
+		ProgramLeftThreadsException(int iRC) {
+			this.iRC = iRC;
+		}
+	}
+
+	/**
+	 * Run a program's main(), on its own thread in its own thread group, as the JVM would, and wait for all of its
+	 * (non-daemon) threads to finish
+	 * @return the program's exit code
+	 */
+	private static int runProgram(File fClassDir, String sMainClass) throws Exception {
+		// The program's classloader can see the JDK, but not the simulator's own classes...
+		final URLClassLoader ucl = new URLClassLoader(new URL[] { fClassDir.toURI().toURL() }, ClassLoader.getSystemClassLoader().getParent());
+		final Class<?> cMain;
+		final Method mMain;
+		try {
+			cMain = Class.forName(sMainClass, false, ucl);
+			mMain = cMain.getMethod("main", String[].class);
+			if (!Modifier.isStatic(mMain.getModifiers()))
+				throw new NoSuchMethodException("main");
+		} catch (ClassNotFoundException | NoClassDefFoundError e) {
+			System.err.println("Error: Could not find or load main class "+sMainClass);
+			ucl.close();
+			return 1;
+		} catch (NoSuchMethodException e) {
+			System.err.println("Error: Main method not found in class "+sMainClass+", please define the main method as:");
+			System.err.println("   public static void main(String[] args)");
+			ucl.close();
+			return 1;
+		}
+		final int[] aiRC = { 0 };
+		ThreadGroup tg = new ThreadGroup("JavaWorkerJob");
+		Thread tMain = new Thread(tg, new Runnable() {
+			public void run() {
+				try {
+					mMain.invoke(null, (Object) new String[0]);
+				} catch (InvocationTargetException e) {
+					Throwable t = e.getCause();
+					// As the JVM does for an uncaught exception in main()...
+					trimReflectionFrames(t);
+					System.err.print("Exception in thread \"main\" ");
+					t.printStackTrace();
+					aiRC[0] = 1;
+				} catch (Exception e) {
+					e.printStackTrace();
+					aiRC[0] = 1;
+				}
+			}
+		}, "main");
+		tMain.setContextClassLoader(ucl);
+		tMain.start();
+		tMain.join();
+		// The JVM would only exit once all non-daemon threads are done (System.exit() ends this one)...
+		boolean bThreadsLeft = false;
+		Thread t;
+		while ((t = findLiveNonDaemonThread(tg)) != null)
+			t.join(100);
+		for (Thread tLeft : listThreads(tg)) {
+			if (tLeft.isAlive())
+				bThreadsLeft = true;
+		}
+		System.out.flush();
+		System.err.flush();
+		ucl.close();
+		int iRC = aiRC[0];
+		if (bThreadsLeft)
+			throw new ProgramLeftThreadsException(iRC);
+		return iRC;
+	}
+
+	private static Thread[] listThreads(ThreadGroup tg) {
+		Thread[] at = new Thread[tg.activeCount() + 16];
+		int iCount = tg.enumerate(at, true);
+		return Arrays.copyOf(at, iCount);
+	}
+
+	private static Thread findLiveNonDaemonThread(ThreadGroup tg) {
+		for (Thread t : listThreads(tg)) {
+			if (t.isAlive() && !t.isDaemon())
+				return t;
+		}
+		return null;
+	}
+
+	/**
+	 * Remove the stack frames of our reflective call to main(), so the stack trace looks like the JVM's own
+	 */
+	private static void trimReflectionFrames(Throwable t) {
+		StackTraceElement[] aste = t.getStackTrace();
+		ArrayList<StackTraceElement> alste = new ArrayList<StackTraceElement>();
+		for (StackTraceElement ste : aste) {
+			String sClass = ste.getClassName();
+			if (sClass.startsWith("sun.reflect.") || sClass.startsWith("jdk.internal.reflect.") || sClass.equals("java.lang.reflect.Method"))
+				break;
+			alste.add(ste);
+		}
+		t.setStackTrace(alste.toArray(new StackTraceElement[alste.size()]));
+	}
+
+	/**
+	 * Load and exercise some classes which programs commonly use, so the first program doesn't pay for it
+	 */
+	private static void warmUp() {
+		Scanner sc = new Scanner("1 2.5 three\n");
+		sc.nextInt();
+		sc.nextDouble();
+		sc.next();
+		sc.close();
+		String.format("%d %s %.2f%n", 1, "x", 2.5);
+		new StringBuilder().append(1).append("x").toString();
+		new ArrayList<String>(Arrays.asList("b", "a")).sort(null);
+	}
+
+}
@@ -0,0 +1,465 @@
+package com.joev.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.joev.util.CommandRunner.CommandRunnerResult;
+
+/**
+ * A pool of pre-started "warm" JVMs (see JavaWorker), each of which can run Java programs without the cost of
+ * starting a new JVM for each one. A worker is retired (and replaced, in the background) after it has run a given
+ * number of programs, or after a program misbehaves (leaves threads running, exceeds its time limit, calls
+ * System.exit(), or kills the JVM).
+ * A JVM can't change its working directory, so each worker is started in a directory of its own; before each program
+ * is run there, the files in its job's working directory are linked into it, and afterwards, whatever the program
+ * created (or replaced) is moved back to the job's working directory.
+ * If workers keep failing to start, the pool gives up on them, and run() returns null (so the caller runs the program
+ * in a JVM of its own) rather than waiting for a worker which will never come.
+ */
+public class JavaWorkerPool {
+
+	private static final SimpleLogger log = new SimpleLogger(JavaWorkerPool.class.getSimpleName());
+
+	// Longest time (milliseconds) to wait for a new worker to start up, or for an idle worker to become available...
+	private static final long lWorkerWaitMillis = 30000;
+	// Number of workers in a row which may fail to start before the pool gives up on them...
+	private static final int iMaxStartFailures = 3;
+	// How often (milliseconds) to check the size of a running program's output, when it has a limit...
+	private static final long lOutputCheckMillis = 100;
+
+	private final int iPoolSize;
+	private final int iMaxJobsPerWorker;
+	private final ArrayList<String> alsWorkerCommand = new ArrayList<String>();
+	private final LinkedBlockingQueue<Worker> lbqIdle = new LinkedBlockingQueue<Worker>();
+	private final ExecutorService esRefill;
+	private final AtomicInteger aiWorkerNumber = new AtomicInteger(0);
+	// Workers which are starting, idle or busy (i.e. not yet retired)...
+	private final AtomicInteger aiWorkers = new AtomicInteger(0);
+	private final AtomicInteger aiStartFailures = new AtomicInteger(0);
+	private final SecureRandom sr = new SecureRandom();
+	private volatile boolean bShutdown = false;
+	private volatile boolean bGaveUp = false;
+
+	/**
+	 * Create the pool, and start its workers (in the background)
+	 * @param iPoolSize number of worker JVMs to keep running
+	 * @param iMaxJobsPerWorker number of programs a worker may run before it is replaced
+	 * @param sJvmOptions options for the worker JVMs (whitespace-separated), e.g. "-Xshare:auto -XX:TieredStopAtLevel=1"
+	 */
+	public JavaWorkerPool(int iPoolSize, int iMaxJobsPerWorker, String sJvmOptions) {
+		this.iPoolSize = iPoolSize;
+		this.iMaxJobsPerWorker = iMaxJobsPerWorker;
+		alsWorkerCommand.add(new File(System.getProperty("java.home"), "bin"+File.separator+"java").getPath());
+		for (String sOption : sJvmOptions.trim().split("\\s+")) {
+			if (!sOption.isEmpty())
+				alsWorkerCommand.add(sOption);
+		}
+		// Each worker runs in a directory of its own, so our classpath must be made absolute...
+		StringBuilder sbClassPath = new StringBuilder();
+		for (String sEntry : System.getProperty("java.class.path").split(File.pathSeparator, -1))
+			sbClassPath.append(sbClassPath.length() == 0 ? "" : File.pathSeparator).append(new File(sEntry).getAbsolutePath());
+		alsWorkerCommand.add("-cp");
+		alsWorkerCommand.add(sbClassPath.toString());
+		alsWorkerCommand.add(JavaWorker.class.getName());
+		this.esRefill = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "JavaWorkerPool-Refill");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		log.log("Starting "+iPoolSize+" worker JVM(s): "+alsWorkerCommand);
+		for (int i = 0; i < iPoolSize; i++)
+			refill();
+	}
+
+	/**
+	 * A worker JVM, its working directory, and the means of talking to it
+	 */
+	private class Worker {
+		private final String sName;
+		private final File fDir;
+		private final Process proc;
+		private final Socket sControl;
+		private final BufferedWriter bwControl;
+		private final LinkedBlockingQueue<String> lbqReplies = new LinkedBlockingQueue<String>();
+		private int iJobs = 0;
+		private boolean bRetired = false;
+
+		/**
+		 * Start a worker, and wait for it to connect back to us
+		 * @param sToken the worker is to send it back, so we know it's our worker on the other end
+		 */
+		Worker(String sToken) throws IOException {
+			this.sName = "JavaWorker-"+aiWorkerNumber.incrementAndGet();
+			this.fDir = Files.createTempDirectory("JavaWorker").toFile();
+			try (ServerSocket ss = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+				ss.setSoTimeout(1000);
+				ArrayList<String> alsCommand = new ArrayList<String>(alsWorkerCommand);
+				alsCommand.add(""+ss.getLocalPort());
+				alsCommand.add(sToken);
+				ProcessBuilder pb = new ProcessBuilder(CommandRunner.inOwnProcessGroup(alsCommand.toArray(new String[0])));
+				pb.directory(fDir);
+				pb.redirectErrorStream(true);
+				this.proc = pb.start();
+				try {
+					// The worker gets no input from us, other than over the socket...
+					proc.getOutputStream().close();
+					logOutput();
+					this.sControl = accept(ss);
+					this.bwControl = new BufferedWriter(new OutputStreamWriter(sControl.getOutputStream(), "UTF-8"));
+				} catch (IOException e) {
+					CommandRunner.killProcessTree(proc);
+					throw e;
+				}
+			} catch (IOException e) {
+				FileUtil.deleteTree(fDir);
+				throw e;
+			}
+			// Collect replies from the worker...
+			Thread tReplies = new Thread(new Runnable() {
+				public void run() {
+					try (BufferedReader br = new BufferedReader(new InputStreamReader(sControl.getInputStream(), "UTF-8"))) {
+						String sLine;
+						while ((sLine = br.readLine()) != null)
+							lbqReplies.add(sLine);
+					} catch (IOException e) {
+						// Treat it as EOF
+					}
+					lbqReplies.add("EOF");
+				}
+			}, sName+"-Replies");
+			tReplies.setDaemon(true);
+			tReplies.start();
+		}
+
+		/**
+		 * Wait for the worker to connect (unless it dies first, or takes too long)
+		 */
+		private Socket accept(ServerSocket ss) throws IOException {
+			long lDeadline = System.currentTimeMillis() + lWorkerWaitMillis;
+			while (true) {
+				try {
+					return ss.accept();
+				} catch (SocketTimeoutException e) {
+					if (!proc.isAlive())
+						throw new IOException("Worker exited before connecting");
+					if (System.currentTimeMillis() >= lDeadline)
+						throw new IOException("Worker did not connect within "+lWorkerWaitMillis+"ms");
+				}
+			}
+		}
+
+		/**
+		 * Anything the worker itself writes to STDOUT or STDERR (e.g. JVM warnings) goes to our log
+		 */
+		private void logOutput() {
+			Thread tOutput = new Thread(new Runnable() {
+				public void run() {
+					try (BufferedReader br = new BufferedReader(new InputStreamReader(proc.getInputStream()))) {
+						String sLine;
+						while ((sLine = br.readLine()) != null)
+							log.log(sName+": "+sLine);
+					} catch (IOException e) {
+						// Done
+					}
+				}
+			}, sName+"-Output");
+			tOutput.setDaemon(true);
+			tOutput.start();
+		}
+
+		String awaitReply(long lTimeoutMillis) throws InterruptedException {
+			if (lTimeoutMillis > 0)
+				return lbqReplies.poll(lTimeoutMillis, TimeUnit.MILLISECONDS);
+			return lbqReplies.take();
+		}
+
+		void send(String sRequest) throws IOException {
+			bwControl.write(sRequest);
+			bwControl.newLine();
+			bwControl.flush();
+		}
+
+		/**
+		 * Ask the worker to exit (by closing its socket), or kill it (and anything it started) if bForcibly
+		 */
+		void retire(boolean bForcibly) {
+			if (bForcibly)
+				CommandRunner.killProcessTree(proc);
+			try { sControl.close(); } catch (IOException e) { /* Ignore */ }
+			synchronized (this) {
+				if (bRetired)
+					return;
+				bRetired = true;
+			}
+			aiWorkers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Start a new worker in the background, and add it to the idle queue once it's ready
+	 */
+	private void refill() {
+		if (bShutdown || bGaveUp)
+			return;
+		aiWorkers.incrementAndGet();
+		esRefill.execute(new Runnable() {
+			public void run() {
+				Worker w = null;
+				try {
+					String sToken = Long.toHexString(sr.nextLong());
+					w = new Worker(sToken);
+					String sReply = w.awaitReply(lWorkerWaitMillis);
+					if (!("READY\t"+sToken).equals(sReply))
+						throw new IOException("Worker did not start properly; its first reply was '"+sReply+"'");
+					aiStartFailures.set(0);
+					if (bShutdown) {
+						w.retire(false);
+						FileUtil.deleteTree(w.fDir);
+					} else {
+						lbqIdle.add(w);
+					}
+				} catch (Exception e) {
+					log.log("ERROR: Unable to start worker JVM: "+e.toString());
+					if (w != null) {
+						w.retire(true);
+						FileUtil.deleteTree(w.fDir);
+					} else {
+						aiWorkers.decrementAndGet();
+					}
+					if (aiStartFailures.incrementAndGet() >= iMaxStartFailures) {
+						if (!bGaveUp)
+							log.log("ERROR: "+iMaxStartFailures+" worker JVMs in a row failed to start. Not starting any more; programs will be run in JVMs of their own.");
+						bGaveUp = true;
+					} else {
+						// Try again...
+						refill();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Take an idle worker, waiting for one if need be (but not if there's none to wait for)
+	 * @return the worker; null if none became available
+	 */
+	private Worker takeIdleWorker() throws InterruptedException {
+		long lDeadline = System.currentTimeMillis() + lWorkerWaitMillis;
+		Worker w;
+		while ((w = lbqIdle.poll(Math.min(1000, lWorkerWaitMillis), TimeUnit.MILLISECONDS)) == null) {
+			if (aiWorkers.get() == 0) {
+				log.log("WARNING: No worker JVM is running, or starting.");
+				return null;
+			}
+			if (System.currentTimeMillis() >= lDeadline) {
+				log.log("WARNING: No worker JVM became available within "+lWorkerWaitMillis+"ms.");
+				return null;
+			}
+		}
+		return w;
+	}
+
+	/**
+	 * Run a compiled Java program on one of the pool's workers
+	 * @param fClassDir the job's working directory, containing the program's class files
+	 * @param sMainClass name of the program's main class
+	 * @param fInputData file to use as the program's STDIN
+	 * @param lTimeLimitMillis longest time (wall-clock milliseconds) to let the program run; 0 for no limit
+	 * @param lOutputLimit most bytes of STDOUT (and of STDERR) to keep; a program which writes more is killed, and its
+	 * output cut off at the limit (0 for no limit)
+	 * @param lDirQuota most bytes the program may leave in its working directory; a program which leaves more is killed
+	 * (0 for no limit)
+	 * @return result, in the same form as if 'java' had been run by CommandRunner; null if no worker was available (or
+	 * the one taken couldn't be given the program)
+	 */
+	public CommandRunnerResult run(File fClassDir, String sMainClass, File fInputData, long lTimeLimitMillis, long lOutputLimit, long lDirQuota) throws Exception {
+		String sCommand = "(warm JVM) java "+sMainClass+" < "+fInputData.getName();
+		Worker w = (bGaveUp && lbqIdle.isEmpty()) ? null : takeIdleWorker();
+		if (w == null)
+			return null;
+		File fSTDOUT = null;
+		File fSTDERR = null;
+		long lStartNanos = System.nanoTime();
+		String sReply = null;
+		boolean bOutputLimitExceeded = false;
+		boolean bDirQuotaExceeded = false;
+		boolean bStarted = false;
+		try {
+			fSTDOUT = File.createTempFile("JavaWorker", ".out");
+			fSTDERR = File.createTempFile("JavaWorker", ".err");
+			log.log("Running command: '"+sCommand+"' on "+w.sName+" using working directory '"+fClassDir.getAbsolutePath()+"'"
+				+(lTimeLimitMillis > 0 ? " with time limit "+lTimeLimitMillis+"ms" : "")+"...");
+			lStartNanos = System.nanoTime();
+			w.iJobs++;
+			linkFiles(fClassDir, w.fDir);
+			w.send("RUN\t"+w.fDir.getAbsolutePath()+"\t"+sMainClass+"\t"+fInputData.getAbsolutePath()+"\t"+fSTDOUT.getAbsolutePath()+"\t"+fSTDERR.getAbsolutePath());
+			bStarted = true;
+		} catch (IOException e) {
+			// (e.g. the worker died while it was idle) Let the caller run the program in a JVM of its own...
+			log.log("WARNING: Unable to run '"+sCommand+"' on "+w.sName+": "+e.toString()+". Replacing it...");
+			return null;
+		} finally {
+			if (!bStarted) {
+				w.retire(true);
+				FileUtil.deleteTree(w.fDir);
+				refill();
+				if (fSTDOUT != null)
+					fSTDOUT.delete();
+				if (fSTDERR != null)
+					fSTDERR.delete();
+			}
+		}
+		// Wait for the reply, checking now and then that the program isn't writing too much (output, or files)...
+		long lDeadline = System.currentTimeMillis() + lTimeLimitMillis;
+		while (true) {
+			long lWaitMillis = lOutputCheckMillis;
+			if (lTimeLimitMillis > 0)
+				lWaitMillis = Math.min(lWaitMillis, lDeadline - System.currentTimeMillis());
+			if (lWaitMillis <= 0)
+				break;
+			sReply = w.awaitReply((lOutputLimit > 0 || lTimeLimitMillis > 0 || lDirQuota > 0) ? lWaitMillis : 0);
+			if (sReply != null)
+				break;
+			if (lOutputLimit > 0 && (fSTDOUT.length() > lOutputLimit || fSTDERR.length() > lOutputLimit)) {
+				bOutputLimitExceeded = true;
+				break;
+			}
+			if (lDirQuota > 0 && FileUtil.sizeOf(w.fDir) > lDirQuota) {
+				bDirQuotaExceeded = true;
+				break;
+			}
+		}
+		long lElapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lStartNanos);
+		int iRC;
+		boolean bTimedOut = false;
+		boolean bReuse = false;
+		if (bOutputLimitExceeded) {
+			log.log("Command '"+sCommand+"' exceeded its output limit of "+lOutputLimit+" bytes. Killing "+w.sName+"...");
+			w.retire(true);
+			iRC = w.proc.waitFor();
+		} else if (bDirQuotaExceeded) {
+			log.log("Command '"+sCommand+"' left more than its quota of "+lDirQuota+" bytes in its working directory. Killing "+w.sName+"...");
+			w.retire(true);
+			iRC = w.proc.waitFor();
+		} else if (sReply == null) {
+			log.log("Command '"+sCommand+"' exceeded its time limit of "+lTimeLimitMillis+"ms. Killing "+w.sName+"...");
+			bTimedOut = true;
+			w.retire(true);
+			iRC = w.proc.waitFor();
+		} else if (sReply.startsWith("DONE\t")) {
+			String[] lsReply = sReply.split("\t");
+			iRC = Integer.parseInt(lsReply[1]);
+			bReuse = Boolean.parseBoolean(lsReply[3]);
+			if (!bReuse)
+				log.log("Program '"+sMainClass+"' misbehaved (e.g. left threads running). Retiring "+w.sName+"...");
+			else if (w.iJobs >= iMaxJobsPerWorker)
+				log.log(w.sName+" has run "+w.iJobs+" programs. Retiring it...");
+			bReuse = bReuse && w.iJobs < iMaxJobsPerWorker;
+			if (!bReuse)
+				w.retire(true);
+		} else {
+			// The worker ended: the program called System.exit() (or Runtime.halt()), or the JVM died (e.g. ran out of
+			// memory); either way, its exit status is the program's...
+			w.retire(true);
+			iRC = w.proc.waitFor();
+			log.log(w.sName+" exited while running '"+sMainClass+"' (reply '"+sReply+"'). Replacing it...");
+		}
+		returnFiles(w.fDir, fClassDir);
+		if (bReuse) {
+			lbqIdle.add(w);
+		} else {
+			FileUtil.deleteTree(w.fDir);
+			refill();
+		}
+		log.log("Command '"+sCommand+"' completed. RC="+iRC+" Elapsed="+lElapsedMillis+"ms"+(bTimedOut ? " (killed: time limit exceeded)" : "")
+			+(bOutputLimitExceeded ? " (killed: output limit exceeded)" : "")+(bDirQuotaExceeded ? " (killed: disk quota exceeded)" : ""));
+		SpillableOutputBuffer sobSTDOUT = SpillableOutputBuffer.adopt(fSTDOUT, lOutputLimit);
+		SpillableOutputBuffer sobSTDERR = SpillableOutputBuffer.adopt(fSTDERR, lOutputLimit);
+		CommandRunnerResult crr = new CommandRunnerResult(sCommand, fClassDir, iRC, sobSTDOUT, sobSTDERR, lElapsedMillis, lTimeLimitMillis, bTimedOut);
+		// (Including a program which wrote too much, but ended before that was noticed)...
+		if (bOutputLimitExceeded || sobSTDOUT.isTruncated() || sobSTDERR.isTruncated())
+			crr.lOutputLimitBytes = lOutputLimit;
+		if (bDirQuotaExceeded)
+			crr.lDirQuotaBytes = lDirQuota;
+		return crr;
+	}
+
+	/**
+	 * Link (or, if that's not possible, copy) the files in a job's working directory into a worker's
+	 */
+	private static void linkFiles(File fJobDir, File fWorkerDir) throws IOException {
+		File[] lf = fJobDir.listFiles();
+		if (lf == null)
+			throw new IOException("Unable to list directory '"+fJobDir.getAbsolutePath()+"'");
+		for (File f : lf) {
+			if (!f.isFile())
+				continue;
+			File fLink = new File(fWorkerDir, f.getName());
+			try {
+				Files.createLink(fLink.toPath(), f.toPath());
+			} catch (FileAlreadyExistsException e) {
+				throw e;
+			} catch (IOException | UnsupportedOperationException e) {
+				Files.copy(f.toPath(), fLink.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+			}
+		}
+	}
+
+	/**
+	 * Empty a worker's working directory after a program has run there: files which are still links to the job's
+	 * files are removed, and the rest (whatever the program created or replaced) are moved back to the job's
+	 */
+	private static void returnFiles(File fWorkerDir, File fJobDir) {
+		File[] lf = fWorkerDir.listFiles();
+		if (lf == null)
+			return;
+		for (File f : lf) {
+			File fJob = new File(fJobDir, f.getName());
+			try {
+				if (f.isFile() && fJob.isFile() && Files.isSameFile(f.toPath(), fJob.toPath()))
+					Files.delete(f.toPath());
+				else
+					Files.move(f.toPath(), fJob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				log.log("WARNING: Unable to move '"+f.getAbsolutePath()+"' back to '"+fJobDir.getAbsolutePath()+"': "+e.toString());
+				FileUtil.deleteTree(f);
+			}
+		}
+	}
+
+	/**
+	 * Stop all of the idle workers, and don't start any more
+	 */
+	public void shutdown() {
+		bShutdown = true;
+		esRefill.shutdown();
+		Worker w;
+		while ((w = lbqIdle.poll()) != null) {
+			w.retire(false);
+			FileUtil.deleteTree(w.fDir);
+		}
+		log.log("Shut down "+iPoolSize+"-worker pool.");
+	}
+
+}
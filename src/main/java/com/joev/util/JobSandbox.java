@@ -0,0 +1,366 @@
+package com.joev.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.joev.util.CommandRunner.CommandRunnerResult;
+
+/**
+ * Limits what each command (i.e. each job's compile or run) may use, so that one runaway program (e.g. a
+ * "while (true)", or one which allocates without end) can't starve the other jobs running at the same time.
+ * On Linux with cgroup v2 (and the cpu, memory and pids controllers delegated to us), each command is run in a
+ * cgroup of its own, with a CPU quota (cpu.max), a memory limit (memory.max, with no swap) and a limit on its number of
+ * processes (pids.max); afterwards, whether it was throttled, killed for running out of memory, or stopped from starting
+ * processes is recorded in its result. To be allowed to make cgroups for the commands, this process moves itself into
+ * a cgroup of its own ("BatchSimulator-<pid>") beside them.
+ * Otherwise (e.g. cgroup v1, or a cgroup we can't write to), the commands get what the shell's ulimit can do: a limit on
+ * their data size (ulimit -d), in place of the memory limit. The CPU quota and process limit can't be done that way
+ * (ulimit -u counts all of the user's processes, not just the command's).
+ * Either way, commands can also be pinned to cores of their own (taskset), so that concurrent jobs don't compete for
+ * the same cores; a command started when no cores are free runs unpinned.
+ */
+public class JobSandbox {
+
+	private static final SimpleLogger log = new SimpleLogger(JobSandbox.class.getSimpleName());
+
+	// Length (microseconds) of the period over which the CPU quota applies...
+	private static final long lCpuPeriodMicros = 100000;
+	// Time (milliseconds) to wait for a command's cgroup to empty, so that it can be removed...
+	private static final long lRemoveWaitMillis = 1000;
+	// Names of the cgroups made by a simulator (group 1 is its pid)...
+	private static final Pattern pCgroupName = Pattern.compile("(?:BatchSimulator|job)-(\\d+)(?:-\\d+)?");
+
+	private final int iCpuPercent;
+	private final long lMemoryMaxBytes;
+	private final int iPidsMax;
+	private final int iCoresPerJob;
+	// Cores which commands may be pinned to, and those which are free...
+	private final BitSet bsCores;
+	private final BitSet bsFreeCores;
+	// Directory of the cgroup in which the commands' cgroups are made; null if cgroups can't be used...
+	private final File fCgroupDir;
+	private final String sPid;
+	private final AtomicInteger aiCommandNumber = new AtomicInteger(0);
+
+	/**
+	 * Set up the sandbox, using cgroup v2 if possible (see the class description)
+	 * @param iCpuPercent CPU each command may use, as a percentage of one core (e.g. 200 for two cores); 0 for no limit
+	 * @param lMemoryMaxBytes memory each command may use; 0 for no limit
+	 * @param iPidsMax processes (threads, in fact) each command may have at once; 0 for no limit
+	 * @param sCores cores which commands may be pinned to (e.g. "1-3,6"); null or empty for all of them
+	 * @param iCoresPerJob cores to pin each command to; 0 not to pin commands
+	 * @param sCgroupDir cgroup directory in which to make the commands' cgroups; null or empty for this process' own cgroup
+	 */
+	public JobSandbox(int iCpuPercent, long lMemoryMaxBytes, int iPidsMax, String sCores, int iCoresPerJob, String sCgroupDir) {
+		this.iCpuPercent = iCpuPercent;
+		this.lMemoryMaxBytes = lMemoryMaxBytes;
+		this.iPidsMax = iPidsMax;
+		this.iCoresPerJob = iCoresPerJob;
+		this.bsCores = parseCores((sCores == null || sCores.trim().isEmpty()) ? "0-"+(Runtime.getRuntime().availableProcessors()-1) : sCores);
+		this.bsFreeCores = (BitSet) bsCores.clone();
+		String sPid = "0";
+		try {
+			sPid = new File("/proc/self").getCanonicalFile().getName();
+		} catch (IOException e) {
+			// Not Linux...
+		}
+		this.sPid = sPid;
+		this.fCgroupDir = setUpCgroup(sCgroupDir);
+		log.log("Sandbox: "+describe()+(iCoresPerJob > 0 ? ", pinned to "+iCoresPerJob+" of cores "+formatCores(bsCores)+" each" : "")+".");
+	}
+
+	/**
+	 * @return the limits each command is run with
+	 */
+	public String describe() {
+		StringBuilder sb = new StringBuilder((fCgroupDir != null) ? "cgroup v2" : "ulimit");
+		if (fCgroupDir != null && iCpuPercent > 0)
+			sb.append(", CPU ").append(iCpuPercent).append("%");
+		if (lMemoryMaxBytes > 0)
+			sb.append(fCgroupDir != null ? ", memory " : ", data size ").append(lMemoryMaxBytes/1024).append(" KB");
+		if (fCgroupDir != null && iPidsMax > 0)
+			sb.append(", ").append(iPidsMax).append(" processes");
+		return sb.toString();
+	}
+
+	/**
+	 * Try to set up the cgroup in which the commands' cgroups will be made, enabling the controllers they need
+	 * @return its directory; null if cgroups can't be used
+	 */
+	private File setUpCgroup(String sCgroupDir) {
+		File fMount = findCgroup2Mount();
+		if (fMount == null) {
+			log.log("No cgroup v2 filesystem is mounted; using ulimit instead.");
+			return null;
+		}
+		try {
+			File fDir;
+			if (sCgroupDir != null && !sCgroupDir.trim().isEmpty()) {
+				fDir = new File(sCgroupDir.trim());
+			} else {
+				// Our own cgroup, from the line "0::<path>"...
+				String sOwn = null;
+				for (String sLine : Files.readAllLines(new File("/proc/self/cgroup").toPath(), StandardCharsets.UTF_8)) {
+					if (sLine.startsWith("0::"))
+						sOwn = sLine.substring(3);
+				}
+				if (sOwn == null)
+					throw new IOException("this process isn't in a cgroup v2 hierarchy");
+				fDir = new File(fMount, sOwn);
+			}
+			String sControllers = " "+readFile(new File(fDir, "cgroup.controllers")).trim()+" ";
+			for (String sController : new String[] { "cpu", "memory", "pids" }) {
+				if (!sControllers.contains(" "+sController+" "))
+					throw new IOException("the "+sController+" controller isn't available in '"+fDir+"'");
+			}
+			// Only a cgroup with no processes of its own can enable controllers for its children, so if we're in it,
+			// move into a child of our own...
+			if ((" "+readFile(new File(fDir, "cgroup.procs")).replaceAll("\\s+", " ")+" ").contains(" "+sPid+" ")) {
+				File fSelf = new File(fDir, "BatchSimulator-"+sPid);
+				if (!fSelf.isDirectory() && !fSelf.mkdir())
+					throw new IOException("unable to create cgroup '"+fSelf+"'");
+				writeFile(new File(fSelf, "cgroup.procs"), sPid);
+			}
+			writeFile(new File(fDir, "cgroup.subtree_control"), "+cpu +memory +pids");
+			// Tidy up after any earlier run which couldn't (but not after another one still running beside us)...
+			File[] lf = fDir.listFiles();
+			if (lf != null) {
+				for (File f : lf) {
+					Matcher m = pCgroupName.matcher(f.getName());
+					if (f.isDirectory() && m.matches() && !new File("/proc", m.group(1)).exists())
+						f.delete();
+				}
+			}
+			return fDir;
+		} catch (IOException | RuntimeException e) {
+			log.log("Unable to use cgroups ("+e.getMessage()+"); using ulimit instead.");
+			return null;
+		}
+	}
+
+	private static File findCgroup2Mount() {
+		try {
+			// e.g. "30 23 0:26 / /sys/fs/cgroup rw,nosuid,nodev,noexec,relatime shared:4 - cgroup2 cgroup2 rw"...
+			for (String sLine : Files.readAllLines(new File("/proc/self/mountinfo").toPath(), StandardCharsets.UTF_8)) {
+				String[] ls = sLine.split(" ");
+				int iDash = sLine.indexOf(" - cgroup2 ");
+				if (iDash >= 0 && ls.length > 4)
+					return new File(ls[4]);
+			}
+		} catch (IOException e) {
+			// Not Linux...
+		}
+		return null;
+	}
+
+	/**
+	 * Set up to run a command in the sandbox
+	 * @return the command's lease on its cgroup and cores; it must be closed once the command is done
+	 */
+	public Lease open() {
+		int[] aiCores = null;
+		if (iCoresPerJob > 0) {
+			synchronized (bsFreeCores) {
+				if (bsFreeCores.cardinality() >= iCoresPerJob) {
+					aiCores = new int[iCoresPerJob];
+					int iCore = -1;
+					for (int i = 0; i < iCoresPerJob; i++) {
+						iCore = bsFreeCores.nextSetBit(iCore+1);
+						aiCores[i] = iCore;
+						bsFreeCores.clear(iCore);
+					}
+				}
+			}
+			if (aiCores == null)
+				log.log("No free cores to pin the command to; running it unpinned.");
+		}
+		File fCommandDir = null;
+		if (fCgroupDir != null) {
+			fCommandDir = new File(fCgroupDir, "job-"+sPid+"-"+aiCommandNumber.incrementAndGet());
+			try {
+				if (!fCommandDir.mkdir())
+					throw new IOException("unable to create it");
+				if (iCpuPercent > 0)
+					writeFile(new File(fCommandDir, "cpu.max"), (iCpuPercent*lCpuPeriodMicros/100)+" "+lCpuPeriodMicros);
+				if (lMemoryMaxBytes > 0) {
+					writeFile(new File(fCommandDir, "memory.max"), ""+lMemoryMaxBytes);
+					if (new File(fCommandDir, "memory.swap.max").exists())
+						writeFile(new File(fCommandDir, "memory.swap.max"), "0");
+				}
+				if (iPidsMax > 0)
+					writeFile(new File(fCommandDir, "pids.max"), ""+iPidsMax);
+			} catch (IOException e) {
+				log.log("WARNING: Unable to set up cgroup '"+fCommandDir+"' ("+e.getMessage()+"); running the command without it.");
+				fCommandDir.delete();
+				fCommandDir = null;
+			}
+		}
+		return new Lease(fCommandDir, aiCores);
+	}
+
+	/**
+	 * A command's cgroup (if any) and cores (if pinned)
+	 */
+	public class Lease {
+		private final File fCommandDir;
+		private final int[] aiCores;
+		private boolean bClosed = false;
+
+		private Lease(File fCommandDir, int[] aiCores) {
+			this.fCommandDir = fCommandDir;
+			this.aiCores = aiCores;
+		}
+
+		/**
+		 * @param sShellCommand command, to be run by /bin/sh
+		 * @return the command, preceded by what puts the shell (and so everything it starts) in the sandbox
+		 */
+		public String wrap(String sShellCommand) {
+			StringBuilder sb = new StringBuilder();
+			if (fCommandDir != null)
+				sb.append("echo $$ >'").append(new File(fCommandDir, "cgroup.procs").getPath()).append("' || exit 125\n");
+			else if (lMemoryMaxBytes > 0)
+				sb.append("ulimit -d ").append(lMemoryMaxBytes/1024).append(" || exit 125\n");
+			if (aiCores != null)
+				sb.append("taskset -pc ").append(formatCores(aiCores)).append(" $$ >/dev/null\n");
+			return sb.append(sShellCommand).toString();
+		}
+
+		/**
+		 * Kill everything in the command's cgroup (e.g. once its time limit is exceeded), including any processes which
+		 * escaped its process group
+		 */
+		public void kill() {
+			if (fCommandDir == null)
+				return;
+			try {
+				File fKill = new File(fCommandDir, "cgroup.kill");
+				if (fKill.exists()) {
+					writeFile(fKill, "1");
+				} else {
+					for (String sProc : readFile(new File(fCommandDir, "cgroup.procs")).trim().split("\\s+")) {
+						if (!sProc.isEmpty())
+							Runtime.getRuntime().exec(new String[] { "kill", "-KILL", sProc }).waitFor();
+					}
+				}
+			} catch (Exception e) {
+				log.log("WARNING: Unable to kill the processes in cgroup '"+fCommandDir+"': "+e.toString());
+			}
+		}
+
+		/**
+		 * Once the command is done: record what the sandbox saw of it in its result, kill anything it left running,
+		 * remove its cgroup, and free its cores
+		 * @param crr result of the command; null if it couldn't be run
+		 */
+		public void close(CommandRunnerResult crr) {
+			if (bClosed)
+				return;
+			bClosed = true;
+			if (aiCores != null) {
+				synchronized (bsFreeCores) {
+					for (int iCore : aiCores)
+						bsFreeCores.set(iCore);
+				}
+			}
+			if (crr != null) {
+				crr.sSandbox = describe()+(aiCores != null ? ", cores "+formatCores(aiCores) : "");
+				if (fCommandDir != null)
+					readEvents(crr);
+			}
+			if (fCommandDir != null) {
+				kill();
+				long lGiveUp = System.currentTimeMillis()+lRemoveWaitMillis;
+				while (!fCommandDir.delete() && System.currentTimeMillis() < lGiveUp) {
+					try {
+						Thread.sleep(10);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+				if (fCommandDir.exists())
+					log.log("WARNING: Unable to remove cgroup '"+fCommandDir+"'.");
+			}
+		}
+
+		private void readEvents(CommandRunnerResult crr) {
+			try {
+				crr.iOomKills = (int) readKey(new File(fCommandDir, "memory.events"), "oom_kill");
+				crr.iPidsMaxEvents = (int) readKey(new File(fCommandDir, "pids.events"), "max");
+				File fCpuStat = new File(fCommandDir, "cpu.stat");
+				crr.lThrottledPeriods = readKey(fCpuStat, "nr_throttled");
+				crr.lThrottledMillis = readKey(fCpuStat, "throttled_usec")/1000;
+				// The cgroup's figures cover everything the command started, even if it was killed...
+				if (crr.lCpuMillis < 0)
+					crr.lCpuMillis = readKey(fCpuStat, "usage_usec")/1000;
+				File fMemoryPeak = new File(fCommandDir, "memory.peak");
+				if (crr.lPeakRssBytes < 0 && fMemoryPeak.exists())
+					crr.lPeakRssBytes = Long.parseLong(readFile(fMemoryPeak).trim());
+			} catch (IOException | NumberFormatException e) {
+				log.log("WARNING: Unable to read the statistics of cgroup '"+fCommandDir+"': "+e.toString());
+			}
+		}
+	}
+
+	/**
+	 * @return the value of a key in a file of "<key> <value>" lines (e.g. memory.events); 0 if it's not there
+	 */
+	private static long readKey(File f, String sKey) throws IOException {
+		if (!f.exists())
+			return 0;
+		for (String sLine : readFile(f).split("\n")) {
+			if (sLine.startsWith(sKey+" "))
+				return Long.parseLong(sLine.substring(sKey.length()+1).trim());
+		}
+		return 0;
+	}
+
+	private static String readFile(File f) throws IOException {
+		return new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Write to a cgroup control file, all at once (as it must be)
+	 */
+	private static void writeFile(File f, String s) throws IOException {
+		try (OutputStream os = new FileOutputStream(f)) {
+			os.write(s.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * @param sCores list of cores, e.g. "0-3,6"
+	 */
+	private static BitSet parseCores(String sCores) {
+		BitSet bs = new BitSet();
+		for (String sRange : sCores.trim().split(",")) {
+			String[] ls = sRange.trim().split("-");
+			int iFrom = Integer.parseInt(ls[0].trim());
+			bs.set(iFrom, Integer.parseInt(ls[ls.length-1].trim())+1);
+		}
+		return bs;
+	}
+
+	private static String formatCores(BitSet bs) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i+1))
+			sb.append(sb.length() > 0 ? "," : "").append(i);
+		return sb.toString();
+	}
+
+	private static String formatCores(int[] aiCores) {
+		BitSet bs = new BitSet();
+		for (int iCore : aiCores)
+			bs.set(iCore);
+		return formatCores(bs);
+	}
+
+}
@@ -0,0 +1,199 @@
+package com.joev.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * In-memory metrics (counters and histograms, each with any number of labelled series), which can be written out in
+ * the Prometheus text exposition format (see MetricsServer).
+ * Besides the usual cumulative buckets, each histogram series keeps a rolling window of its recent observations (the
+ * last few minutes, up to a maximum number of them), from which the median, 90th and 99th percentiles are given as a
+ * gauge, <name>_recent{quantile="..."}; the cumulative figures show the long run, the recent ones what is going on now.
+ */
+public class MetricsRegistry {
+
+	// Upper bounds of the buckets of histograms of times (seconds)...
+	public static final double[] adSecondsBuckets = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300 };
+	// ...and of sizes (bytes)...
+	public static final double[] adBytesBuckets = { 1024, 16*1024, 256*1024, 1024*1024, 16*1024*1024, 64*1024*1024, 256*1024*1024, 1024*1024*1024 };
+
+	private static final double[] adQuantiles = { 0.5, 0.9, 0.99 };
+
+	/**
+	 * A metric, and all of its series
+	 */
+	private static class Family {
+		private final String sName;
+		private final String sHelp;
+		// Bucket upper bounds for a histogram; null for a counter...
+		private final double[] adBuckets;
+		private final LinkedHashMap<String,Series> hmSeries = new LinkedHashMap<String,Series>();
+
+		private Family(String sName, String sHelp, double[] adBuckets) {
+			this.sName = sName;
+			this.sHelp = sHelp;
+			this.adBuckets = adBuckets;
+		}
+	}
+
+	/**
+	 * One labelled series of a metric
+	 */
+	private static class Series {
+		private double dSum = 0;
+		private long lCount = 0;
+		private final long[] alBucketCounts;
+		// (Histograms) recent observations: { time (System.currentTimeMillis()), value }...
+		private final ArrayDeque<double[]> adqRecent = new ArrayDeque<double[]>();
+
+		private Series(int iBuckets) {
+			this.alBucketCounts = new long[iBuckets];
+		}
+	}
+
+	private final long lWindowMillis;
+	private final int iWindowMaxSamples;
+	private final LinkedHashMap<String,Family> hmFamilies = new LinkedHashMap<String,Family>();
+
+	/**
+	 * @param lWindowMillis how far back the rolling window of each histogram goes
+	 * @param iWindowMaxSamples most observations to keep in the rolling window of each histogram series
+	 */
+	public MetricsRegistry(long lWindowMillis, int iWindowMaxSamples) {
+		this.lWindowMillis = lWindowMillis;
+		this.iWindowMaxSamples = iWindowMaxSamples;
+	}
+
+	/**
+	 * Define a counter
+	 */
+	public synchronized void defineCounter(String sName, String sHelp) {
+		hmFamilies.put(sName, new Family(sName, sHelp, null));
+	}
+
+	/**
+	 * Define a histogram
+	 * @param adBuckets upper bounds of its buckets, in increasing order (e.g. adSecondsBuckets)
+	 */
+	public synchronized void defineHistogram(String sName, String sHelp, double[] adBuckets) {
+		hmFamilies.put(sName, new Family(sName, sHelp, adBuckets));
+	}
+
+	/**
+	 * Add to a counter
+	 * @param lsLabels the series' labels, as name/value pairs (e.g. "lang", "JAVA")
+	 */
+	public synchronized void increment(String sName, double dAmount, String... lsLabels) {
+		getSeries(sName, lsLabels).dSum += dAmount;
+	}
+
+	/**
+	 * Record an observation in a histogram
+	 * @param lsLabels the series' labels, as name/value pairs (e.g. "phase", "compile")
+	 */
+	public synchronized void observe(String sName, double dValue, String... lsLabels) {
+		Family fam = hmFamilies.get(sName);
+		Series s = getSeries(sName, lsLabels);
+		s.dSum += dValue;
+		s.lCount++;
+		for (int i = 0; i < fam.adBuckets.length; i++) {
+			if (dValue <= fam.adBuckets[i])
+				s.alBucketCounts[i]++;
+		}
+		s.adqRecent.addLast(new double[] { System.currentTimeMillis(), dValue });
+		if (s.adqRecent.size() > iWindowMaxSamples)
+			s.adqRecent.removeFirst();
+	}
+
+	private Series getSeries(String sName, String[] lsLabels) {
+		Family fam = hmFamilies.get(sName);
+		if (fam == null)
+			throw new IllegalArgumentException("Undefined metric '"+sName+"'");
+		String sLabels = formatLabels(lsLabels);
+		Series s = fam.hmSeries.get(sLabels);
+		if (s == null) {
+			s = new Series((fam.adBuckets == null) ? 0 : fam.adBuckets.length);
+			fam.hmSeries.put(sLabels, s);
+		}
+		return s;
+	}
+
+	/**
+	 * @return labels formatted as Prometheus does: name="value",name="value"
+	 */
+	private static String formatLabels(String... lsLabels) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i+1 < lsLabels.length; i += 2) {
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(lsLabels[i]).append("=\"")
+				.append(lsLabels[i+1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+		}
+		return sb.toString();
+	}
+
+	private static String withLabel(String sLabels, String sLabel) {
+		return "{"+sLabels+(sLabels.isEmpty() ? "" : ",")+sLabel+"}";
+	}
+
+	private static String formatValue(double d) {
+		if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 1e15)
+			return Long.toString((long) d);
+		return String.format(Locale.ROOT, "%s", d);
+	}
+
+	/**
+	 * @return all of the metrics, in the Prometheus text exposition format
+	 */
+	public synchronized String toPrometheusText() {
+		StringBuilder sb = new StringBuilder();
+		long lWindowStart = System.currentTimeMillis() - lWindowMillis;
+		for (Family fam : hmFamilies.values()) {
+			sb.append("# HELP ").append(fam.sName).append(' ').append(fam.sHelp).append('\n');
+			if (fam.adBuckets == null) {
+				sb.append("# TYPE ").append(fam.sName).append(" counter\n");
+				for (Map.Entry<String,Series> me : fam.hmSeries.entrySet())
+					sb.append(fam.sName).append(me.getKey().isEmpty() ? "" : "{"+me.getKey()+"}").append(' ').append(formatValue(me.getValue().dSum)).append('\n');
+				continue;
+			}
+			sb.append("# TYPE ").append(fam.sName).append(" histogram\n");
+			for (Map.Entry<String,Series> me : fam.hmSeries.entrySet()) {
+				Series s = me.getValue();
+				for (int i = 0; i < fam.adBuckets.length; i++)
+					sb.append(fam.sName).append("_bucket").append(withLabel(me.getKey(), "le=\""+formatValue(fam.adBuckets[i])+"\"")).append(' ').append(s.alBucketCounts[i]).append('\n');
+				sb.append(fam.sName).append("_bucket").append(withLabel(me.getKey(), "le=\"+Inf\"")).append(' ').append(s.lCount).append('\n');
+				String sLabels = me.getKey().isEmpty() ? "" : "{"+me.getKey()+"}";
+				sb.append(fam.sName).append("_sum").append(sLabels).append(' ').append(formatValue(s.dSum)).append('\n');
+				sb.append(fam.sName).append("_count").append(sLabels).append(' ').append(s.lCount).append('\n');
+			}
+			// The rolling window, as a gauge of its own...
+			sb.append("# HELP ").append(fam.sName).append("_recent ").append(fam.sHelp).append(" (quantiles of the last ").append(lWindowMillis/1000).append(" seconds)\n");
+			sb.append("# TYPE ").append(fam.sName).append("_recent gauge\n");
+			for (Map.Entry<String,Series> me : fam.hmSeries.entrySet()) {
+				Iterator<double[]> it = me.getValue().adqRecent.iterator();
+				ArrayList<Double> alRecent = new ArrayList<Double>();
+				while (it.hasNext()) {
+					double[] ad = it.next();
+					if (ad[0] < lWindowStart)
+						it.remove();
+					else
+						alRecent.add(ad[1]);
+				}
+				if (alRecent.isEmpty())
+					continue;
+				Collections.sort(alRecent);
+				for (double dQuantile : adQuantiles) {
+					double dValue = alRecent.get((int) Math.min(alRecent.size()-1, Math.floor(dQuantile*alRecent.size())));
+					sb.append(fam.sName).append("_recent").append(withLabel(me.getKey(), "quantile=\""+dQuantile+"\"")).append(' ').append(formatValue(dValue)).append('\n');
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,77 @@
+package com.joev.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves a MetricsRegistry over HTTP, at /metrics, in the Prometheus text exposition format, using the HTTP server
+ * built in to the JDK
+ */
+public class MetricsServer {
+
+	private static final SimpleLogger log = new SimpleLogger(MetricsServer.class.getSimpleName());
+
+	private final HttpServer server;
+	private final ExecutorService es;
+
+	/**
+	 * Start serving
+	 * @param metrics the metrics to serve
+	 * @param sBindAddress address to listen on (e.g. 127.0.0.1, so that only this machine can see the metrics)
+	 * @param iPort port to listen on
+	 */
+	public MetricsServer(final MetricsRegistry metrics, String sBindAddress, int iPort) throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress(sBindAddress, iPort), 0);
+		this.server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange he) throws IOException {
+				try {
+					if (!he.getRequestMethod().equals("GET") && !he.getRequestMethod().equals("HEAD")) {
+						he.sendResponseHeaders(405, -1);
+						return;
+					}
+					byte[] ab = metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+					he.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					if (he.getRequestMethod().equals("HEAD")) {
+						he.sendResponseHeaders(200, -1);
+						return;
+					}
+					he.sendResponseHeaders(200, ab.length);
+					try (OutputStream os = he.getResponseBody()) {
+						os.write(ab);
+					}
+				} finally {
+					he.close();
+				}
+			}
+		});
+		this.es = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MetricsServer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.server.setExecutor(es);
+		this.server.start();
+		log.log("Serving metrics at http://"+sBindAddress+":"+server.getAddress().getPort()+"/metrics");
+	}
+
+	/**
+	 * Stop serving
+	 */
+	public void stop() {
+		server.stop(0);
+		es.shutdown();
+		log.log("Stopped serving metrics.");
+	}
+
+}
@@ -0,0 +1,357 @@
+package com.joev.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.joev.util.CommandRunner.CommandRunnerResult;
+
+/**
+ * A pool of pre-started Python interpreters, each waiting to run one Python program, so that a program doesn't have
+ * to wait for the interpreter to start up (and import its site packages) before it can run.
+ * Each worker runs a small bootstrap script which reports READY on STDOUT, then reads a single request from STDIN:
+ *   RUN workDir scriptFile stdinFile stdoutFile stderrFile          (fields separated by tabs)
+ * It then changes to the working directory, redirects its STDIN/STDOUT/STDERR to the given files, and runs the script
+ * as __main__; the interpreter then exits, as it would after 'python3 script', so its exit code is the program's.
+ * Since each worker runs only one program, nothing is left over from one program to the next; the pool starts a
+ * replacement in the background as each worker is handed out.
+ * If workers keep failing to start, the pool gives up on them, and run() returns null (so the caller runs the program
+ * in an interpreter of its own) rather than waiting for a worker which will never come.
+ */
+public class PythonWorkerPool {
+
+	private static final SimpleLogger log = new SimpleLogger(PythonWorkerPool.class.getSimpleName());
+
+	// Longest time (milliseconds) to wait for a new worker to start up, or for an idle worker to become available...
+	private static final long lWorkerWaitMillis = 30000;
+	// Number of workers in a row which may fail to start before the pool gives up on them...
+	private static final int iMaxStartFailures = 3;
+	// How often (milliseconds) to check the size of a running program's output, when it has a limit...
+	private static final long lOutputCheckMillis = 100;
+
+	private static final String sBootstrap =
+		"import os, sys\n"+
+		"ctl_in = os.fdopen(os.dup(0), 'r')\n"+
+		"ctl_out = os.fdopen(os.dup(1), 'w')\n"+
+		"for m in sys.argv[1:]:\n"+
+		"    try:\n"+
+		"        __import__(m)\n"+
+		"    except Exception as e:\n"+
+		"        sys.stderr.write('Unable to preload module %s: %r\\n' % (m, e))\n"+
+		"import runpy, traceback\n"+
+		"ctl_out.write('READY\\n')\n"+
+		"ctl_out.flush()\n"+
+		"req = ctl_in.readline().rstrip('\\n').split('\\t')\n"+
+		"if len(req) != 6 or req[0] != 'RUN':\n"+
+		"    sys.exit(70)\n"+
+		"d, script, fin, fout, ferr = req[1:]\n"+
+		"os.chdir(d)\n"+
+		"sys.stdout.flush()\n"+
+		"sys.stderr.flush()\n"+
+		"for fd, name, flags in ((0, fin, os.O_RDONLY), (1, fout, os.O_WRONLY|os.O_CREAT|os.O_TRUNC), (2, ferr, os.O_WRONLY|os.O_CREAT|os.O_TRUNC)):\n"+
+		"    f = os.open(name, flags, 0o644)\n"+
+		"    os.dup2(f, fd)\n"+
+		"    os.close(f)\n"+
+		"ctl_in.close()\n"+
+		"ctl_out.close()\n"+
+		"script = os.path.abspath(script)\n"+
+		"sys.argv = [os.path.basename(script)]\n"+
+		"sys.path[0] = d\n"+
+		"try:\n"+
+		"    runpy.run_path(script, run_name='__main__')\n"+
+		"except SystemExit:\n"+
+		"    raise\n"+
+		"except BaseException as e:\n"+
+		"    # As the interpreter would, but without the frames of this script and runpy...\n"+
+		"    tb = e.__traceback__\n"+
+		"    while tb is not None and tb.tb_frame.f_code.co_filename != script:\n"+
+		"        tb = tb.tb_next\n"+
+		"    traceback.print_exception(type(e), e, tb)\n"+
+		"    sys.exit(1)\n";
+
+	private final int iPoolSize;
+	private final ArrayList<String> alsWorkerCommand = new ArrayList<String>();
+	private final LinkedBlockingQueue<Worker> lbqIdle = new LinkedBlockingQueue<Worker>();
+	private final ExecutorService esRefill;
+	private final AtomicInteger aiWorkerNumber = new AtomicInteger(0);
+	// Workers which are starting, or idle...
+	private final AtomicInteger aiWorkers = new AtomicInteger(0);
+	private final AtomicInteger aiStartFailures = new AtomicInteger(0);
+	private volatile boolean bShutdown = false;
+	private volatile boolean bGaveUp = false;
+
+	/**
+	 * Create the pool, and start its workers (in the background)
+	 * @param sPython the Python interpreter command (e.g. "python3")
+	 * @param iPoolSize number of idle workers to keep ready
+	 * @param sPreloadModules modules for each worker to import before it is ready (comma- or whitespace-separated), e.g. "math,re"
+	 */
+	public PythonWorkerPool(String sPython, int iPoolSize, String sPreloadModules) {
+		this.iPoolSize = iPoolSize;
+		alsWorkerCommand.add(sPython);
+		alsWorkerCommand.add("-c");
+		alsWorkerCommand.add(sBootstrap);
+		for (String sModule : sPreloadModules.trim().split("[\\s,]+")) {
+			if (!sModule.isEmpty())
+				alsWorkerCommand.add(sModule);
+		}
+		this.esRefill = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PythonWorkerPool-Refill");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		log.log("Starting "+iPoolSize+" Python worker(s) using '"+sPython+"'"
+			+(alsWorkerCommand.size() > 3 ? ", preloading "+alsWorkerCommand.subList(3, alsWorkerCommand.size()) : "")+"...");
+		for (int i = 0; i < iPoolSize; i++)
+			refill();
+	}
+
+	/**
+	 * A worker interpreter, and the means of talking to it
+	 */
+	private class Worker {
+		private final String sName;
+		private final Process proc;
+		private final BufferedWriter bwControl;
+		private final LinkedBlockingQueue<String> lbqReplies = new LinkedBlockingQueue<String>();
+
+		Worker() throws IOException {
+			this.sName = "PythonWorker-"+aiWorkerNumber.incrementAndGet();
+			ProcessBuilder pb = new ProcessBuilder(CommandRunner.inOwnProcessGroup(alsWorkerCommand.toArray(new String[0])));
+			pb.directory(new File(System.getProperty("java.io.tmpdir")));
+			this.proc = pb.start();
+			this.bwControl = new BufferedWriter(new OutputStreamWriter(proc.getOutputStream(), "UTF-8"));
+			// Collect replies from the worker (just READY, before it is handed a program)...
+			Thread tReplies = new Thread(new Runnable() {
+				public void run() {
+					try (BufferedReader br = new BufferedReader(new InputStreamReader(proc.getInputStream(), "UTF-8"))) {
+						String sLine;
+						while ((sLine = br.readLine()) != null)
+							lbqReplies.add(sLine);
+					} catch (IOException e) {
+						// Treat it as EOF
+					}
+					lbqReplies.add("EOF");
+				}
+			}, sName+"-Replies");
+			tReplies.setDaemon(true);
+			tReplies.start();
+			// Anything the worker writes to STDERR before it runs a program (e.g. preload failures) goes to our log...
+			Thread tErrors = new Thread(new Runnable() {
+				public void run() {
+					try (BufferedReader br = new BufferedReader(new InputStreamReader(proc.getErrorStream()))) {
+						String sLine;
+						while ((sLine = br.readLine()) != null)
+							log.log(sName+": "+sLine);
+					} catch (IOException e) {
+						// Done
+					}
+				}
+			}, sName+"-STDERR");
+			tErrors.setDaemon(true);
+			tErrors.start();
+		}
+
+		/**
+		 * Ask the worker to exit without running anything (by closing its STDIN), or kill it (and anything it started) if bForcibly
+		 */
+		void retire(boolean bForcibly) {
+			if (bForcibly)
+				CommandRunner.killProcessTree(proc);
+			try { bwControl.close(); } catch (IOException e) { /* Ignore */ }
+		}
+	}
+
+	/**
+	 * Start a new worker in the background, and add it to the idle queue once it's ready
+	 */
+	private void refill() {
+		if (bShutdown || bGaveUp)
+			return;
+		aiWorkers.incrementAndGet();
+		esRefill.execute(new Runnable() {
+			public void run() {
+				Worker w = null;
+				try {
+					w = new Worker();
+					String sReply = awaitReady(w);
+					if (!"READY".equals(sReply))
+						throw new IOException("Worker did not start properly; its first reply was '"+sReply+"'");
+					aiStartFailures.set(0);
+					if (bShutdown) {
+						aiWorkers.decrementAndGet();
+						w.retire(false);
+					} else {
+						lbqIdle.add(w);
+					}
+				} catch (Exception e) {
+					log.log("ERROR: Unable to start Python worker: "+e.toString());
+					aiWorkers.decrementAndGet();
+					if (w != null)
+						w.retire(true);
+					if (aiStartFailures.incrementAndGet() >= iMaxStartFailures) {
+						if (!bGaveUp)
+							log.log("ERROR: "+iMaxStartFailures+" Python workers in a row failed to start. Not starting any more; programs will be run in interpreters of their own.");
+						bGaveUp = true;
+					} else {
+						// Try again...
+						refill();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait for a new worker's first reply (unless it dies first, or takes too long)
+	 * @return the reply; null if there was none in time
+	 */
+	private static String awaitReady(Worker w) throws InterruptedException {
+		long lDeadline = System.currentTimeMillis() + lWorkerWaitMillis;
+		String sReply;
+		while ((sReply = w.lbqReplies.poll(1000, TimeUnit.MILLISECONDS)) == null) {
+			if (!w.proc.isAlive() || System.currentTimeMillis() >= lDeadline)
+				break;
+		}
+		return sReply;
+	}
+
+	/**
+	 * Take an idle worker, waiting for one if need be (but not if there's none to wait for)
+	 * @return the worker; null if none became available
+	 */
+	private Worker takeIdleWorker() throws InterruptedException {
+		long lDeadline = System.currentTimeMillis() + lWorkerWaitMillis;
+		Worker w;
+		while ((w = lbqIdle.poll(Math.min(1000, lWorkerWaitMillis), TimeUnit.MILLISECONDS)) == null) {
+			if (aiWorkers.get() == 0) {
+				log.log("WARNING: No Python worker is ready, or starting.");
+				return null;
+			}
+			if (System.currentTimeMillis() >= lDeadline) {
+				log.log("WARNING: No Python worker became available within "+lWorkerWaitMillis+"ms.");
+				return null;
+			}
+		}
+		aiWorkers.decrementAndGet();
+		return w;
+	}
+
+	/**
+	 * Run a Python program on one of the pool's workers
+	 * @param fDir working directory for the program
+	 * @param sScript the program's filename (e.g. "Foo.py"), relative to fDir
+	 * @param fInputData file to use as the program's STDIN
+	 * @param lTimeLimitMillis longest time (wall-clock milliseconds) to let the program run; 0 for no limit
+	 * @param lOutputLimit most bytes of STDOUT (and of STDERR) to keep; a program which writes more is killed, and its
+	 * output cut off at the limit (0 for no limit)
+	 * @param lDirQuota most bytes the program may leave in its working directory; a program which leaves more is killed
+	 * (0 for no limit)
+	 * @return result, in the same form as if 'python3' had been run by CommandRunner; null if no worker was available (or
+	 * the one taken couldn't be given the program)
+	 */
+	public CommandRunnerResult run(File fDir, String sScript, File fInputData, long lTimeLimitMillis, long lOutputLimit, long lDirQuota) throws Exception {
+		String sCommand = "(prestarted) python3 "+sScript+" < "+fInputData.getName();
+		Worker w = (bGaveUp && lbqIdle.isEmpty()) ? null : takeIdleWorker();
+		if (w == null)
+			return null;
+		// This worker is used up; start its replacement...
+		refill();
+		File fSTDOUT = null;
+		File fSTDERR = null;
+		long lStartNanos = System.nanoTime();
+		try {
+			fSTDOUT = File.createTempFile("PythonWorker", ".out");
+			fSTDERR = File.createTempFile("PythonWorker", ".err");
+			log.log("Running command: '"+sCommand+"' on "+w.sName+" using working directory '"+fDir.getAbsolutePath()+"'"
+				+(lTimeLimitMillis > 0 ? " with time limit "+lTimeLimitMillis+"ms" : "")+"...");
+			lStartNanos = System.nanoTime();
+			w.bwControl.write("RUN\t"+fDir.getAbsolutePath()+"\t"+sScript+"\t"+fInputData.getAbsolutePath()+"\t"+fSTDOUT.getAbsolutePath()+"\t"+fSTDERR.getAbsolutePath());
+			w.bwControl.newLine();
+			w.bwControl.close();
+		} catch (IOException e) {
+			// (e.g. the worker died while it was idle) Let the caller run the program in an interpreter of its own...
+			log.log("WARNING: Unable to run '"+sCommand+"' on "+w.sName+": "+e.toString());
+			w.retire(true);
+			if (fSTDOUT != null)
+				fSTDOUT.delete();
+			if (fSTDERR != null)
+				fSTDERR.delete();
+			return null;
+		}
+		// Wait for the program to end, checking now and then that it isn't writing too much (output, or files)...
+		long lDeadline = System.currentTimeMillis() + lTimeLimitMillis;
+		boolean bTimedOut = false;
+		boolean bOutputLimitExceeded = false;
+		boolean bDirQuotaExceeded = false;
+		while (true) {
+			long lWaitMillis = lOutputCheckMillis;
+			if (lTimeLimitMillis > 0)
+				lWaitMillis = Math.min(lWaitMillis, lDeadline - System.currentTimeMillis());
+			if (lWaitMillis <= 0) {
+				bTimedOut = true;
+				log.log("Command '"+sCommand+"' exceeded its time limit of "+lTimeLimitMillis+"ms. Killing "+w.sName+"...");
+				w.retire(true);
+				break;
+			}
+			if (lOutputLimit <= 0 && lTimeLimitMillis <= 0 && lDirQuota <= 0) {
+				w.proc.waitFor();
+				break;
+			}
+			if (w.proc.waitFor(lWaitMillis, TimeUnit.MILLISECONDS))
+				break;
+			if (lOutputLimit > 0 && (fSTDOUT.length() > lOutputLimit || fSTDERR.length() > lOutputLimit)) {
+				bOutputLimitExceeded = true;
+				log.log("Command '"+sCommand+"' exceeded its output limit of "+lOutputLimit+" bytes. Killing "+w.sName+"...");
+				w.retire(true);
+				break;
+			}
+			if (lDirQuota > 0 && FileUtil.sizeOf(fDir) > lDirQuota) {
+				bDirQuotaExceeded = true;
+				log.log("Command '"+sCommand+"' left more than its quota of "+lDirQuota+" bytes in '"+fDir.getAbsolutePath()+"'. Killing "+w.sName+"...");
+				w.retire(true);
+				break;
+			}
+		}
+		int iRC = w.proc.waitFor();
+		long lElapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lStartNanos);
+		log.log("Command '"+sCommand+"' completed. RC="+iRC+" Elapsed="+lElapsedMillis+"ms"+(bTimedOut ? " (killed: time limit exceeded)" : "")
+			+(bOutputLimitExceeded ? " (killed: output limit exceeded)" : "")+(bDirQuotaExceeded ? " (killed: disk quota exceeded)" : ""));
+		SpillableOutputBuffer sobSTDOUT = SpillableOutputBuffer.adopt(fSTDOUT, lOutputLimit);
+		SpillableOutputBuffer sobSTDERR = SpillableOutputBuffer.adopt(fSTDERR, lOutputLimit);
+		CommandRunnerResult crr = new CommandRunnerResult(sCommand, fDir, iRC, sobSTDOUT, sobSTDERR, lElapsedMillis, lTimeLimitMillis, bTimedOut);
+		// (Including a program which wrote too much, but ended before that was noticed)...
+		if (bOutputLimitExceeded || sobSTDOUT.isTruncated() || sobSTDERR.isTruncated())
+			crr.lOutputLimitBytes = lOutputLimit;
+		if (bDirQuotaExceeded)
+			crr.lDirQuotaBytes = lDirQuota;
+		return crr;
+	}
+
+	/**
+	 * Stop all of the idle workers, and don't start any more
+	 */
+	public void shutdown() {
+		bShutdown = true;
+		esRefill.shutdown();
+		Worker w;
+		while ((w = lbqIdle.poll()) != null) {
+			aiWorkers.decrementAndGet();
+			w.retire(false);
+		}
+		log.log("Shut down "+iPoolSize+"-worker pool.");
+	}
+
+}
@@ -1,72 +1,322 @@
 package com.joev.util;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SimpleLogger {
 
 	private static final String sNL = System.getProperty("line.separator");
-	
+
 	public enum LogFormat { WithTag, Raw, Banner, WithLineNumbers };
-	
+
+	/**
+	 * Direct: each message is written straight to STDOUT, and the log file is opened, appended to and closed for each
+	 * message (so it is always complete on disk).
+	 * Buffered: the log file is kept open (and buffered) until setLogFile() is called again, and STDOUT is written
+	 * by a background thread from a fixed-size queue, so that logging never waits for the terminal. If the queue is
+	 * full, console lines are dropped (and counted), rather than waiting; the log file always gets everything.
+	 */
+	public enum LogMode { Direct, Buffered };
+
+	private static volatile LogMode logMode = LogMode.Direct;
+	private static ConsoleAppender consoleAppender = null;
+
 	private String sTag = null;
 	private File fOutputFile = null;
-	
+	// In Buffered mode, the log file's writer, kept open until the log file is changed...
+	private Writer wOutput = null;
+	// Where everything written to the log file is also written, if anywhere (see setLogFile())...
+	private Writer wEcho = null;
+
 	public SimpleLogger(String sTag) {
 		this.sTag = sTag;
 	}
-	
+
+	/**
+	 * Choose how all loggers write their output (see LogMode)
+	 * @param lm the mode
+	 * @param iConsoleQueueLines (Buffered mode) number of lines the console queue can hold
+	 */
+	public static synchronized void setMode(LogMode lm, int iConsoleQueueLines) {
+		if (lm.equals(LogMode.Buffered) && consoleAppender == null)
+			consoleAppender = new ConsoleAppender(iConsoleQueueLines);
+		logMode = lm;
+	}
+
+	/**
+	 * Wait (briefly) for any queued console output to be written
+	 */
+	public static void flushConsole() {
+		if (consoleAppender != null)
+			consoleAppender.flush();
+	}
+
+	/**
+	 * Writes lines to STDOUT on a background thread, from a bounded queue
+	 */
+	private static class ConsoleAppender implements Runnable {
+		// Longest time (milliseconds) flush() waits for the queue to be written...
+		private static final long lFlushWaitMillis = 5000;
+		private final ArrayBlockingQueue<String> abqLines;
+		private final AtomicLong alDropped = new AtomicLong(0);
+		private volatile boolean bWriting = false;
+
+		ConsoleAppender(int iQueueLines) {
+			this.abqLines = new ArrayBlockingQueue<String>(iQueueLines);
+			Thread t = new Thread(this, "SimpleLogger-Console");
+			t.setDaemon(true);
+			t.start();
+			// Don't lose the last few lines when the program ends...
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run() {
+					flush();
+				}
+			}, "SimpleLogger-Flush"));
+		}
+
+		void append(String sLine) {
+			if (!abqLines.offer(sLine))
+				alDropped.incrementAndGet();
+		}
+
+		public void run() {
+			ArrayList<String> alsBatch = new ArrayList<String>();
+			StringBuilder sb = new StringBuilder();
+			while (true) {
+				try {
+					String sLine = abqLines.take();
+					bWriting = true;
+					alsBatch.add(sLine);
+					abqLines.drainTo(alsBatch, 1000);
+					long lDropped = alDropped.getAndSet(0);
+					if (lDropped > 0)
+						sb.append(SimpleLogger.class.getSimpleName()).append(": (").append(lDropped).append(" console line(s) dropped; the console could not keep up)").append(sNL);
+					for (String s : alsBatch)
+						sb.append(s).append(sNL);
+					System.out.print(sb);
+					System.out.flush();
+				} catch (InterruptedException e) {
+					return;
+				} finally {
+					alsBatch.clear();
+					sb.setLength(0);
+					bWriting = false;
+				}
+			}
+		}
+
+		void flush() {
+			long lDeadline = System.currentTimeMillis() + lFlushWaitMillis;
+			while ((!abqLines.isEmpty() || bWriting) && System.currentTimeMillis() < lDeadline) {
+				try { Thread.sleep(10); } catch (InterruptedException e) { return; }
+			}
+		}
+	}
+
 	public void log(String sMsg) {
 		this.log(sMsg, LogFormat.WithTag);
 	}
-	
+
 	public void log(String sMsg, LogFormat lf) {
 		// First split it into lines and perform any requested formatting...
 		ArrayList<String> alsMsg = new ArrayList<String>();
 		if (lf.equals(LogFormat.Banner))
 			alsMsg.add("***"+"********************************************************************************"+"***");
 		int iLineNo = 0;
-		for (String sLine : sMsg.split("[\r\n]")) {
+		for (String sLine : splitLines(sMsg)) {
 			iLineNo++;
-			switch (lf) {
-			case WithTag:
-				sLine = sTag+": "+sLine;
-				break;
-			case Raw:
-				break;
-			case Banner:
-				sLine = String.format("** %-80.80s **", sLine);
-				break;
-			case WithLineNumbers:
-				sLine = String.format("%04d %s", iLineNo, sLine);
-				break;
-			}
-			alsMsg.add(sLine);
+			alsMsg.add(format(sLine, lf, iLineNo));
 		}
 		if (lf.equals(LogFormat.Banner))
 			alsMsg.add("***"+"********************************************************************************"+"***");
+		writeLines(alsMsg);
+	}
+
+	/**
+	 * Split a message at each CR or LF, as sMsg.split("[\r\n]") would (including dropping trailing empty lines), but
+	 * without a regex
+	 */
+	private static List<String> splitLines(String sMsg) {
+		ArrayList<String> als = new ArrayList<String>();
+		int iStart = 0;
+		for (int i = 0; i < sMsg.length(); i++) {
+			char c = sMsg.charAt(i);
+			if (c == '\r' || c == '\n') {
+				als.add(sMsg.substring(iStart, i));
+				iStart = i+1;
+			}
+		}
+		if (iStart == 0) {
+			als.add(sMsg);
+			return als;
+		}
+		als.add(sMsg.substring(iStart));
+		int iSize = als.size();
+		while (iSize > 0 && als.get(iSize-1).isEmpty())
+			als.remove(--iSize);
+		return als;
+	}
+
+	private String format(String sLine, LogFormat lf, int iLineNo) {
+		switch (lf) {
+		case WithTag:
+			return sTag+": "+sLine;
+		case Banner:
+			return String.format("** %-80.80s **", sLine);
+		case WithLineNumbers:
+			return String.format("%04d %s", iLineNo, sLine);
+		default:
+			return sLine;
+		}
+	}
+
+	/**
+	 * Write lines to STDOUT and, if set, the log file
+	 */
+	private synchronized void writeLines(List<String> alsMsg) {
 		// First, log it to STDOUT...
+		ConsoleAppender ca = logMode.equals(LogMode.Buffered) ? consoleAppender : null;
 		for (String sLine : alsMsg) {
-			System.out.println(sLine);
+			if (ca != null)
+				ca.append(sLine);
+			else
+				System.out.println(sLine);
 		}
 		// If an output log file is set, also write it to the log file...
 		if (this.fOutputFile != null) {
+			Writer w = null;
 			try {
-				FileWriter fw = new FileWriter(this.fOutputFile, true);
+				w = openLogFile();
 				for (String sLine : alsMsg) {
-					fw.write(sLine);
-					fw.write(sNL);
+					w.write(sLine);
+					w.write(sNL);
 				}
-				fw.close();
 			} catch (IOException e) {
 				System.err.println("IOException trying to write to log file '"+this.fOutputFile.getAbsolutePath()+"!");
+			} finally {
+				doneWithLogFile(w);
 			}
+			echo(alsMsg);
+		}
+	}
+
+	/**
+	 * Write lines to the echo of the log file, if any; if that fails, stop echoing
+	 */
+	private void echo(List<String> alsMsg) {
+		if (this.wEcho == null)
+			return;
+		try {
+			for (String sLine : alsMsg) {
+				this.wEcho.write(sLine);
+				this.wEcho.write(sNL);
+			}
+			this.wEcho.flush();
+		} catch (IOException e) {
+			System.err.println("IOException trying to echo log file '"+this.fOutputFile.getAbsolutePath()+"'; no longer echoing it: "+e.toString());
+			closeEcho();
+		}
+	}
+
+	private void closeEcho() {
+		if (this.wEcho != null) {
+			try { this.wEcho.close(); } catch (IOException e) { /* Ignore */ }
+			this.wEcho = null;
 		}
 	}
-	
-	public void setLogFile(File fOutputFile) {
+
+	/**
+	 * @return a writer which appends to the log file: the long-lived one in Buffered mode, otherwise a new one
+	 */
+	private Writer openLogFile() throws IOException {
+		if (!logMode.equals(LogMode.Buffered))
+			return new FileWriter(this.fOutputFile, true);
+		if (this.wOutput == null)
+			this.wOutput = new BufferedWriter(new FileWriter(this.fOutputFile, true), 64*1024);
+		return this.wOutput;
+	}
+
+	private void doneWithLogFile(Writer w) {
+		if (w != null && w != this.wOutput) {
+			try { w.close(); } catch (IOException e) { /* Ignore */ }
+		}
+	}
+
+	/**
+	 * Log the contents of a (UTF-8) text file, a line at a time, without reading the whole file into memory
+	 * @param f the file
+	 * @param lf format for each line (Banner is treated as Raw)
+	 */
+	public synchronized void logFile(File f, LogFormat lf) {
+		if (lf.equals(LogFormat.Banner))
+			lf = LogFormat.Raw;
+		ConsoleAppender ca = logMode.equals(LogMode.Buffered) ? consoleAppender : null;
+		Writer w = null;
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+			if (this.fOutputFile != null)
+				w = openLogFile();
+			String sLine;
+			int iLineNo = 0;
+			List<String> alsEcho = (w != null && this.wEcho != null) ? new ArrayList<String>(1) : null;
+			while ((sLine = br.readLine()) != null) {
+				iLineNo++;
+				sLine = format(sLine, lf, iLineNo);
+				if (ca != null)
+					ca.append(sLine);
+				else
+					System.out.println(sLine);
+				if (w != null) {
+					w.write(sLine);
+					w.write(sNL);
+				}
+				if (alsEcho != null) {
+					alsEcho.add(sLine);
+					echo(alsEcho);
+					alsEcho.clear();
+				}
+			}
+		} catch (IOException e) {
+			log("IOException trying to log file '"+f.getAbsolutePath()+"': "+e.toString());
+		} finally {
+			doneWithLogFile(w);
+		}
+	}
+
+	/**
+	 * Set (or, if null, clear) the file to which messages are logged, in addition to STDOUT. Any previous log file
+	 * is flushed and closed.
+	 */
+	public synchronized void setLogFile(File fOutputFile) {
+		setLogFile(fOutputFile, null);
+	}
+
+	/**
+	 * Set (or, if null, clear) the file to which messages are logged, in addition to STDOUT, and a writer to which
+	 * everything written to the file is also written (e.g. to send it somewhere as it's written). Any previous log file
+	 * is flushed and closed, as is any previous echo writer.
+	 */
+	public synchronized void setLogFile(File fOutputFile, Writer wEcho) {
+		closeEcho();
+		this.wEcho = (fOutputFile == null) ? null : wEcho;
+		if (this.wOutput != null) {
+			try {
+				this.wOutput.close();
+			} catch (IOException e) {
+				System.err.println("IOException trying to close log file '"+this.fOutputFile.getAbsolutePath()+"!");
+			}
+			this.wOutput = null;
+		}
 		this.fOutputFile = fOutputFile;
 		if (this.fOutputFile != null) {
 			// Delete the file, if it previously existed...
@@ -74,20 +324,22 @@ public class SimpleLogger {
 				fOutputFile.delete();
 		}
 	}
-	
+
 	public void logWithLineNumbers(String sSectionIndent, String sSectionTag, String sData) {
+		ArrayList<String> alsMsg = new ArrayList<String>();
 		if (sData.length() == 0) {
-			log(sSectionIndent + sSectionTag + ": (empty)");
+			alsMsg.add(format(sSectionIndent + sSectionTag + ": (empty)", LogFormat.WithTag, 0));
 		} else {
-			log(sSectionIndent + sSectionTag + ":");
-			log(sSectionIndent + "  Line Contents");
-			log(sSectionIndent + "  ==== ================================================================================");
+			alsMsg.add(format(sSectionIndent + sSectionTag + ":", LogFormat.WithTag, 0));
+			alsMsg.add(format(sSectionIndent + "  Line Contents", LogFormat.WithTag, 0));
+			alsMsg.add(format(sSectionIndent + "  ==== ================================================================================", LogFormat.WithTag, 0));
 			int iLineNo = 1;
 			for (String sLine : sData.split("[\r\n]+")) {
-				log(String.format("%s  %04d %s", sSectionIndent, iLineNo, sLine));
+				alsMsg.add(format(String.format("%s  %04d %s", sSectionIndent, iLineNo, sLine), LogFormat.WithTag, 0));
 				iLineNo++;
 			}
 		}
+		writeLines(alsMsg);
 	}
 
 
@@ -103,6 +355,11 @@ public class SimpleLogger {
 		log.log("This message should NOT go to the log file.");
 		log.log("This should be raw output, not adorned with the 'tag'...", LogFormat.Raw);
 		log.log("This\nOutput\nis\nBannerized!", LogFormat.Banner);
+		SimpleLogger.setMode(LogMode.Buffered, 1000);
+		log.setLogFile(new File("SimpleLoggerTestOutputFile.log"));
+		log.log("This test message should be written (via the console queue) to STDOUT, and to the log file, which is kept open.");
+		log.setLogFile(null);
+		SimpleLogger.flushConsole();
 	}
 
 }
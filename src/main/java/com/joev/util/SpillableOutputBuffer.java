@@ -0,0 +1,196 @@
+package com.joev.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * An OutputStream which keeps what is written to it in memory, up to a threshold number of bytes; beyond that, it
+ * "spills" everything to a temporary file, so that large outputs don't have to be held in memory.
+ * Once closed, the contents can be read back with getInputStream() (or getFile(), if it has spilled).
+ * If it's given a limit, anything written beyond the limit is discarded (see isTruncated()).
+ */
+public class SpillableOutputBuffer extends OutputStream {
+
+	private final long lSpillThreshold;
+	private final long lLimit;
+	private boolean bTruncated = false;
+	private ByteArrayOutputStream baos = new ByteArrayOutputStream();
+	private File fSpill = null;
+	private OutputStream osSpill = null;
+	private long lLength = 0;
+
+	/**
+	 * @param lSpillThreshold maximum number of bytes to keep in memory, before spilling to a temporary file
+	 */
+	public SpillableOutputBuffer(long lSpillThreshold) {
+		this(lSpillThreshold, 0);
+	}
+
+	/**
+	 * @param lSpillThreshold maximum number of bytes to keep in memory, before spilling to a temporary file
+	 * @param lLimit maximum number of bytes to keep at all; anything beyond that is discarded (0 for no limit)
+	 */
+	public SpillableOutputBuffer(long lSpillThreshold, long lLimit) {
+		this.lSpillThreshold = lSpillThreshold;
+		this.lLimit = lLimit;
+	}
+
+	/**
+	 * Create a (closed) buffer whose contents are an existing file, which the buffer takes ownership of (i.e. it will be
+	 * deleted when the buffer is released)
+	 * @param f the file
+	 * @return the buffer
+	 */
+	public static SpillableOutputBuffer adopt(File f) {
+		SpillableOutputBuffer sob = new SpillableOutputBuffer(0);
+		sob.baos = null;
+		sob.fSpill = f;
+		sob.lLength = f.length();
+		return sob;
+	}
+
+	/**
+	 * Create a (closed) buffer whose contents are an existing file, as adopt(File), cutting the file down to a limit
+	 * first if it's longer (see isTruncated())
+	 * @param f the file
+	 * @param lLimit maximum number of bytes to keep (0 for no limit)
+	 * @return the buffer
+	 */
+	public static SpillableOutputBuffer adopt(File f, long lLimit) throws IOException {
+		boolean bTruncated = false;
+		if (lLimit > 0 && f.length() > lLimit) {
+			try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+				raf.setLength(lLimit);
+			}
+			bTruncated = true;
+		}
+		SpillableOutputBuffer sob = adopt(f);
+		sob.bTruncated = bTruncated;
+		return sob;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] ab, int iOff, int iLen) throws IOException {
+		if (fSpill != null && osSpill == null)
+			throw new IOException("Buffer has been closed");
+		if (lLimit > 0 && lLength + iLen > lLimit) {
+			bTruncated = true;
+			iLen = (int) Math.max(0, lLimit - lLength);
+			if (iLen == 0)
+				return;
+		}
+		if (fSpill == null && lLength + iLen > lSpillThreshold) {
+			// Too big to keep in memory; move what we have so far out to a file, and write everything else there...
+			fSpill = File.createTempFile("CommandRunner", ".out");
+			osSpill = new BufferedOutputStream(new FileOutputStream(fSpill), 64*1024);
+			baos.writeTo(osSpill);
+			baos = null;
+		}
+		if (osSpill != null)
+			osSpill.write(ab, iOff, iLen);
+		else
+			baos.write(ab, iOff, iLen);
+		lLength += iLen;
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		if (osSpill != null)
+			osSpill.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (osSpill != null) {
+			osSpill.close();
+			osSpill = null;
+		}
+	}
+
+	/**
+	 * @return total number of bytes written
+	 */
+	public synchronized long length() {
+		return lLength;
+	}
+
+	/**
+	 * @return true if more was written than the limit, so the contents stop at the limit
+	 */
+	public synchronized boolean isTruncated() {
+		return bTruncated;
+	}
+
+	/**
+	 * @return true if the contents are in a temporary file, rather than in memory
+	 */
+	public synchronized boolean isSpilled() {
+		return fSpill != null;
+	}
+
+	/**
+	 * @return the temporary file holding the contents, or null if they are (still) in memory
+	 */
+	public synchronized File getFile() throws IOException {
+		flush();
+		return fSpill;
+	}
+
+	/**
+	 * @return a stream from which the contents can be read, from the beginning
+	 */
+	public synchronized InputStream getInputStream() throws IOException {
+		if (fSpill != null) {
+			flush();
+			return new FileInputStream(fSpill);
+		}
+		return new ByteArrayInputStream(baos.toByteArray());
+	}
+
+	/**
+	 * Discard the contents, deleting the temporary file (if any)
+	 */
+	public synchronized void release() {
+		try { close(); } catch (IOException e) { /* Ignore */ }
+		if (fSpill != null) {
+			fSpill.delete();
+			fSpill = null;
+		}
+		baos = new ByteArrayOutputStream();
+		lLength = 0;
+		bTruncated = false;
+	}
+
+	/**
+	 * @return the contents, decoded using the platform's default encoding (beware: may be large!)
+	 */
+	@Override
+	public synchronized String toString() {
+		if (fSpill == null)
+			return baos.toString();
+		try (InputStream is = getInputStream()) {
+			ByteArrayOutputStream baosAll = new ByteArrayOutputStream();
+			byte[] ab = new byte[64*1024];
+			int iRead;
+			while ((iRead = is.read(ab)) > 0)
+				baosAll.write(ab, 0, iRead);
+			return baosAll.toString();
+		} catch (IOException e) {
+			return "(Unable to read spill file '"+fSpill.getAbsolutePath()+"': "+e.toString()+")";
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+package com.joev.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of working directories ("workspaces") for jobs, created up front (e.g. on a tmpfs such as /dev/shm), so that
+ * a job needn't wait for its directory to be created, nor for it to be deleted afterwards: a released workspace is
+ * wiped clean in the background, then handed out again. If no clean workspace is available within a second, the pool
+ * grows by one, rather than holding the job up.
+ * The workspaces are ws0001, ws0002, ... in the pool's directory, which is kept from one run to the next; any left
+ * over from a previous run are wiped and reused (unless they're still in use, e.g. by a job being resumed).
+ */
+public class WorkspacePool {
+
+	private static final SimpleLogger log = new SimpleLogger(WorkspacePool.class.getSimpleName());
+
+	// Time (milliseconds) to wait for a clean workspace, before creating another one...
+	private static final long lGrowAfterMillis = 1000;
+
+	private final File fPoolDir;
+	private final long lQuotaBytes;
+	private final LinkedBlockingQueue<File> lbqClean = new LinkedBlockingQueue<File>();
+	private final ExecutorService esWipe;
+	private final AtomicInteger aiWorkspaces = new AtomicInteger(0);
+
+	/**
+	 * Create the pool, and its initial workspaces
+	 * @param fPoolDir directory to hold the workspaces (created, if necessary)
+	 * @param iSize number of workspaces to start with
+	 * @param lQuotaBytes space each job may use in its workspace (0 for no limit); it's up to whoever runs the job's
+	 * commands to enforce it (see getQuotaBytes())
+	 * @param hsInUse absolute paths of existing workspaces which are still in use, and mustn't be wiped
+	 */
+	public WorkspacePool(File fPoolDir, int iSize, long lQuotaBytes, Set<String> hsInUse) throws IOException {
+		this.fPoolDir = fPoolDir.getAbsoluteFile();
+		this.lQuotaBytes = lQuotaBytes;
+		if (!fPoolDir.isDirectory() && !fPoolDir.mkdirs())
+			throw new IOException("Unable to create workspace pool directory '"+fPoolDir.getAbsolutePath()+"'");
+		this.esWipe = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "WorkspacePool-Wipe");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// Reuse the workspaces from the last run (counting those in use, so that new ones get new names)...
+		int iReused = 0;
+		File[] lf = fPoolDir.listFiles();
+		if (lf != null) {
+			for (File f : lf) {
+				if (!f.isDirectory() || !f.getName().matches("ws\\d+"))
+					continue;
+				aiWorkspaces.set(Math.max(aiWorkspaces.get(), Integer.parseInt(f.getName().substring(2))));
+				if (!hsInUse.contains(f.getAbsolutePath())) {
+					release(f);
+					iReused++;
+				}
+			}
+		}
+		for (int i = iReused; i < iSize; i++)
+			lbqClean.add(create());
+		log.log("Workspace pool '"+fPoolDir.getAbsolutePath()+"': "+Math.max(iSize, iReused)+" workspace(s)"
+			+(lQuotaBytes > 0 ? ", quota "+lQuotaBytes+" bytes each" : "")+".");
+	}
+
+	private File create() throws IOException {
+		File f = new File(fPoolDir, String.format("ws%04d", aiWorkspaces.incrementAndGet()));
+		if (!f.isDirectory() && !f.mkdirs())
+			throw new IOException("Unable to create workspace '"+f.getAbsolutePath()+"'");
+		return f;
+	}
+
+	/**
+	 * @return a clean workspace
+	 */
+	public File acquire() throws IOException, InterruptedException {
+		File f = lbqClean.poll(lGrowAfterMillis, TimeUnit.MILLISECONDS);
+		if (f == null) {
+			f = create();
+			log.log("No clean workspace became available within "+lGrowAfterMillis+"ms; added "+f.getName()+" to the pool.");
+		}
+		return f;
+	}
+
+	/**
+	 * @return true if fDir is one of this pool's workspaces
+	 */
+	public boolean owns(File fDir) {
+		return fPoolDir.equals(fDir.getAbsoluteFile().getParentFile());
+	}
+
+	/**
+	 * @return space each job may use in its workspace (0 for no limit)
+	 */
+	public long getQuotaBytes() {
+		return lQuotaBytes;
+	}
+
+	/**
+	 * Return a workspace to the pool, once it has been wiped (in the background)
+	 */
+	public void release(final File fWorkspace) {
+		esWipe.execute(new Runnable() {
+			public void run() {
+				FileUtil.deleteContents(fWorkspace);
+				// The program may have deleted (or replaced) the directory itself...
+				if (fWorkspace.isDirectory() || fWorkspace.mkdirs())
+					lbqClean.add(fWorkspace);
+				else
+					log.log("WARNING: Unable to reset workspace '"+fWorkspace.getAbsolutePath()+"'; dropping it from the pool.");
+			}
+		});
+	}
+
+	/**
+	 * Finish wiping, then delete the clean workspaces
+	 */
+	public void shutdown() throws InterruptedException {
+		esWipe.shutdown();
+		esWipe.awaitTermination(60, TimeUnit.SECONDS);
+		int iDeleted = 0;
+		File f;
+		while ((f = lbqClean.poll()) != null) {
+			f.delete();
+			iDeleted++;
+		}
+		log.log("Shut down workspace pool; deleted "+iDeleted+" clean workspace(s).");
+	}
+
+}